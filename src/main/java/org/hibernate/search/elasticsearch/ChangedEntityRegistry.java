@@ -0,0 +1,127 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.Validate;
+
+/** Holds the indexed entities re-indexed by a ContainedIn cascade, and the
+ * ones changed by the application, from the moment hibernate flushes the
+ * change until the backend queue sends the document to elasticsearch.
+ *
+ * Hibernate search also re-indexes the entities that embed a changed entity
+ * (the ContainedIn cascade), and the lucene works do not tell them apart. The
+ * {@link ElasticSearchIndexEventListener} follows the ContainedIn properties
+ * of each changed entity and marks the entities they reach as cascades, so
+ * the {@link ElasticSearchBackendQueue} only defers the documents that were
+ * explicitly marked. An entity also changed by the application is never a
+ * cascade.
+ *
+ * The registry keeps the last {@link #MAX_ENTRIES} entities, the oldest ones
+ * are forgotten and their documents are sent right away.
+ *
+ * Without the listener the registry is disabled, and no document is
+ * considered a cascade.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ChangedEntityRegistry {
+
+  /** The max number of pending entities.*/
+  private static final int MAX_ENTRIES = 10000;
+
+  /** Whether each entity was changed by the application (true) or only
+   * re-indexed by a cascade (false), keyed by entity type and id, from the
+   * oldest to the newest. It's never null. Guarded by itself.
+   */
+  private static final Map<String, Boolean> ENTITIES =
+      new LinkedHashMap<String, Boolean>() {
+        private static final long serialVersionUID = 1L;
+        /** {@inheritDoc}.*/
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  /** Whether the event listener registers the changed entities.*/
+  private static volatile boolean enabled = false;
+
+  /** Utility class constructor.*/
+  private ChangedEntityRegistry() {
+  }
+
+  /** Enables the registry, it's invoked by the event listener.*/
+  static void enable() {
+    enabled = true;
+  }
+
+  /** Disables the registry and forgets every entity, it's invoked when the
+   * event listener is destroyed.
+   */
+  static void disable() {
+    enabled = false;
+    synchronized (ENTITIES) {
+      ENTITIES.clear();
+    }
+  }
+
+  /** Registers an entity changed by the application.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id as sent to elasticsearch, cannot be null.
+   */
+  static void changed(final String type, final String id) {
+    String key = key(type, id);
+    synchronized (ENTITIES) {
+      // re-inserts it, so it's the newest entry.
+      ENTITIES.remove(key);
+      ENTITIES.put(key, Boolean.TRUE);
+    }
+  }
+
+  /** Registers an entity re-indexed by a ContainedIn cascade, unless the
+   * application already changed it.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id as sent to elasticsearch, cannot be null.
+   */
+  static void cascaded(final String type, final String id) {
+    String key = key(type, id);
+    synchronized (ENTITIES) {
+      Boolean changed = ENTITIES.remove(key);
+      if (changed == null) {
+        changed = Boolean.FALSE;
+      }
+      ENTITIES.put(key, changed);
+    }
+  }
+
+  /** Checks and forgets if the given entity is only re-indexed by a
+   * ContainedIn cascade.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id as sent to elasticsearch, cannot be null.
+   * @return true if the entity was marked as a cascade and the application
+   * did not change it, false otherwise or if the registry is disabled.
+   */
+  static boolean consumeCascade(final String type, final String id) {
+    if (!enabled) {
+      return false;
+    }
+    String key = key(type, id);
+    synchronized (ENTITIES) {
+      return Boolean.FALSE.equals(ENTITIES.remove(key));
+    }
+  }
+
+  /** Creates the key of the given entity.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id, cannot be null.
+   * @return the key, never null.
+   */
+  private static String key(final String type, final String id) {
+    Validate.notNull(type, "The type cannot be null");
+    Validate.notNull(id, "The id cannot be null");
+    return type + "#" + id;
+  }
+
+}
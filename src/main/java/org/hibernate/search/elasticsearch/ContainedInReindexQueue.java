@@ -0,0 +1,242 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.lang.Validate;
+import org.elasticsearch.client.Client;
+import org.hibernate.search.backend.AddLuceneWork;
+import org.hibernate.search.backend.LuceneWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Defers the documents re-indexed by a ContainedIn cascade.
+ *
+ * When a widely referenced entity changes, hibernate search re-indexes every
+ * entity that embeds it within the same commit. The backend queue hands the
+ * documents marked as cascades by the {@link ChangedEntityRegistry} to this
+ * queue instead, that keeps only the last document of each entity. Once a
+ * document waited the delay, the next backend queue that runs adds it to its
+ * own bulk request, in chunks, so the commit does not wait for the cascade.
+ * A background timer runs an empty backend queue when no commit does it.
+ *
+ * A pending document is dropped when the application changes or deletes the
+ * same entity, so a deferred document never overrides a newer one. Once the
+ * queue holds the max number of pending documents, the next cascades are not
+ * deferred, so the backend queue sends them within its own bulk request.
+ *
+ * The pending documents only live in memory, so they are lost if the jvm
+ * stops before sending them.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ContainedInReindexQueue {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(
+      ContainedInReindexQueue.class);
+
+  /** The pending documents, keyed by index, type and id, from the oldest to
+   * the newest, it's never null.
+   */
+  private final Map<String, Deferred> pending =
+      new LinkedHashMap<String, Deferred>();
+
+  /** The elastic search client, it's never null.*/
+  private final Client client;
+
+  /** The ms each document waits before being sent.*/
+  private final long delay;
+
+  /** The max number of documents added to a single bulk request.*/
+  private final int chunkSize;
+
+  /** The max number of pending documents.*/
+  private final int maxPending;
+
+  /** The debug mode simbol, see {@link ElasticSearchBackendQueue}.*/
+  private final boolean debugMode;
+
+  /** The fingerprints of the documents already sent, can be null.*/
+  private final DocumentFingerprintCache fingerprints;
+
+  /** The encoding of the documents, it's never null.*/
+  private final DocumentEncoding encoding;
+
+  /** The query result cache, null if it's disabled.*/
+  private final QueryResultCache queryCache;
+
+  /** The timer that sends the pending documents when no backend queue
+   * runs, it's never null.
+   */
+  private final Timer timer;
+
+  /** Whether the queue is closed, so every pending document is due.*/
+  private volatile boolean closed = false;
+
+  /** Creates a new queue and starts its timer.
+   * @param theClient the elastic search client, cannot be null.
+   * @param theDelay the ms each document waits before being sent, must be
+   * greater than zero.
+   * @param theChunkSize the max number of documents of each bulk request,
+   * must be greater than zero.
+   * @param theMaxPending the max number of pending documents, must be
+   * greater than zero.
+   * @param debug the debug mode simbol.
+   * @param fingerprintCache the fingerprints of the documents already sent,
+   * null to send every document.
+   * @param documentEncoding the encoding of the documents, cannot be null.
+   * @param resultCache the query result cache, null if it's disabled.
+   */
+  ContainedInReindexQueue(final Client theClient, final long theDelay,
+      final int theChunkSize, final int theMaxPending, final boolean debug,
+      final DocumentFingerprintCache fingerprintCache,
+      final DocumentEncoding documentEncoding,
+      final QueryResultCache resultCache) {
+    Validate.notNull(theClient, "The elastic search client cannot be null.");
+    Validate.isTrue(theDelay > 0, "The delay must be greater than zero");
+    Validate.isTrue(theChunkSize > 0, "The chunk size must be greater than 0");
+    Validate.isTrue(theMaxPending > 0,
+        "The max pending documents must be greater than 0");
+    client = theClient;
+    delay = theDelay;
+    chunkSize = theChunkSize;
+    maxPending = theMaxPending;
+    debugMode = debug;
+    fingerprints = fingerprintCache;
+    encoding = documentEncoding;
+    queryCache = resultCache;
+    timer = new Timer("ContainedInReindexQueue-timer", true);
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          log.error("Cannot re-index the deferred documents", e);
+        }
+      }
+    }, delay, delay);
+  }
+
+  /** Defers the given document if it was marked as a cascade.
+   * @param work the add work, cannot be null.
+   * @return true if the document was deferred, false if it has to be sent
+   * now, ie: the queue is full.
+   */
+  boolean offer(final AddLuceneWork work) {
+    String type = work.getEntityClass().getName();
+    String id = work.getIdInString();
+    String key = key(work);
+    synchronized (pending) {
+      if (!ChangedEntityRegistry.consumeCascade(type, id)) {
+        pending.remove(key);
+        return false;
+      }
+      // re-inserts it, so the entity keeps the position of the last change.
+      if (pending.remove(key) == null && pending.size() >= maxPending) {
+        log.debug("Too many deferred cascades, sending: {} with id: {}",
+            type, id);
+        return false;
+      }
+      log.debug("Deferring the cascade of: {} with id: {}", type, id);
+      pending.put(key, new Deferred(work, System.currentTimeMillis()));
+      return true;
+    }
+  }
+
+  /** Drops the pending document of the entity of the given work, as the
+   * application deleted it.
+   * @param work the delete work, cannot be null.
+   */
+  void cancel(final LuceneWork work) {
+    synchronized (pending) {
+      pending.remove(key(work));
+    }
+  }
+
+  /** Takes the next chunk of pending documents that waited the delay, it's
+   * invoked by the backend queue that sends them.
+   * @return the documents, never null.
+   */
+  List<LuceneWork> drain() {
+    List<LuceneWork> chunk = new ArrayList<LuceneWork>();
+    long due = System.currentTimeMillis() - delay;
+    synchronized (pending) {
+      Iterator<Deferred> it = pending.values().iterator();
+      while (it.hasNext() && chunk.size() < chunkSize) {
+        Deferred deferred = it.next();
+        if (!closed && deferred.time > due) {
+          break;
+        }
+        chunk.add(deferred.work);
+        it.remove();
+      }
+    }
+    return chunk;
+  }
+
+  /** Sends every pending document that waited the delay, running empty
+   * backend queues.
+   */
+  void flush() {
+    while (hasDue()) {
+      log.debug("Re-indexing the deferred documents");
+      new ElasticSearchBackendQueue(new ArrayList<LuceneWork>(), client,
+          debugMode, fingerprints, this, encoding, queryCache).run();
+    }
+  }
+
+  /** Sends every pending document and stops the timer.*/
+  void close() {
+    timer.cancel();
+    closed = true;
+    flush();
+  }
+
+  /** Checks if the oldest pending document waited the delay.
+   * @return true if there is a document to send.
+   */
+  private boolean hasDue() {
+    long due = System.currentTimeMillis() - delay;
+    synchronized (pending) {
+      Iterator<Deferred> it = pending.values().iterator();
+      return it.hasNext() && (closed || it.next().time <= due);
+    }
+  }
+
+  /** Creates the key of the entity of the given work.
+   * @param work the lucene work, cannot be null.
+   * @return the key, never null.
+   */
+  private static String key(final LuceneWork work) {
+    Class<?> entityClass = work.getEntityClass();
+    return ElasticSearchUtils.getIndexName(entityClass) + "#"
+        + entityClass.getName() + "#" + work.getIdInString();
+  }
+
+  /** A pending document.*/
+  private static final class Deferred {
+
+    /** The add work of the document, it's never null.*/
+    private final LuceneWork work;
+
+    /** The ms when the document was deferred.*/
+    private final long time;
+
+    /** Creates a new pending document.
+     * @param theWork the add work, cannot be null.
+     * @param theTime the ms when the document was deferred.
+     */
+    private Deferred(final LuceneWork theWork, final long theTime) {
+      work = theWork;
+      time = theTime;
+    }
+  }
+
+}
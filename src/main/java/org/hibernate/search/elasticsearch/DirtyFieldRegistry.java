@@ -0,0 +1,119 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+
+/** Holds the indexed fields that changed on each updated entity, from the
+ * moment hibernate flushes the update until the backend queue sends the
+ * document to elasticsearch.
+ *
+ * The {@link ElasticSearchIndexEventListener} registers the dirty fields, and
+ * the {@link ElasticSearchBackendQueue} consumes them to send a partial update
+ * instead of the whole document. An entity without registered fields is always
+ * sent as a whole document, so losing an entry is always safe.
+ *
+ * The registry keeps the last {@link #MAX_ENTRIES} entities, the oldest ones
+ * are forgotten and their documents are sent as a whole.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class DirtyFieldRegistry {
+
+  /** The max number of pending entities.*/
+  private static final int MAX_ENTRIES = 10000;
+
+  /** Marks an entity that must be sent as a whole document.*/
+  private static final Set<String> WHOLE_DOCUMENT = Collections.emptySet();
+
+  /** The dirty fields, keyed by entity type and id, from the oldest to the
+   * newest. It's never null. Guarded by itself.
+   */
+  private static final Map<String, Set<String>> DIRTY =
+      new LinkedHashMap<String, Set<String>>() {
+        private static final long serialVersionUID = 1L;
+        /** {@inheritDoc}.*/
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<String, Set<String>> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  /** Utility class constructor.*/
+  private DirtyFieldRegistry() {
+  }
+
+  /** Registers the fields that changed on the given entity.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id as sent to elasticsearch, cannot be null.
+   * @param fields the names of the document fields that changed, cannot be
+   * null.
+   */
+  static void dirty(final String type, final String id,
+      final Set<String> fields) {
+    Validate.notNull(fields, "The fields cannot be null");
+    String key = key(type, id);
+    synchronized (DIRTY) {
+      // re-inserts it, so it's the newest entry.
+      Set<String> current = DIRTY.remove(key);
+      if (current == WHOLE_DOCUMENT) {
+        DIRTY.put(key, WHOLE_DOCUMENT);
+        return;
+      }
+      Set<String> merged = new HashSet<String>(fields);
+      if (current != null) {
+        merged.addAll(current);
+      }
+      DIRTY.put(key, merged);
+    }
+  }
+
+  /** Forces the given entity to be sent as a whole document, only if it has
+   * pending dirty fields.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id as sent to elasticsearch, cannot be null.
+   */
+  static void whole(final String type, final String id) {
+    String key = key(type, id);
+    synchronized (DIRTY) {
+      if (DIRTY.containsKey(key)) {
+        DIRTY.put(key, WHOLE_DOCUMENT);
+      }
+    }
+  }
+
+  /** Retrieves and forgets the dirty fields of the given entity.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id as sent to elasticsearch, cannot be null.
+   * @return the names of the document fields that changed, null if the
+   * whole document has to be sent.
+   */
+  static Set<String> consume(final String type, final String id) {
+    String key = key(type, id);
+    Set<String> fields;
+    synchronized (DIRTY) {
+      fields = DIRTY.remove(key);
+    }
+    if (fields == null || fields == WHOLE_DOCUMENT) {
+      return null;
+    }
+    return fields;
+  }
+
+  /** Creates the key of the given entity.
+   * @param type the entity class name, cannot be null.
+   * @param id the entity id, cannot be null.
+   * @return the key, never null.
+   */
+  private static String key(final String type, final String id) {
+    Validate.notNull(type, "The type cannot be null");
+    Validate.notNull(id, "The id cannot be null");
+    return type + "#" + id;
+  }
+
+}
@@ -0,0 +1,58 @@
+package org.hibernate.search.elasticsearch;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/** The encoding of the documents sent to elasticsearch, see
+ * {@link ElasticSearchEnvironment#DOCUMENT_ENCODING}.
+ *
+ * Elasticsearch detects the encoding of each document source, so the indexed
+ * documents are the same whatever encoding is used to send them.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public enum DocumentEncoding {
+
+  /** Plain json text, the default.*/
+  JSON {
+    /** {@inheritDoc}.*/
+    @Override
+    XContentBuilder newBuilder() throws IOException {
+      return XContentFactory.jsonBuilder();
+    }
+  },
+
+  /** The binary json format, smaller and cheaper to write than json text.*/
+  SMILE {
+    /** {@inheritDoc}.*/
+    @Override
+    XContentBuilder newBuilder() throws IOException {
+      return XContentFactory.smileBuilder();
+    }
+  };
+
+  /** Creates a new document builder with this encoding.
+   * @return the document builder, never null.
+   * @throws IOException if the builder cannot be created.
+   */
+  abstract XContentBuilder newBuilder() throws IOException;
+
+  /** Retrieves the encoding with the given name.
+   * @param name the encoding name, ie: json or smile, can be null.
+   * @return the encoding, JSON if the name is null.
+   */
+  static DocumentEncoding fromName(final String name) {
+    if (name == null) {
+      return JSON;
+    }
+    try {
+      return valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown document encoding: " + name
+          + ", it must be one of json or smile", e);
+    }
+  }
+
+}
@@ -0,0 +1,167 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.Arrays;
+
+import org.apache.commons.lang.Validate;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/** Remembers a compact hash of the last document sent to elasticsearch for a
+ * given (index, type, id).
+ *
+ * Hibernate search emits an add work every time an indexed entity is dirty,
+ * even if none of the indexed fields changed. The backend queue checks the
+ * fingerprint of the serialized document against this cache, and it does not
+ * send the document again when it did not change.
+ *
+ * The cache is a fixed size, direct mapped table of primitive longs: the
+ * (index, type, id) is hashed into a 64 bits key that selects the slot, and a
+ * new key simply replaces the old one. So the memory is bounded and it does
+ * not create any object per entry. A missing or replaced entry only means that
+ * the document is sent again.
+ *
+ * The cache only knows the documents sent by this jvm, so it's disabled by
+ * default and must only be enabled when this jvm is the single writer of the
+ * indices, see {@link ElasticSearchEnvironment#FINGERPRINT_CACHE_SIZE}.
+ *
+ * This class is thread safe.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class DocumentFingerprintCache {
+
+  /** The FNV-1a 64 bits offset basis.*/
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  /** The FNV-1a 64 bits prime.*/
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** The key that marks an empty slot.*/
+  private static final long EMPTY = 0;
+
+  /** The hashed (index, type, id) stored in each slot, it's never null.*/
+  private final long[] keys;
+
+  /** The document fingerprint stored in each slot, it's never null.*/
+  private final long[] fingerprints;
+
+  /** The mask to apply to a key to obtain its slot.*/
+  private final int mask;
+
+  /** Creates a new cache.
+   * @param size the number of slots, it's rounded up to the next power of
+   * two, must be greater than zero.
+   */
+  DocumentFingerprintCache(final int size) {
+    Validate.isTrue(size > 0, "The size must be greater than zero");
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) {
+      capacity = capacity << 1;
+    }
+    keys = new long[capacity];
+    fingerprints = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /** Checks if the given fingerprint is the last one sent for the document,
+   * and records it as the last one otherwise.
+   * @param index the index name, cannot be null.
+   * @param type the document type, cannot be null.
+   * @param id the document id, cannot be null.
+   * @param fingerprint the fingerprint of the serialized document.
+   * @return true if the document did not change since it was last sent.
+   */
+  synchronized boolean checkAndPut(final String index, final String type,
+      final String id, final long fingerprint) {
+    long key = key(index, type, id);
+    int slot = slot(key);
+    if (keys[slot] == key && fingerprints[slot] == fingerprint) {
+      return true;
+    }
+    keys[slot] = key;
+    fingerprints[slot] = fingerprint;
+    return false;
+  }
+
+  /** Forgets the fingerprint of the given document.
+   * @param index the index name, cannot be null.
+   * @param type the document type, cannot be null.
+   * @param id the document id, cannot be null.
+   */
+  synchronized void remove(final String index, final String type,
+      final String id) {
+    long key = key(index, type, id);
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      keys[slot] = EMPTY;
+      fingerprints[slot] = 0;
+    }
+  }
+
+  /** Forgets every fingerprint.*/
+  synchronized void clear() {
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(fingerprints, 0);
+  }
+
+  /** Computes the fingerprint of the given serialized document.
+   * @param bytes the serialized document, cannot be null.
+   * @return the 64 bits hash of the document.
+   */
+  static long fingerprint(final BytesReference bytes) {
+    long hash = FNV_OFFSET;
+    if (bytes.hasArray()) {
+      byte[] array = bytes.array();
+      int end = bytes.arrayOffset() + bytes.length();
+      for (int i = bytes.arrayOffset(); i < end; i++) {
+        hash = (hash ^ (array[i] & 0xff)) * FNV_PRIME;
+      }
+    } else {
+      int length = bytes.length();
+      for (int i = 0; i < length; i++) {
+        hash = (hash ^ (bytes.get(i) & 0xff)) * FNV_PRIME;
+      }
+    }
+    return hash;
+  }
+
+  /** Hashes the document coordinates into a non empty key.
+   * @param index the index name.
+   * @param type the document type.
+   * @param id the document id.
+   * @return the key, never EMPTY.
+   */
+  private static long key(final String index, final String type,
+      final String id) {
+    long hash = FNV_OFFSET;
+    hash = hash(hash, index);
+    hash = hash(hash, type);
+    hash = hash(hash, id);
+    if (hash == EMPTY) {
+      return 1;
+    }
+    return hash;
+  }
+
+  /** Adds the chars of the given string to the hash.
+   * @param seed the current hash.
+   * @param value the string to add, cannot be null.
+   * @return the new hash.
+   */
+  private static long hash(final long seed, final String value) {
+    long hash = seed;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    // separator, so ("ab", "c") and ("a", "bc") do not collide.
+    return (hash ^ 0xff) * FNV_PRIME;
+  }
+
+  /** Retrieves the slot of the given key.
+   * @param key the key.
+   * @return the slot.
+   */
+  private int slot(final long key) {
+    return (int) (key ^ (key >>> 32)) & mask;
+  }
+
+}
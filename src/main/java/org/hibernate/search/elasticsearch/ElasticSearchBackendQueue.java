@@ -1,7 +1,14 @@
 package org.hibernate.search.elasticsearch;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
@@ -10,20 +17,29 @@ import org.slf4j.LoggerFactory;
 import org.apache.commons.lang.Validate;
 
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Fieldable;
 
 import org.elasticsearch.client.Client;
 
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionFuture;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.action.update.UpdateResponse;
+
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.query.QueryBuilders;
 
 import org.hibernate.search.backend.AddLuceneWork;
 import org.hibernate.search.backend.DeleteLuceneWork;
@@ -31,6 +47,18 @@ import org.hibernate.search.backend.LuceneWork;
 
 /** Backend for elasctic search.
  * Supported operations: create/update and delete an entity.
+ *
+ * Updated entities whose dirty fields were registered by the
+ * {@link ElasticSearchIndexEventListener} are sent as partial updates that
+ * only contain the changed fields. If elasticsearch rejects the partial
+ * update, the whole document is sent. The bulk request of this elasticsearch
+ * version cannot hold updates, so the partial updates are sent once the bulk
+ * request is done, after the documents it writes.
+ *
+ * The documents re-indexed by a ContainedIn cascade can be handed to a
+ * {@link ContainedInReindexQueue}, and the ones that waited long enough are
+ * added to the bulk request of a later queue.
+ *
  * @author waabox (waabox[at]gmail[dot]com)
  */
 public class ElasticSearchBackendQueue implements Runnable {
@@ -42,7 +70,9 @@ public class ElasticSearchBackendQueue implements Runnable {
   /** Amount of ms to sleep.*/
   private static final int SLEEP_TIMEOUT = 100;
 
-  /** The list of works, it's never null.*/
+  /** The list of works, including the deferred cascades added to the bulk
+   * request, it's never null.
+   */
   private final List<LuceneWork> works;
 
   /** The elastic search client, it's never null.*/
@@ -54,6 +84,31 @@ public class ElasticSearchBackendQueue implements Runnable {
   /** Checks if the application is running within the debug mode.*/
   private final boolean debugMode;
 
+  /** The fingerprints of the documents already sent, can be null if the
+   * unchanged documents have to be sent anyway.
+   */
+  private final DocumentFingerprintCache fingerprints;
+
+  /** The queue of the deferred cascades, null if the cascades are sent
+   * within this queue.
+   */
+  private final ContainedInReindexQueue cascades;
+
+  /** The encoding of the documents, it's never null.*/
+  private final DocumentEncoding encoding;
+
+  /** The cached searches invalidated by the writes of this queue, null if
+   * the query result cache is disabled.
+   */
+  private final QueryResultCache queryCache;
+
+  /** The partial updates of this queue, each one with the fallback that
+   * sends the whole document if it fails. They are sent once the bulk
+   * request is done. It's never null.
+   */
+  private final Map<UpdateRequestBuilder, WholeDocumentFallback> updates =
+      new LinkedHashMap<UpdateRequestBuilder, WholeDocumentFallback>();
+
   /** Creates a new instance of the backend queue.
    * @param luceneWorks the list of lucene's works, cannot be null.
    * @param client the elastic-search client, cannot be null.
@@ -61,22 +116,104 @@ public class ElasticSearchBackendQueue implements Runnable {
    */
   public ElasticSearchBackendQueue(final List<LuceneWork> luceneWorks,
       final Client client, final boolean debug) {
+    this(luceneWorks, client, debug, null);
+  }
+
+  /** Creates a new instance of the backend queue that does not send the
+   * documents that did not change since the last time they were sent.
+   * @param luceneWorks the list of lucene's works, cannot be null.
+   * @param client the elastic-search client, cannot be null.
+   * @param debug the debug mode simbol.
+   * @param fingerprintCache the fingerprints of the documents already sent,
+   * null to send every document.
+   */
+  ElasticSearchBackendQueue(final List<LuceneWork> luceneWorks,
+      final Client client, final boolean debug,
+      final DocumentFingerprintCache fingerprintCache) {
+    this(luceneWorks, client, debug, fingerprintCache, null,
+        DocumentEncoding.JSON);
+  }
+
+  /** Creates a new instance of the backend queue that defers the documents
+   * re-indexed by a ContainedIn cascade.
+   * @param luceneWorks the list of lucene's works, cannot be null.
+   * @param client the elastic-search client, cannot be null.
+   * @param debug the debug mode simbol.
+   * @param fingerprintCache the fingerprints of the documents already sent,
+   * null to send every document.
+   * @param cascadeQueue the queue of the deferred cascades, null to send the
+   * cascades within this queue.
+   * @param documentEncoding the encoding of the documents, cannot be null.
+   */
+  ElasticSearchBackendQueue(final List<LuceneWork> luceneWorks,
+      final Client client, final boolean debug,
+      final DocumentFingerprintCache fingerprintCache,
+      final ContainedInReindexQueue cascadeQueue,
+      final DocumentEncoding documentEncoding) {
+    this(luceneWorks, client, debug, fingerprintCache, cascadeQueue,
+        documentEncoding, null);
+  }
+
+  /** Creates a new instance of the backend queue that invalidates the cached
+   * searches of the indices it writes.
+   * @param luceneWorks the list of lucene's works, cannot be null.
+   * @param client the elastic-search client, cannot be null.
+   * @param debug the debug mode simbol.
+   * @param fingerprintCache the fingerprints of the documents already sent,
+   * null to send every document.
+   * @param cascadeQueue the queue of the deferred cascades, null to send the
+   * cascades within this queue.
+   * @param documentEncoding the encoding of the documents, cannot be null.
+   * @param resultCache the query result cache, null if it's disabled.
+   */
+  ElasticSearchBackendQueue(final List<LuceneWork> luceneWorks,
+      final Client client, final boolean debug,
+      final DocumentFingerprintCache fingerprintCache,
+      final ContainedInReindexQueue cascadeQueue,
+      final DocumentEncoding documentEncoding,
+      final QueryResultCache resultCache) {
     Validate.notNull(luceneWorks, "The list of lucene works cannot be null.");
     Validate.notNull(client, "The elastic search client cannot be null.");
-    works = luceneWorks;
+    Validate.notNull(documentEncoding, "The encoding cannot be null.");
+    works = new ArrayList<LuceneWork>(luceneWorks);
     elasticSearchClient = client;
     requestBuilder = elasticSearchClient.prepareBulk();
     debugMode = debug;
+    fingerprints = fingerprintCache;
+    cascades = cascadeQueue;
+    encoding = documentEncoding;
+    queryCache = resultCache;
   }
 
   /** {@inheritDoc}.*/
   public void run() {
     log.trace("Entering run");
 
+    int actions = 0;
+
+    Set<String> replaced = getReplacedDocuments();
+
     for (LuceneWork work : works) {
+      if (cascades != null && work instanceof AddLuceneWork
+          && cascades.offer((AddLuceneWork) work)) {
+        continue;
+      }
       if (work instanceof AddLuceneWork) {
-        requestBuilder.add(handleAdd((AddLuceneWork) work));
+        IndexRequestBuilder indexRequest = handleAdd((AddLuceneWork) work,
+            !replaced.isEmpty() && replaced.contains(key(work)));
+        if (indexRequest != null) {
+          requestBuilder.add(indexRequest);
+          actions++;
+        }
       } else if (work instanceof DeleteLuceneWork) {
+        if (!replaced.isEmpty() && replaced.contains(key(work))) {
+          log.debug("Skipping the delete of: {} with id: {}, it's replaced",
+              work.getEntityClass().getName(), work.getIdInString());
+          continue;
+        }
+        if (cascades != null) {
+          cascades.cancel(work);
+        }
         delete((DeleteLuceneWork) work);
       } else {
         String className = work.getClass().getName();
@@ -84,14 +221,62 @@ public class ElasticSearchBackendQueue implements Runnable {
       }
     }
 
+    if (cascades != null) {
+      // drained after the works of this queue, that dropped the pending
+      // documents of the entities they change.
+      List<LuceneWork> deferred = cascades.drain();
+      for (LuceneWork work : deferred) {
+        // the cascades replace the documents whose deletes were skipped.
+        IndexRequestBuilder indexRequest = handleAdd((AddLuceneWork) work,
+            true);
+        if (indexRequest != null) {
+          requestBuilder.add(indexRequest);
+          actions++;
+        }
+      }
+      works.addAll(deferred);
+    }
+
     long start = System.currentTimeMillis();
-    log.debug("Sending requestBuilder to elasticsearch");
 
-    ListenableActionFuture<?> requestFuture = requestBuilder.execute();
+    ListenableActionFuture<BulkResponse> requestFuture = null;
+
+    Set<String> writtenIndices = null;
+    if (queryCache != null) {
+      writtenIndices = getCacheIndices();
+      invalidate(writtenIndices);
+    }
+
+    List<Future<?>> sentUpdates = Collections.emptyList();
+    if (actions > 0) {
+      log.debug("Sending requestBuilder to elasticsearch");
+      requestFuture = requestBuilder.execute();
+      if (!updates.isEmpty() && !debugMode) {
+        requestFuture.addListener(new UpdateSender());
+      }
+      if (fingerprints != null) {
+        requestFuture.addListener(new FingerprintEviction());
+      }
+      if (writtenIndices != null) {
+        // the searches sent while the bulk was in flight saw the old
+        // documents.
+        requestFuture.addListener(new QueryCacheEviction(writtenIndices));
+      }
+    } else if (updates.isEmpty()) {
+      log.debug("Every document is up to date, nothing to send");
+    } else {
+      sentUpdates = sendUpdates();
+    }
 
     if (debugMode) {
 
-      waitFor(requestFuture);
+      if (requestFuture != null) {
+        waitFor(requestFuture);
+        sentUpdates = sendUpdates();
+      }
+      for (Future<?> update : sentUpdates) {
+        waitFor(update);
+      }
 
       String[] indices = new String[works.size()];
       for (int i=0; i< works.size(); i++) {
@@ -107,6 +292,9 @@ public class ElasticSearchBackendQueue implements Runnable {
           refreshRequest);
 
       waitFor(refreshFuture);
+      if (writtenIndices != null) {
+        invalidate(writtenIndices);
+      }
     }
 
     long duration = System.currentTimeMillis() - start;
@@ -115,6 +303,30 @@ public class ElasticSearchBackendQueue implements Runnable {
     log.trace("Leaving run");
   }
 
+  /** Retrieves the indices written by the works of this queue, as named by
+   * the query result cache.
+   * @return the indices, never null.
+   */
+  private Set<String> getCacheIndices() {
+    Set<String> indices = new HashSet<String>();
+    for (LuceneWork work : works) {
+      if (work.getEntityClass() != null) {
+        indices.add(QueryResultCache.getCacheIndex(work.getEntityClass()));
+      }
+    }
+    return indices;
+  }
+
+  /** Invalidates the cached searches of the given indices.
+   * @param indices the indices, as named by the query result cache, cannot
+   * be null.
+   */
+  private void invalidate(final Set<String> indices) {
+    for (String index : indices) {
+      queryCache.invalidate(index);
+    }
+  }
+
   /** Sleeps the current thread 100 ms.
    * @param future the future to wait for.
    * */
@@ -128,14 +340,58 @@ public class ElasticSearchBackendQueue implements Runnable {
     }
   }
 
+  /** Retrieves the documents deleted and then added again by the works of
+   * this queue.
+   *
+   * Hibernate search sends an update as the delete and the add of the same
+   * document. The add overwrites the document in elasticsearch, so the
+   * delete is not sent, and the fingerprint of the document is kept to tell
+   * if the add changed it.
+   *
+   * @return the keys of the replaced documents, never null.
+   */
+  private Set<String> getReplacedDocuments() {
+    Set<String> deleted = new HashSet<String>();
+    Set<String> replaced = new HashSet<String>();
+    for (LuceneWork work : works) {
+      if (work instanceof DeleteLuceneWork) {
+        deleted.add(key(work));
+      } else if (!deleted.isEmpty() && work instanceof AddLuceneWork
+          && deleted.contains(key(work))) {
+        replaced.add(key(work));
+      }
+    }
+    return replaced;
+  }
+
+  /** Creates the key of the document of the given work.
+   * @param work the lucene work, cannot be null.
+   * @return the key, never null.
+   */
+  private static String key(final LuceneWork work) {
+    return work.getEntityClass().getName() + "#" + work.getIdInString();
+  }
+
   /** Performs the creation/update of an entity.
+   *
+   * A document of a partitioned class can move to another partition when it
+   * replaces an existing one, and a child document to another shard if its
+   * parent changed. Such a document is deleted by id before being indexed
+   * again, unless its dirty fields tell that its partition or its parent did
+   * not change.
+   *
    * @param work the Lucene work to process.
-   * @return the index request builder for add.
+   * @param replaces whether the document replaces an existing one, whose
+   * delete was skipped.
+   * @return the index request builder for add, null if the document did not
+   * change since the last time it was sent.
    */
-  private IndexRequestBuilder handleAdd(final AddLuceneWork work) {
+  private IndexRequestBuilder handleAdd(final AddLuceneWork work,
+      final boolean replaces) {
     log.trace("Entering handleAdd");
 
-    String type = work.getEntityClass().getName();
+    Class<?> entityClass = work.getEntityClass();
+    String type = entityClass.getName();
     String id = work.getIdInString();
     String indexName = getIndexName(work);
 
@@ -143,23 +399,86 @@ public class ElasticSearchBackendQueue implements Runnable {
         new String[] {type, id, indexName});
 
     try {
-      XContentBuilder builder = XContentFactory.jsonBuilder();
-      builder.startObject();
       Document document = work.getDocument();
+      Set<String> dirtyFields = DirtyFieldRegistry.consume(type, id);
+      // the fingerprints of the partitioned classes are kept by alias, as
+      // the partition of a deleted document is unknown.
+      String fingerprintIndex = indexName;
+      IndexNamingStrategy naming;
+      naming = ElasticSearchUtils.getIndexNaming(entityClass);
+      boolean moves = false;
+      if (naming.isPartitioned(entityClass)) {
+        indexName = naming.getIndexName(entityClass, document);
+        log.debug("Routing: {} with id: {} to the partition: {}",
+            new String[] {type, id, indexName});
+        ElasticsearchIndexManager.ensurePartition(entityClass, indexName,
+            elasticSearchClient);
+        moves = replaces && !keepsPartition(entityClass, dirtyFields);
+      } else if (entityClass.isAnnotationPresent(ParentDocument.class)) {
+        moves = replaces && !keepsParent(entityClass, dirtyFields);
+      }
+      if (moves) {
+        // the document is deleted first, so the partial update cannot apply.
+        dirtyFields = null;
+      }
+      XContentBuilder builder = encoding.newBuilder();
+      builder.startObject();
+      List<EmbeddedCollection> embedded;
+      embedded = EmbeddedCollection.forClass(entityClass);
       log.debug("starting document");
-      for (Fieldable fieldable : document.getFields()) {
-        String name = fieldable.name();
-        String value = fieldable.stringValue();
-        log.debug("adding the field: {}, {}", name, value);
-        builder.field(name, value);
+      if (embedded.isEmpty()) {
+        for (Fieldable fieldable : document.getFields()) {
+          String name = fieldable.name();
+          String value = fieldable.stringValue();
+          log.debug("adding the field: {}, {}", name, value);
+          builder.field(name, value);
+        }
+      } else {
+        addFields(builder, document, embedded);
       }
       log.debug("finish document");
       builder.endObject();
+
+      if (fingerprints != null) {
+        long fingerprint = DocumentFingerprintCache.fingerprint(
+            builder.bytes());
+        if (fingerprints.checkAndPut(fingerprintIndex, type, id,
+            fingerprint)) {
+          log.debug("The document: {} with id: {} did not change, skipping",
+              type, id);
+          log.trace("Leaving handleAdd");
+          return null;
+        }
+      }
+
+      if (moves) {
+        log.debug("Deleting the former copy of: {} with id: {}", type, id);
+        deleteByQuery(entityClass, type, id).actionGet();
+      }
+
       IndexRequestBuilder indexRequestBuilder;
       indexRequestBuilder = elasticSearchClient.prepareIndex(
           indexName, type, id);
       indexRequestBuilder.setSource(builder);
 
+      String parent = getParentId(entityClass, document);
+      if (parent != null) {
+        indexRequestBuilder.setParent(parent);
+      }
+
+      long ttl = ElasticSearchUtils.getTimeToLive(entityClass);
+      if (ttl > 0) {
+        indexRequestBuilder.setTTL(ttl);
+      }
+
+      if (dirtyFields != null) {
+        update(document, indexName, type, id, parent, dirtyFields,
+            new WholeDocumentFallback(indexRequestBuilder, fingerprintIndex,
+              type, id));
+        log.trace("Leaving handleAdd");
+        return null;
+      }
+
       log.trace("Leaving handleAdd");
 
       return indexRequestBuilder;
@@ -168,32 +487,421 @@ public class ElasticSearchBackendQueue implements Runnable {
     }
   }
 
+  /** Prepares a partial update of the entity with only the given fields, it's
+   * sent by {@link #sendUpdates()}.
+   * @param document the whole document.
+   * @param indexName the index name.
+   * @param type the document type.
+   * @param id the document id.
+   * @param parent the id of the parent document, null if it has no parent.
+   * @param fields the names of the fields that changed.
+   * @param fallback the fallback that sends the whole document if the
+   * partial update fails.
+   * @throws IOException if the partial document cannot be created.
+   */
+  private void update(final Document document, final String indexName,
+      final String type, final String id, final String parent,
+      final Set<String> fields, final WholeDocumentFallback fallback)
+      throws IOException {
+
+    log.debug("Updating the fields: {} of: {} with id: {}",
+        new Object[] {fields, type, id});
+
+    Set<String> missing = new HashSet<String>(fields);
+    XContentBuilder builder = encoding.newBuilder();
+    builder.startObject();
+    for (Fieldable fieldable : document.getFields()) {
+      String name = fieldable.name();
+      if (fields.contains(name)) {
+        builder.field(name, fieldable.stringValue());
+        missing.remove(name);
+      }
+    }
+    // the fields that are not in the document anymore were set to null.
+    for (String name : missing) {
+      builder.nullField(name);
+    }
+    builder.endObject();
+
+    UpdateRequestBuilder updateRequest;
+    updateRequest = elasticSearchClient.prepareUpdate(indexName, type, id);
+    updateRequest.setDoc(builder);
+    if (parent != null) {
+      updateRequest.setParent(parent);
+    }
+
+    updates.put(updateRequest, fallback);
+  }
+
+  /** Sends the partial updates of this queue.
+   * @return the futures of the updates, never null.
+   */
+  private List<Future<?>> sendUpdates() {
+    List<Future<?>> futures = new LinkedList<Future<?>>();
+    for (Map.Entry<UpdateRequestBuilder, WholeDocumentFallback> update
+        : updates.entrySet()) {
+      ListenableActionFuture<UpdateResponse> future;
+      future = update.getKey().execute();
+      future.addListener(update.getValue());
+      futures.add(future);
+    }
+    return futures;
+  }
+
   /** Deletes the given lucene work.
    * @param work the Lucene work to delete.
    */
   private void delete(final DeleteLuceneWork work) {
     log.trace("Entering handleDelete");
 
-    String type = work.getEntityClass().getName();
+    Class<?> entityClass = work.getEntityClass();
+    String type = entityClass.getName();
     String id = work.getIdInString();
     String indexName = getIndexName(work);
 
     log.debug("Deleting: {} with id: {} within the index: {}",
         new String[] {type, id, indexName});
 
-    DeleteRequestBuilder builder;
-    builder = elasticSearchClient.prepareDelete(indexName, type, id);
-    builder.execute();
+    if (fingerprints != null) {
+      fingerprints.remove(indexName, type, id);
+    }
+    DirtyFieldRegistry.consume(type, id);
+
+    IndexNamingStrategy naming;
+    naming = ElasticSearchUtils.getIndexNaming(entityClass);
+    if (naming.isPartitioned(entityClass)
+        || entityClass.isAnnotationPresent(ParentDocument.class)) {
+      deleteByQuery(entityClass, type, id);
+    } else {
+      DeleteRequestBuilder builder;
+      builder = elasticSearchClient.prepareDelete(indexName, type, id);
+      builder.execute();
+    }
 
     log.trace("Leaving handleDelete");
   }
 
+  /** Deletes the given document by query, from every partition of a
+   * partitioned class, or from every shard of a child document.
+   *
+   * The partition of the document and the id of its parent, that routes
+   * child documents, are unknown here.
+   *
+   * @param entityClass the entity class, cannot be null.
+   * @param type the document type, cannot be null.
+   * @param id the document id, cannot be null.
+   * @return the future of the delete, never null.
+   */
+  private ListenableActionFuture<?> deleteByQuery(final Class<?> entityClass,
+      final String type, final String id) {
+    IndexNamingStrategy naming;
+    naming = ElasticSearchUtils.getIndexNaming(entityClass);
+    return elasticSearchClient.prepareDeleteByQuery(
+        naming.getSearchIndices(entityClass, null)).setTypes(type)
+        .setQuery(QueryBuilders.idsQuery(type).addIds(id)).execute();
+  }
+
+  /** Checks if the given dirty fields tell that the partition of the
+   * document did not change.
+   * @param entityClass the partitioned class, cannot be null.
+   * @param dirtyFields the changed fields, null if they are unknown.
+   * @return true if the date field of a {@link TimePartitioned} class did
+   * not change.
+   */
+  private static boolean keepsPartition(final Class<?> entityClass,
+      final Set<String> dirtyFields) {
+    TimePartitioned partitioned;
+    partitioned = entityClass.getAnnotation(TimePartitioned.class);
+    return partitioned != null && dirtyFields != null
+        && !dirtyFields.contains(partitioned.field());
+  }
+
+  /** Checks if the given dirty fields tell that the parent of the child
+   * document did not change.
+   * @param entityClass the child class, cannot be null.
+   * @param dirtyFields the changed fields, null if they are unknown.
+   * @return true if the parent field of a {@link ParentDocument} class did
+   * not change.
+   */
+  private static boolean keepsParent(final Class<?> entityClass,
+      final Set<String> dirtyFields) {
+    ParentDocument parent = entityClass.getAnnotation(ParentDocument.class);
+    return parent != null && dirtyFields != null
+        && !dirtyFields.contains(parent.field());
+  }
+
+  /** Adds the fields of the given document, writing the fields of the nested
+   * collections as arrays of objects and leaving out the fields of the child
+   * collections, that are indexed as documents on their own.
+   *
+   * The fields of each element of a nested collection start with the marker
+   * field written by hibernate search, see
+   * {@link EmbeddedCollection#markElements}.
+   *
+   * @param builder the document builder, cannot be null.
+   * @param document the lucene document, cannot be null.
+   * @param embedded the nested and child collections of the entity, cannot
+   * be null.
+   * @throws IOException if the fields cannot be written.
+   */
+  private void addFields(final XContentBuilder builder,
+      final Document document, final List<EmbeddedCollection> embedded)
+      throws IOException {
+    Map<EmbeddedCollection, List<Map<String, List<String>>>> nested;
+    nested = new LinkedHashMap<EmbeddedCollection,
+        List<Map<String, List<String>>>>();
+    for (Fieldable fieldable : document.getFields()) {
+      String name = fieldable.name();
+      String value = fieldable.stringValue();
+      EmbeddedCollection collection = null;
+      for (EmbeddedCollection candidate : embedded) {
+        if (name.startsWith(candidate.getPrefix())) {
+          collection = candidate;
+          break;
+        }
+      }
+      if (collection == null) {
+        log.debug("adding the field: {}, {}", name, value);
+        builder.field(name, value);
+      } else if (collection.isNested()) {
+        List<Map<String, List<String>>> elements = nested.get(collection);
+        if (elements == null) {
+          elements = new LinkedList<Map<String, List<String>>>();
+          nested.put(collection, elements);
+        }
+        boolean marker = name.equals(collection.getElementMarker());
+        if (marker || elements.isEmpty()) {
+          elements.add(new LinkedHashMap<String, List<String>>());
+        }
+        if (marker) {
+          continue;
+        }
+        log.debug("adding the nested field: {}, {}", name, value);
+        Map<String, List<String>> element;
+        element = elements.get(elements.size() - 1);
+        String key = name.substring(collection.getPrefix().length());
+        List<String> values = element.get(key);
+        if (values == null) {
+          values = new LinkedList<String>();
+          element.put(key, values);
+        }
+        values.add(value);
+      }
+    }
+    for (Map.Entry<EmbeddedCollection, List<Map<String, List<String>>>> entry
+        : nested.entrySet()) {
+      builder.startArray(entry.getKey().getPath());
+      for (Map<String, List<String>> element : entry.getValue()) {
+        builder.startObject();
+        for (Map.Entry<String, List<String>> field : element.entrySet()) {
+          List<String> values = field.getValue();
+          if (values.size() == 1) {
+            builder.field(field.getKey(), values.get(0));
+          } else {
+            builder.array(field.getKey(),
+                values.toArray(new String[values.size()]));
+          }
+        }
+        builder.endObject();
+      }
+      builder.endArray();
+    }
+  }
+
+  /** Retrieves the id of the parent document of the given document.
+   * @param entityClass the entity class, cannot be null.
+   * @param document the lucene document, cannot be null.
+   * @return the parent id, null if the entity is not a child document.
+   */
+  private String getParentId(final Class<?> entityClass,
+      final Document document) {
+    ParentDocument parent = entityClass.getAnnotation(ParentDocument.class);
+    if (parent == null) {
+      return null;
+    }
+    String parentId = document.get(parent.field());
+    if (parentId == null) {
+      log.warn("The child document: {} has no parent in the field: {}",
+          entityClass.getName(), parent.field());
+    }
+    return parentId;
+  }
+
   /** Retrieves the index name given by the lucene work.
+   *
+   * It's the alias of every partition for the partitioned classes, the add
+   * works are routed to their partition by {@link #handleAdd}.
+   *
    * @param work the lucene work.
    * @return the string name of the index.
    */
   private String getIndexName(final LuceneWork work) {
-    return ElasticSearchUtils.getIndexName(work.getEntityClass());
+    return getIndexName(work.getEntityClass());
+  }
+
+  /** Retrieves the index name of the given class, see
+   * {@link #getIndexName(LuceneWork)}.
+   * @param entityClass the indexed class.
+   * @return the string name of the index.
+   */
+  private String getIndexName(final Class<?> entityClass) {
+    IndexNamingStrategy naming;
+    naming = ElasticSearchUtils.getIndexNaming(entityClass);
+    if (naming.isPartitioned(entityClass)) {
+      return naming.getSearchIndices(entityClass, null)[0];
+    }
+    return ElasticSearchUtils.getIndexName(entityClass);
+  }
+
+  /** Sends the whole document when elasticsearch could not apply a partial
+   * update because the document is missing, ie: it was never indexed.
+   *
+   * When the partial update or the whole document fail otherwise, the
+   * failure is logged and the fingerprint of the document is forgotten, so
+   * the next write of the same document is not skipped.
+   */
+  private final class WholeDocumentFallback
+      implements ActionListener<UpdateResponse> {
+
+    /** The request that sends the whole document, it's never null.*/
+    private final IndexRequestBuilder wholeDocument;
+
+    /** The index of the fingerprint of the document, it's never null.*/
+    private final String fingerprintIndex;
+
+    /** The document type, it's never null.*/
+    private final String type;
+
+    /** The document id, it's never null.*/
+    private final String id;
+
+    /** Creates a new fallback.
+     * @param request the request that sends the whole document.
+     * @param theFingerprintIndex the index of the fingerprint of the
+     * document.
+     * @param theType the document type.
+     * @param theId the document id.
+     */
+    private WholeDocumentFallback(final IndexRequestBuilder request,
+        final String theFingerprintIndex, final String theType,
+        final String theId) {
+      wholeDocument = request;
+      fingerprintIndex = theFingerprintIndex;
+      type = theType;
+      id = theId;
+    }
+
+    /** {@inheritDoc}.*/
+    public void onResponse(final UpdateResponse response) {
+      log.trace("Partial update applied");
+    }
+
+    /** {@inheritDoc}.*/
+    public void onFailure(final Throwable e) {
+      if (!(ExceptionsHelper.unwrapCause(e)
+          instanceof DocumentMissingException)) {
+        failed("The partial update", e);
+        return;
+      }
+      log.debug("The document is missing, sending the whole document", e);
+      wholeDocument.execute().addListener(
+          new ActionListener<IndexResponse>() {
+            /** {@inheritDoc}.*/
+            public void onResponse(final IndexResponse response) {
+              log.trace("Whole document indexed");
+            }
+            /** {@inheritDoc}.*/
+            public void onFailure(final Throwable failure) {
+              failed("The whole document", failure);
+            }
+          });
+    }
+
+    /** Logs the given failure and forgets the fingerprint of the document.
+     * @param request the description of the failed request.
+     * @param e the failure.
+     */
+    private void failed(final String request, final Throwable e) {
+      log.warn(request + " of: " + type + " with id: " + id + " failed", e);
+      if (fingerprints != null) {
+        fingerprints.remove(fingerprintIndex, type, id);
+      }
+    }
+  }
+
+  /** Sends the partial updates once the bulk request is done, so they apply
+   * after the documents it writes.
+   */
+  private final class UpdateSender implements ActionListener<BulkResponse> {
+
+    /** {@inheritDoc}.*/
+    public void onResponse(final BulkResponse response) {
+      sendUpdates();
+    }
+
+    /** {@inheritDoc}.*/
+    public void onFailure(final Throwable e) {
+      sendUpdates();
+    }
+  }
+
+  /** Invalidates the cached searches of the written indices again once the
+   * bulk request is done.
+   */
+  private final class QueryCacheEviction
+      implements ActionListener<BulkResponse> {
+
+    /** The indices written by the bulk request, it's never null.*/
+    private final Set<String> indices;
+
+    /** Creates a new eviction.
+     * @param writtenIndices the indices written by the bulk request, as
+     * named by the query result cache.
+     */
+    private QueryCacheEviction(final Set<String> writtenIndices) {
+      indices = writtenIndices;
+    }
+
+    /** {@inheritDoc}.*/
+    public void onResponse(final BulkResponse response) {
+      invalidate(indices);
+    }
+
+    /** {@inheritDoc}.*/
+    public void onFailure(final Throwable e) {
+      invalidate(indices);
+    }
+  }
+
+  /** Forgets the fingerprints of the documents that elasticsearch could not
+   * index, so they are sent again the next time.
+   */
+  private final class FingerprintEviction
+      implements ActionListener<BulkResponse> {
+
+    /** {@inheritDoc}.*/
+    public void onResponse(final BulkResponse response) {
+      if (response.hasFailures()) {
+        for (BulkItemResponse item : response.items()) {
+          if (item.isFailed()) {
+            Class<?> type = ElasticSearchUtils.getClassByName(item.getType());
+            fingerprints.remove(getIndexName(type), item.getType(),
+                item.getId());
+          }
+        }
+      }
+    }
+
+    /** {@inheritDoc}.*/
+    public void onFailure(final Throwable e) {
+      log.warn("The bulk request failed", e);
+      for (LuceneWork work : works) {
+        if (work instanceof AddLuceneWork) {
+          fingerprints.remove(getIndexName(work),
+              work.getEntityClass().getName(), work.getIdInString());
+        }
+      }
+    }
   }
 
 }
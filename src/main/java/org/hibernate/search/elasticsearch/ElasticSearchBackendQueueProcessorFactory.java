@@ -5,9 +5,12 @@ import java.util.Properties;
 
 import org.elasticsearch.client.Client;
 import org.hibernate.search.backend.LuceneWork;
+import org.hibernate.search.backend.configuration.ConfigurationParseHelper;
 import org.hibernate.search.backend.impl.lucene
   .LuceneBackendQueueProcessorFactory;
+import org.hibernate.search.engine.DocumentBuilderIndexedEntity;
 import org.hibernate.search.spi.WorkerBuildContext;
+import org.hibernate.search.store.DirectoryProvider;
 
 /** Factory for the elastic search backend queue processor.
  * @author waabox (waabox[at]gmail[dot]com)
@@ -20,11 +23,83 @@ public class ElasticSearchBackendQueueProcessorFactory
    */
   private Client client;
 
+  /** The fingerprints of the documents already sent, null if the cache is
+   * disabled.
+   */
+  private DocumentFingerprintCache fingerprints;
+
+  /** The queue of the deferred ContainedIn cascades, null if the cascades
+   * are sent within the commit.
+   */
+  private ContainedInReindexQueue cascades;
+
+  /** The hits of the last searches, null if the cache is disabled.*/
+  private volatile QueryResultCache queryCache;
+
+  /** The encoding of the documents, it's never null.*/
+  private DocumentEncoding encoding = DocumentEncoding.JSON;
+
   /** {@inheritDoc}. */
   public void initialize(final Properties hibernateSearchProperties,
       final WorkerBuildContext context) {
     if (ElasticSearchClientFactory.isActive()) {
       client = ElasticSearchClientFactory.getClient();
+      encoding = DocumentEncoding.fromName(hibernateSearchProperties
+          .getProperty(ElasticSearchEnvironment.DOCUMENT_ENCODING));
+      int size = ConfigurationParseHelper.getIntValue(
+          hibernateSearchProperties,
+          ElasticSearchEnvironment.FINGERPRINT_CACHE_SIZE,
+          ElasticSearchEnvironment.DEFAULT_FINGERPRINT_CACHE_SIZE);
+      if (size > 0) {
+        fingerprints = new DocumentFingerprintCache(size);
+      } else {
+        fingerprints = null;
+      }
+      int cacheSize = ConfigurationParseHelper.getIntValue(
+          hibernateSearchProperties,
+          ElasticSearchEnvironment.QUERY_CACHE_SIZE, 0);
+      if (cacheSize > 0) {
+        int ttl = ConfigurationParseHelper.getIntValue(
+            hibernateSearchProperties,
+            ElasticSearchEnvironment.QUERY_CACHE_TTL,
+            ElasticSearchEnvironment.DEFAULT_QUERY_CACHE_TTL);
+        int refreshInterval = ConfigurationParseHelper.getIntValue(
+            hibernateSearchProperties,
+            ElasticSearchEnvironment.QUERY_CACHE_REFRESH_INTERVAL,
+            ElasticSearchEnvironment.DEFAULT_QUERY_CACHE_REFRESH_INTERVAL);
+        queryCache = new QueryResultCache(1024L * cacheSize, ttl,
+            refreshInterval);
+      } else {
+        queryCache = null;
+      }
+      int delay = ConfigurationParseHelper.getIntValue(
+          hibernateSearchProperties,
+          ElasticSearchEnvironment.CASCADE_DELAY,
+          ElasticSearchEnvironment.DEFAULT_CASCADE_DELAY);
+      if (delay > 0) {
+        int chunkSize = ConfigurationParseHelper.getIntValue(
+            hibernateSearchProperties,
+            ElasticSearchEnvironment.CASCADE_CHUNK_SIZE,
+            ElasticSearchEnvironment.DEFAULT_CASCADE_CHUNK_SIZE);
+        int maxPending = ConfigurationParseHelper.getIntValue(
+            hibernateSearchProperties,
+            ElasticSearchEnvironment.CASCADE_MAX_PENDING,
+            ElasticSearchEnvironment.DEFAULT_CASCADE_MAX_PENDING);
+        boolean local;
+        local = ElasticSearchClientFactory.instance().isLocalInstance();
+        cascades = new ContainedInReindexQueue(client, delay, chunkSize,
+            maxPending, local, fingerprints, encoding, queryCache);
+      }
+      // the document builders exist, but no document was built yet.
+      for (DirectoryProvider<?> provider : context.getDirectoryProviders()) {
+        for (Class<?> type : context.getClassesInDirectoryProvider(provider)) {
+          DocumentBuilderIndexedEntity<?> builder;
+          builder = context.getDocumentBuilderIndexedEntity(type);
+          if (builder != null) {
+            EmbeddedCollection.markElements(builder);
+          }
+        }
+      }
     } else {
       super.initialize(hibernateSearchProperties, context);
     }
@@ -35,18 +110,49 @@ public class ElasticSearchBackendQueueProcessorFactory
     if (ElasticSearchClientFactory.isActive()) {
       boolean local;
       local = ElasticSearchClientFactory.instance().isLocalInstance();
-      return new ElasticSearchBackendQueue(queue, client, local);
+      return new ElasticSearchBackendQueue(queue, client, local, fingerprints,
+          cascades, encoding, queryCache);
     } else {
       return super.getProcessor(queue);
     }
   }
 
+  /** Retrieves the cache of the hits of the last searches, that the queues
+   * of this factory invalidate.
+   * @return the cache, null if it's disabled.
+   */
+  QueryResultCache getQueryCache() {
+    return queryCache;
+  }
+
+  /** Replaces the cache of the hits of the last searches, ie: to enable it
+   * in the tests.
+   * @param cache the cache, null to disable it.
+   */
+  void setQueryCache(final QueryResultCache cache) {
+    queryCache = cache;
+  }
+
   /** {@inheritDoc}. */
   public void close() {
     if (ElasticSearchClientFactory.isActive()) {
+      if (cascades != null) {
+        cascades.close();
+      }
+      queryCache = null;
       ElasticSearchClientFactory.destroy();
     } else {
       super.close();
     }
   }
+
+  /** Forgets the fingerprints of every document sent, so the next change of
+   * any entity is sent to elasticsearch. It must be invoked when the indices
+   * are re-created.
+   */
+  void clearFingerprints() {
+    if (fingerprints != null) {
+      fingerprints.clear();
+    }
+  }
 }
@@ -0,0 +1,448 @@
+package org.hibernate.search.elasticsearch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.search.engine.SearchFactoryImplementor;
+import org.hibernate.search.query.engine.spi.EntityInfo;
+import org.hibernate.search.query.engine.spi.TimeoutManager;
+import org.hibernate.search.query.hibernate.impl.Loader;
+import org.hibernate.search.query.hibernate.impl.ObjectsInitializer;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Loads the entities of the hits from the session, the second level cache
+ * and the database, in that order.
+ *
+ * The entities that are already in the persistence context of the session,
+ * or in the second level cache, do not go to the database. The remaining
+ * ones are fetched by id, with one query per class and chunk of
+ * {@link #CHUNK_SIZE} ids, so a page of hits costs a query per class instead
+ * of a query per hit. The entities are returned in the order of the hits,
+ * and the hits whose entity was deleted from the database are skipped.
+ *
+ * The queries can enable a fetch profile and join fetch association paths,
+ * so the associations of a page of hits are loaded with the entities. The
+ * entities taken from the session or the cache keep their associations as
+ * they are. The query of each class only joins the paths that start at
+ * that class, so a search across several classes can join the associations
+ * of each one.
+ *
+ * The entities can be loaded read only, so the session keeps no snapshot
+ * of them and does not dirty check them, or through a stateless session, so
+ * they are not attached to the session at all. The entities of the last
+ * batch are kept by this loader, and the entities that the last batch
+ * attached to the session can be evicted when the next batch is loaded, so
+ * iterating a large result keeps a single batch in the session.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchBatchLoader implements Loader {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(
+      ElasticSearchBatchLoader.class);
+
+  /** The max number of ids of each query, the databases limit the size of
+   * the in lists.
+   */
+  private static final int CHUNK_SIZE = 500;
+
+  /** The session, it's never null.*/
+  private final SessionImplementor session;
+
+  /** The fetch profile enabled while the entities are fetched, null for
+   * none.
+   */
+  private final String fetchProfile;
+
+  /** The association paths join fetched with the entities, it's never
+   * null.
+   */
+  private final List<String> fetchPaths;
+
+  /** Checks if the entities attached by this loader are read only.*/
+  private final boolean readOnly;
+
+  /** Checks if the entities are fetched through a stateless session.*/
+  private final boolean stateless;
+
+  /** Checks if the entities attached by a batch are evicted from the
+   * session when the next batch is loaded.
+   */
+  private final boolean evictBatches;
+
+  /** The entities of the last batch by key, it's never null.*/
+  private final Map<EntityKey, Object> batch =
+      new HashMap<EntityKey, Object>();
+
+  /** The entities that the last batch attached to the session, it's never
+   * null.
+   */
+  private final List<Object> attached = new LinkedList<Object>();
+
+  /** Creates a new loader.
+   * @param theSession the session, cannot be null.
+   * @param theFetchProfile the fetch profile enabled while the entities are
+   * fetched, null for none. It's not enabled for the stateless sessions.
+   * @param theFetchPaths the association paths join fetched with the
+   * entities, cannot be null.
+   * @param isReadOnly true to attach the entities read only.
+   * @param isStateless true to fetch the entities through a stateless
+   * session opened on the connection of the session.
+   * @param isEvictBatches true to evict the entities that a batch attached
+   * to the session when the next batch is loaded.
+   */
+  ElasticSearchBatchLoader(final SessionImplementor theSession,
+      final String theFetchProfile, final List<String> theFetchPaths,
+      final boolean isReadOnly, final boolean isStateless,
+      final boolean isEvictBatches) {
+    Validate.notNull(theSession, "The session cannot be null");
+    Validate.notNull(theFetchPaths, "The fetch paths cannot be null");
+    session = theSession;
+    fetchProfile = theFetchProfile;
+    fetchPaths = new ArrayList<String>(theFetchPaths);
+    readOnly = isReadOnly;
+    stateless = isStateless;
+    evictBatches = isEvictBatches;
+  }
+
+  /** {@inheritDoc}.
+   * The loader is initialized with its session, so this does nothing.
+   */
+  public void init(final Session theSession,
+      final SearchFactoryImplementor searchFactory,
+      final ObjectsInitializer objectsInitializer,
+      final TimeoutManager timeoutManager) {
+  }
+
+  /** {@inheritDoc}.*/
+  public Object load(final EntityInfo entityInfo) {
+    return loadWithoutTiming(entityInfo);
+  }
+
+  /** {@inheritDoc}.
+   * The entities of the last batch are not loaded again.
+   */
+  public Object loadWithoutTiming(final EntityInfo entityInfo) {
+    Object entity = batch.get(getKey(entityInfo));
+    if (entity != null) {
+      return entity;
+    }
+    if (stateless) {
+      StatelessSession statelessSession = openStatelessSession();
+      try {
+        return statelessSession.get(entityInfo.getClazz(),
+            entityInfo.getId());
+      } finally {
+        statelessSession.close();
+      }
+    }
+    return attach(((Session) session).get(entityInfo.getClazz(),
+        entityInfo.getId()));
+  }
+
+  /** {@inheritDoc}.
+   * The result keeps the order of the entity infos.
+   */
+  @SuppressWarnings("rawtypes")
+  public List load(final EntityInfo... entityInfos) {
+    if (evictBatches) {
+      for (Object entity : attached) {
+        ((Session) session).evict(entity);
+      }
+    }
+    attached.clear();
+    batch.clear();
+
+    Object[] entities = new Object[entityInfos.length];
+
+    // the positions of the hits that are not cached, by class and id.
+    Map<Class<?>, Map<Serializable, List<Integer>>> missing;
+    missing = new LinkedHashMap<Class<?>, Map<Serializable, List<Integer>>>();
+
+    for (int i = 0; i < entityInfos.length; i++) {
+      entities[i] = getCached(entityInfos[i]);
+      if (entities[i] == null) {
+        Map<Serializable, List<Integer>> positions;
+        positions = missing.get(entityInfos[i].getClazz());
+        if (positions == null) {
+          positions = new LinkedHashMap<Serializable, List<Integer>>();
+          missing.put(entityInfos[i].getClazz(), positions);
+        }
+        List<Integer> position = positions.get(entityInfos[i].getId());
+        if (position == null) {
+          position = new LinkedList<Integer>();
+          positions.put(entityInfos[i].getId(), position);
+        }
+        position.add(i);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      if (stateless) {
+        fetchStateless(missing, entities);
+      } else {
+        fetch(missing, entities);
+      }
+    }
+
+    List<Object> result = new ArrayList<Object>(entityInfos.length);
+    for (int i = 0; i < entities.length; i++) {
+      if (entities[i] != null) {
+        batch.put(getKey(entityInfos[i]), entities[i]);
+        result.add(entities[i]);
+      }
+    }
+    return result;
+  }
+
+  /** Retrieves the entity of the given hit from the persistence context or
+   * the second level cache. The stateless sessions do not use the second
+   * level cache.
+   * @param entityInfo the hit, cannot be null.
+   * @return the entity, null if it's in none of them.
+   */
+  private Object getCached(final EntityInfo entityInfo) {
+    Object entity = session.getPersistenceContext().getEntity(
+        getKey(entityInfo));
+    if (entity != null) {
+      return session.getPersistenceContext().proxyFor(entity);
+    }
+    if (!stateless && getPersister(entityInfo.getClazz()).hasCache()
+        && session.getFactory().getCache().containsEntity(
+            entityInfo.getClazz(), entityInfo.getId())) {
+      return attach(((Session) session).get(entityInfo.getClazz(),
+          entityInfo.getId()));
+    }
+    return null;
+  }
+
+  /** Fetches the missing entities through the session, with the fetch
+   * profile enabled.
+   * @param missing the positions of the hits by class and id, cannot be
+   * null.
+   * @param entities the entities in the order of the hits, cannot be null.
+   */
+  private void fetch(
+      final Map<Class<?>, Map<Serializable, List<Integer>>> missing,
+      final Object[] entities) {
+    Session theSession = (Session) session;
+    boolean enableProfile = fetchProfile != null
+        && !theSession.isFetchProfileEnabled(fetchProfile);
+    if (enableProfile) {
+      theSession.enableFetchProfile(fetchProfile);
+    }
+    try {
+      for (Map.Entry<Class<?>, Map<Serializable, List<Integer>>> entry
+          : missing.entrySet()) {
+        fetch(entry.getKey(), entry.getValue(), entities, null);
+      }
+    } finally {
+      if (enableProfile) {
+        theSession.disableFetchProfile(fetchProfile);
+      }
+    }
+  }
+
+  /** Fetches the missing entities through a stateless session.
+   * @param missing the positions of the hits by class and id, cannot be
+   * null.
+   * @param entities the entities in the order of the hits, cannot be null.
+   */
+  private void fetchStateless(
+      final Map<Class<?>, Map<Serializable, List<Integer>>> missing,
+      final Object[] entities) {
+    StatelessSession statelessSession = openStatelessSession();
+    try {
+      for (Map.Entry<Class<?>, Map<Serializable, List<Integer>>> entry
+          : missing.entrySet()) {
+        fetch(entry.getKey(), entry.getValue(), entities, statelessSession);
+      }
+    } finally {
+      statelessSession.close();
+    }
+  }
+
+  /** Fetches the entities of the given class from the database, in chunks
+   * of ids, and puts them in the positions of their hits.
+   * @param type the class of the entities, cannot be null.
+   * @param positions the positions of the hits by id, cannot be null.
+   * @param entities the entities in the order of the hits, cannot be null.
+   * @param statelessSession the stateless session that fetches the
+   * entities, null to fetch them through the session.
+   */
+  private void fetch(final Class<?> type,
+      final Map<Serializable, List<Integer>> positions,
+      final Object[] entities, final StatelessSession statelessSession) {
+    EntityPersister persister = getPersister(type);
+    String idProperty = persister.getIdentifierPropertyName();
+    if (idProperty == null) {
+      // an embedded composite id cannot go in an in list.
+      for (Map.Entry<Serializable, List<Integer>> entry
+          : positions.entrySet()) {
+        Object entity;
+        if (statelessSession == null) {
+          entity = attach(((Session) session).get(type, entry.getKey()));
+        } else {
+          entity = statelessSession.get(type, entry.getKey());
+        }
+        for (int position : entry.getValue()) {
+          entities[position] = entity;
+        }
+      }
+      return;
+    }
+    List<String> paths = getFetchPaths(persister);
+    List<Serializable> ids = new ArrayList<Serializable>(positions.keySet());
+    for (int start = 0; start < ids.size(); start += CHUNK_SIZE) {
+      List<Serializable> chunk;
+      chunk = ids.subList(start, Math.min(ids.size(), start + CHUNK_SIZE));
+      log.debug("Loading {} entities of {}", chunk.size(), type.getName());
+      Criteria criteria;
+      if (statelessSession == null) {
+        criteria = ((Session) session).createCriteria(type);
+        if (readOnly) {
+          criteria.setReadOnly(true);
+        }
+      } else {
+        criteria = statelessSession.createCriteria(type);
+      }
+      criteria.add(Restrictions.in(idProperty, chunk));
+      for (String path : paths) {
+        criteria.setFetchMode(path, FetchMode.JOIN);
+      }
+      for (Object loaded : criteria.list()) {
+        List<Integer> position;
+        position = positions.get(persister.getIdentifier(loaded, session));
+        if (position == null || entities[position.get(0)] != null) {
+          // the joined collections repeat the entity.
+          continue;
+        }
+        Object entity = loaded;
+        if (statelessSession == null) {
+          entity = session.getPersistenceContext().proxyFor(loaded);
+          attached.add(entity);
+        }
+        for (int i : position) {
+          entities[i] = entity;
+        }
+      }
+    }
+  }
+
+  /** Keeps the given entity, just attached to the session, as attached by
+   * this loader, and makes it read only if this loader is read only.
+   * @param entity the entity, can be null.
+   * @return the entity.
+   */
+  private Object attach(final Object entity) {
+    if (entity != null) {
+      if (readOnly) {
+        ((Session) session).setReadOnly(entity, true);
+      }
+      attached.add(entity);
+    }
+    return entity;
+  }
+
+  /** Opens a stateless session on the connection of the session, so it sees
+   * the same transaction.
+   * @return the stateless session, never null.
+   */
+  private StatelessSession openStatelessSession() {
+    return session.getFactory().openStatelessSession(session.connection());
+  }
+
+  /** Retrieves the key of the entity of the given hit.
+   * @param entityInfo the hit, cannot be null.
+   * @return the key, never null.
+   */
+  private EntityKey getKey(final EntityInfo entityInfo) {
+    return new EntityKey(entityInfo.getId(),
+        getPersister(entityInfo.getClazz()), session.getEntityMode());
+  }
+
+  /** Retrieves the fetch paths that the given persister resolves, the
+   * others belong to the other classes of the hits.
+   * @param persister the persister of the fetched class, cannot be null.
+   * @return the fetch paths of the class, never null.
+   */
+  private List<String> getFetchPaths(final EntityPersister persister) {
+    List<String> paths = new ArrayList<String>(fetchPaths.size());
+    for (String path : fetchPaths) {
+      if (resolves(persister, path)) {
+        paths.add(path);
+      } else {
+        log.debug("Skipping the fetch path {} of {}", path,
+            persister.getEntityName());
+      }
+    }
+    return paths;
+  }
+
+  /** Checks if the given association path starts at the entity of the given
+   * persister.
+   * @param persister the persister of the entity, cannot be null.
+   * @param path the association path, cannot be null.
+   * @return true if each property of the path belongs to the entity, to a
+   * component or to the associated entity of the previous property.
+   */
+  private boolean resolves(final EntityPersister persister,
+      final String path) {
+    SessionFactoryImplementor factory = session.getFactory();
+    EntityPersister current = persister;
+    String property = null;
+    for (String name : StringUtils.split(path, '.')) {
+      if (property == null) {
+        property = name;
+      } else {
+        property = property + "." + name;
+      }
+      Type type;
+      try {
+        type = current.getPropertyType(property);
+      } catch (HibernateException e) {
+        return false;
+      }
+      if (type.isCollectionType()) {
+        type = ((CollectionType) type).getElementType(factory);
+      }
+      if (type.isEntityType()) {
+        current = factory.getEntityPersister(
+            ((EntityType) type).getAssociatedEntityName());
+        property = null;
+      }
+    }
+    return true;
+  }
+
+  /** Retrieves the persister of the given class.
+   * @param type the entity class, cannot be null.
+   * @return the persister, never null.
+   */
+  private EntityPersister getPersister(final Class<?> type) {
+    return session.getFactory().getEntityPersister(type.getName());
+  }
+
+}
@@ -1,6 +1,9 @@
 package org.hibernate.search.elasticsearch;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,10 +72,36 @@ public class ElasticSearchClientFactory {
       final int elasticSearchPort,
       final List<Class<?>> hibernatePersistentClasses, final boolean local,
       final boolean active) {
+    this(elasticSearchHost, elasticSearchPort, hibernatePersistentClasses,
+        local, active, Collections.<String, String>emptyMap());
+  }
+
+  /** Creates a new instance of the elastic search client with the given
+   * transport client settings.
+   *
+   * The settings are the ones of the elasticsearch transport client, ie:
+   * transport.tcp.compress set to true compresses the requests sent to the
+   * cluster, that pays off when the bulk requests are bigger than the
+   * network can carry.
+   *
+   * @param elasticSearchHost host, cannot be null.
+   * @param elasticSearchPort port.
+   * @param hibernatePersistentClasses the hibernate mapped classes,
+   * cannot be null.
+   * @param local debug point.
+   * @param active checks if elastic search will be active or not.
+   * @param transportSettings the settings of the transport client, they are
+   * not used by the local instance, cannot be null.
+   */
+  public ElasticSearchClientFactory(final String elasticSearchHost,
+      final int elasticSearchPort,
+      final List<Class<?>> hibernatePersistentClasses, final boolean local,
+      final boolean active, final Map<String, String> transportSettings) {
 
     Validate.notNull(elasticSearchHost, "The host cannot be null");
     Validate.notNull(hibernatePersistentClasses,
         "The persistance classes cannot be null");
+    Validate.notNull(transportSettings, "The settings cannot be null");
 
     host = elasticSearchHost;
     port = elasticSearchPort;
@@ -114,7 +143,10 @@ public class ElasticSearchClientFactory {
         log.debug("Elastic search is running in production-mode");
         InetSocketTransportAddress transport;
         transport = new InetSocketTransportAddress(host, port);
-        client = new TransportClient().addTransportAddress(transport);
+        Settings settings = ImmutableSettings.settingsBuilder()
+            .put(transportSettings).build();
+        log.debug("Transport client settings: {}", settings.getAsMap());
+        client = new TransportClient(settings).addTransportAddress(transport);
       }
 
       ElasticsearchIndexManager.createIndex(persistentClasses, client);
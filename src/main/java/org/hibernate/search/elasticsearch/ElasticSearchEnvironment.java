@@ -0,0 +1,101 @@
+package org.hibernate.search.elasticsearch;
+
+/** Configuration properties understood by the elasticsearch connector.
+ *
+ * They are read from the hibernate search configuration, so they live next
+ * to hibernate.search.worker.backend within the hibernate.cfg.xml.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public final class ElasticSearchEnvironment {
+
+  /** The number of slots of the document fingerprint cache, zero disables
+   * the cache. Defaults to {@link #DEFAULT_FINGERPRINT_CACHE_SIZE}.
+   *
+   * The cache lives in this jvm, so it must only be enabled when this is the
+   * single writer of the indices: a document changed by another node, expired
+   * by its ttl, deleted by query or re-indexed from outside is still seen as
+   * sent, and its next change with the same content is lost.
+   */
+  public static final String FINGERPRINT_CACHE_SIZE =
+      "hibernate.search.elasticsearch.fingerprint_cache_size";
+
+  /** The default number of slots of the document fingerprint cache, zero,
+   * so the cache is opt-in.
+   */
+  public static final int DEFAULT_FINGERPRINT_CACHE_SIZE = 0;
+
+  /** The ms to wait before sending the documents re-indexed by a
+   * ContainedIn cascade, zero sends them within the commit. It only applies
+   * when the {@link ElasticSearchIndexEventListener} is registered. Defaults
+   * to {@link #DEFAULT_CASCADE_DELAY}.
+   *
+   * The deferred documents are kept in memory until they are sent, so they
+   * are lost if the jvm stops before.
+   */
+  public static final String CASCADE_DELAY =
+      "hibernate.search.elasticsearch.cascade_delay";
+
+  /** The default ms to wait before sending the deferred cascades, zero, so
+   * the cascades are deferred only when asked.
+   */
+  public static final int DEFAULT_CASCADE_DELAY = 0;
+
+  /** The max number of deferred cascade documents sent within a single bulk
+   * request. Defaults to {@link #DEFAULT_CASCADE_CHUNK_SIZE}.
+   */
+  public static final String CASCADE_CHUNK_SIZE =
+      "hibernate.search.elasticsearch.cascade_chunk_size";
+
+  /** The default number of deferred documents of each bulk request.*/
+  public static final int DEFAULT_CASCADE_CHUNK_SIZE = 100;
+
+  /** The max number of deferred cascade documents kept in memory, the next
+   * cascades are sent within the commit until the pending ones are sent.
+   * Defaults to {@link #DEFAULT_CASCADE_MAX_PENDING}.
+   */
+  public static final String CASCADE_MAX_PENDING =
+      "hibernate.search.elasticsearch.cascade_max_pending";
+
+  /** The default max number of pending deferred documents.*/
+  public static final int DEFAULT_CASCADE_MAX_PENDING = 10000;
+
+  /** The encoding of the documents sent to elasticsearch, json or smile.
+   * Defaults to json.
+   */
+  public static final String DOCUMENT_ENCODING =
+      "hibernate.search.elasticsearch.document_encoding";
+
+  /** The max memory of the query result cache, in kilobytes, zero disables
+   * the cache. Defaults to zero, see {@link QueryResultCache}.
+   */
+  public static final String QUERY_CACHE_SIZE =
+      "hibernate.search.elasticsearch.query_cache_size";
+
+  /** The ms each search is kept by the query result cache. Defaults to
+   * {@link #DEFAULT_QUERY_CACHE_TTL}.
+   */
+  public static final String QUERY_CACHE_TTL =
+      "hibernate.search.elasticsearch.query_cache_ttl";
+
+  /** The default ms each search is kept by the query result cache.*/
+  public static final int DEFAULT_QUERY_CACHE_TTL = 60000;
+
+  /** The ms elasticsearch takes to show the writes to the searches, the
+   * refresh_interval of the indices. The query result cache does not keep
+   * the searches sent within this time after a write. Defaults to
+   * {@link #DEFAULT_QUERY_CACHE_REFRESH_INTERVAL}.
+   */
+  public static final String QUERY_CACHE_REFRESH_INTERVAL =
+      "hibernate.search.elasticsearch.query_cache_refresh_interval";
+
+  /** The default ms elasticsearch takes to show the writes, as the default
+   * refresh_interval of an index.
+   */
+  public static final int DEFAULT_QUERY_CACHE_REFRESH_INTERVAL = 1000;
+
+  /** Utility class constructor.*/
+  private ElasticSearchEnvironment() {
+  }
+
+}
@@ -0,0 +1,334 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.OrFilterBuilder;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearch.search.facet.Facets;
+import org.elasticsearch.search.facet.filter.FilterFacet;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.hibernate.HibernateException;
+import org.hibernate.search.query.dsl.impl.FacetRange;
+import org.hibernate.search.query.dsl.impl.FacetingRequestImpl;
+import org.hibernate.search.query.dsl.impl.RangeFacetRequest;
+import org.hibernate.search.query.engine.spi.FacetManager;
+import org.hibernate.search.query.facet.Facet;
+import org.hibernate.search.query.facet.FacetSelection;
+import org.hibernate.search.query.facet.FacetSortOrder;
+import org.hibernate.search.query.facet.FacetingRequest;
+
+/** The facet manager of an {@link ElasticSearchHSQueryImpl}.
+ *
+ * The faceting requests are sent as elasticsearch facets in the same search
+ * request that fetches the hits, and the elasticsearch facets are mapped
+ * back to hibernate search facets. The discrete facets are sent as terms
+ * facets, and each range of the range facets is sent as a filter facet, so
+ * the range limits are included or excluded as the request says.
+ *
+ * The selected facets filter the hits, and the counts, of the query: the
+ * facets selected in the same group are alternatives, and the groups must
+ * all match, as in hibernate search.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchFacetManager implements FacetManager {
+
+  /** The max number of terms of a discrete facet without a max number of
+   * facets, elasticsearch needs a bound.
+   */
+  private static final int DEFAULT_MAX_FACETS = 1000;
+
+  /** The separator between the faceting name and the range index in the
+   * names of the elasticsearch facets of a range facet.
+   */
+  private static final String RANGE_SEPARATOR = "#";
+
+  /** Compares the facets by count, the stable sort keeps the definition
+   * order of the ranges with the same count.
+   */
+  private static final Comparator<Facet> BY_COUNT = new Comparator<Facet>() {
+    /** {@inheritDoc}.*/
+    public int compare(final Facet one, final Facet other) {
+      return one.getCount() - other.getCount();
+    }
+  };
+
+  /** The query, it's never null.*/
+  private final ElasticSearchHSQueryImpl query;
+
+  /** The faceting requests by faceting name, it's never null.*/
+  private final Map<String, FacetingRequestImpl> requests =
+      new LinkedHashMap<String, FacetingRequestImpl>();
+
+  /** The selected facets by faceting name, it's never null.*/
+  private final Map<String, Selection> selections =
+      new HashMap<String, Selection>();
+
+  /** The facets of the last search by faceting name, null if the query
+   * changed since.
+   */
+  private Map<String, List<Facet>> results;
+
+  /** Creates a new facet manager.
+   * @param theQuery the query, cannot be null.
+   */
+  ElasticSearchFacetManager(final ElasticSearchHSQueryImpl theQuery) {
+    Validate.notNull(theQuery, "The query cannot be null");
+    query = theQuery;
+  }
+
+  /** {@inheritDoc}.*/
+  public FacetManager enableFaceting(final FacetingRequest request) {
+    Validate.notNull(request, "The faceting request cannot be null");
+    if (!(request instanceof FacetingRequestImpl)) {
+      throw new HibernateException("The faceting request "
+          + request.getFacetingName() + " was not built with the DSL");
+    }
+    requests.put(request.getFacetingName(), (FacetingRequestImpl) request);
+    results = null;
+    return this;
+  }
+
+  /** {@inheritDoc}.*/
+  public void disableFaceting(final String name) {
+    requests.remove(name);
+    results = null;
+  }
+
+  /** {@inheritDoc}.
+   *
+   * The facets come from the last list of the query, otherwise a search
+   * that fetches no hits is sent.
+   */
+  public List<Facet> getFacets(final String name) {
+    if (!requests.containsKey(name)) {
+      return Collections.emptyList();
+    }
+    if (results == null) {
+      query.queryFacets();
+    }
+    List<Facet> facets = results.get(name);
+    if (facets == null) {
+      return Collections.emptyList();
+    }
+    return facets;
+  }
+
+  /** {@inheritDoc}.*/
+  public FacetSelection getFacetGroup(final String name) {
+    Validate.notNull(name, "The faceting name cannot be null");
+    Selection selection = selections.get(name);
+    if (selection == null) {
+      selection = new Selection();
+      selections.put(name, selection);
+    }
+    return selection;
+  }
+
+  /** Checks if there are faceting requests.
+   * @return true if the searches must compute facets.
+   */
+  boolean hasRequests() {
+    return !requests.isEmpty();
+  }
+
+  /** Forgets the facets of the last search, it must be invoked whenever the
+   * query changes.
+   */
+  void queryHasChanged() {
+    results = null;
+  }
+
+  /** Adds the facets of the faceting requests to the given search request.
+   * @param searchRequest the search request, cannot be null.
+   * @param entities the indexed entities of the search, cannot be null.
+   */
+  void addFacets(final SearchRequestBuilder searchRequest,
+      final Set<Class<?>> entities) {
+    for (FacetingRequestImpl request : requests.values()) {
+      String field = ElasticsearchQueryBuilder.exactField(entities,
+          request.getFieldName());
+      if (request instanceof RangeFacetRequest<?>) {
+        List<? extends FacetRange<?>> ranges;
+        ranges = ((RangeFacetRequest<?>) request).getFacetRangeList();
+        int i = 0;
+        for (FacetRange<?> range : ranges) {
+          searchRequest.addFacet(FacetBuilders.filterFacet(
+              request.getFacetingName() + RANGE_SEPARATOR + i++,
+              FilterBuilders.rangeFilter(field)
+                .from(range.getMin()).to(range.getMax())
+                .includeLower(range.isMinIncluded())
+                .includeUpper(range.isMaxIncluded())));
+        }
+      } else {
+        int size = request.getMaxNumberOfFacets();
+        if (size <= 0) {
+          size = DEFAULT_MAX_FACETS;
+        }
+        searchRequest.addFacet(FacetBuilders.termsFacet(
+            request.getFacetingName()).field(field).size(size)
+            .order(getOrder(request.getSort()))
+            .allTerms(request.hasZeroCountsIncluded()));
+      }
+    }
+  }
+
+  /** Maps the elasticsearch facets of the last search back to hibernate
+   * search facets.
+   * @param facets the elasticsearch facets, null if the search had none.
+   */
+  void setResults(final Facets facets) {
+    results = new HashMap<String, List<Facet>>();
+    if (facets == null) {
+      return;
+    }
+    for (FacetingRequestImpl request : requests.values()) {
+      List<Facet> result;
+      if (request instanceof RangeFacetRequest<?>) {
+        result = toRangeFacets((RangeFacetRequest<?>) request, facets);
+      } else {
+        result = toDiscreteFacets(request, facets);
+      }
+      results.put(request.getFacetingName(), result);
+    }
+  }
+
+  /** Translates the selected facets to a filter.
+   * @param entities the indexed entities of the search, cannot be null.
+   * @return the filter, null if no facet is selected.
+   */
+  FilterBuilder getSelectionFilter(final Set<Class<?>> entities) {
+    List<FilterBuilder> groups = new LinkedList<FilterBuilder>();
+    for (Selection selection : selections.values()) {
+      if (selection.facets.isEmpty()) {
+        continue;
+      }
+      OrFilterBuilder group = FilterBuilders.orFilter();
+      for (Facet facet : selection.facets) {
+        group.add(FilterBuilders.queryFilter(ElasticSearchHSQueryImpl
+            .translate(facet.getFacetQuery(), entities)));
+      }
+      groups.add(group);
+    }
+    if (groups.isEmpty()) {
+      return null;
+    } else if (groups.size() == 1) {
+      return groups.get(0);
+    }
+    return FilterBuilders.boolFilter().must(
+        groups.toArray(new FilterBuilder[groups.size()]));
+  }
+
+  /** Maps a terms facet to discrete facets, in the order elasticsearch
+   * returned them.
+   * @param request the faceting request, cannot be null.
+   * @param facets the elasticsearch facets, cannot be null.
+   * @return the facets, never null.
+   */
+  private static List<Facet> toDiscreteFacets(
+      final FacetingRequestImpl request, final Facets facets) {
+    List<Facet> result = new ArrayList<Facet>();
+    TermsFacet terms = facets.facet(request.getFacetingName());
+    if (terms == null) {
+      return result;
+    }
+    for (TermsFacet.Entry entry : terms.getEntries()) {
+      result.add(request.createFacet(entry.getTerm(), entry.getCount()));
+    }
+    return result;
+  }
+
+  /** Maps the filter facets of the ranges of a range facet to range facets.
+   * @param request the faceting request, cannot be null.
+   * @param facets the elasticsearch facets, cannot be null.
+   * @return the facets, sorted as the request says, never null.
+   */
+  private static List<Facet> toRangeFacets(final RangeFacetRequest<?> request,
+      final Facets facets) {
+    List<Facet> result = new ArrayList<Facet>();
+    int i = 0;
+    for (FacetRange<?> range : request.getFacetRangeList()) {
+      FilterFacet count = facets.facet(request.getFacetingName()
+          + RANGE_SEPARATOR + i++);
+      if (count == null) {
+        continue;
+      }
+      if (count.getCount() > 0 || request.hasZeroCountsIncluded()) {
+        result.add(request.createFacet(range.getRangeString(),
+            (int) count.getCount()));
+      }
+    }
+    if (request.getSort() == FacetSortOrder.COUNT_DESC) {
+      Collections.sort(result, Collections.reverseOrder(BY_COUNT));
+    } else if (request.getSort() == FacetSortOrder.COUNT_ASC) {
+      Collections.sort(result, BY_COUNT);
+    }
+    int max = request.getMaxNumberOfFacets();
+    if (max > 0 && result.size() > max) {
+      return new ArrayList<Facet>(result.subList(0, max));
+    }
+    return result;
+  }
+
+  /** Retrieves the order of the terms facet for the given sort.
+   * @param sort the sort of the faceting request, can be null.
+   * @return the order, never null.
+   */
+  private static TermsFacet.ComparatorType getOrder(
+      final FacetSortOrder sort) {
+    if (sort == FacetSortOrder.COUNT_ASC) {
+      return TermsFacet.ComparatorType.REVERSE_COUNT;
+    } else if (sort == FacetSortOrder.FIELD_VALUE) {
+      return TermsFacet.ComparatorType.TERM;
+    }
+    return TermsFacet.ComparatorType.COUNT;
+  }
+
+  /** The selected facets of a faceting group.*/
+  private final class Selection implements FacetSelection {
+
+    /** The selected facets, it's never null.*/
+    private final List<Facet> facets = new ArrayList<Facet>();
+
+    /** {@inheritDoc}.*/
+    public void selectFacets(final Facet... theFacets) {
+      for (Facet facet : theFacets) {
+        if (!facets.contains(facet)) {
+          facets.add(facet);
+        }
+      }
+      query.facetSelectionHasChanged();
+    }
+
+    /** {@inheritDoc}.*/
+    public List<Facet> getSelectedFacets() {
+      return Collections.unmodifiableList(facets);
+    }
+
+    /** {@inheritDoc}.*/
+    public void deselectFacets(final Facet... theFacets) {
+      facets.removeAll(Arrays.asList(theFacets));
+      query.facetSelectionHasChanged();
+    }
+
+    /** {@inheritDoc}.*/
+    public void clearSelectedFacets() {
+      facets.clear();
+      query.facetSelectionHasChanged();
+    }
+  }
+
+}
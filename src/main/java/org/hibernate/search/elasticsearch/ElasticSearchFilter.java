@@ -0,0 +1,30 @@
+package org.hibernate.search.elasticsearch;
+
+import org.elasticsearch.index.query.FilterBuilder;
+
+/** A lucene filter that knows its elasticsearch translation.
+ *
+ * The lucene filters only expose their bitsets, so the filters that
+ * {@link ElasticsearchFilterBuilder} does not know, like the tenant or the
+ * visibility filters of the application, must implement this interface to
+ * be given to a full text query:
+ *
+ * <pre>
+ * public class TenantFilter extends Filter implements ElasticSearchFilter {
+ *   public FilterBuilder getFilterBuilder() {
+ *     return FilterBuilders.termFilter("tenant", tenant);
+ *   }
+ *   ...
+ * }
+ * </pre>
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public interface ElasticSearchFilter {
+
+  /** Retrieves the elasticsearch filter that matches the same documents
+   * as this filter.
+   * @return the filter, never null.
+   */
+  FilterBuilder getFilterBuilder();
+}
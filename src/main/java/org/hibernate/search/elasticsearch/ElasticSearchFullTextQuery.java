@@ -3,6 +3,7 @@ package org.hibernate.search.elasticsearch;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -24,22 +25,17 @@ import org.hibernate.engine.query.ParameterMetadata;
 import org.hibernate.impl.AbstractQueryImpl;
 import org.hibernate.search.FullTextFilter;
 import org.hibernate.search.FullTextQuery;
-import org.hibernate.search.engine.SearchFactoryImplementor;
 import org.hibernate.search.query.DatabaseRetrievalMethod;
 import org.hibernate.search.query.ObjectLookupMethod;
-import org.hibernate.search.query.engine.spi.DocumentExtractor;
 import org.hibernate.search.query.engine.spi.EntityInfo;
 import org.hibernate.search.query.engine.spi.FacetManager;
 import org.hibernate.search.query.engine.spi.HSQuery;
 import org.hibernate.search.query.engine.spi.TimeoutExceptionFactory;
-import org.hibernate.search.query.engine.spi.TimeoutManager;
-import org.hibernate.search.query.hibernate.impl.IteratorImpl;
 import org.hibernate.search.query.hibernate.impl.Loader;
 import org.hibernate.search.query.hibernate.impl.ObjectLoaderBuilder;
-import org.hibernate.search.query.hibernate.impl.ObjectsInitializer;
 import org.hibernate.search.query.hibernate.impl.ProjectionLoader;
-import org.hibernate.search.query.hibernate.impl.ScrollableResultsImpl;
 import org.hibernate.transform.ResultTransformer;
+import org.hibernate.type.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,14 +54,20 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
   private static Logger log = LoggerFactory.getLogger(
       ElasticSearchFullTextQuery.class);
 
+  /** The default number of hits fetched by each round trip of a scroll.*/
+  private static final int DEFAULT_FETCH_SIZE = 100;
+
   /** The Hibernate criteria.*/
   private Criteria criteria;
 
   /** The result transformer.*/
   private ResultTransformer resultTransformer;
 
-  /** The fetch size.*/
-  private int fetchSize = 1;
+  /** The number of hits fetched by each round trip of scroll and iterate.*/
+  private int fetchSize = DEFAULT_FETCH_SIZE;
+
+  /** The number of pages of hits fetched ahead by scroll and iterate.*/
+  private int prefetchDepth = 0;
 
   /** The lookup method.*/
   private ObjectLookupMethod lookupMethod = ObjectLookupMethod.SKIP;
@@ -77,6 +79,29 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
   private DatabaseRetrievalMethod retrievalMethod =
       DatabaseRetrievalMethod.QUERY;
 
+  /** Checks if the entities are hydrated from the source of their
+   * documents, instead of loaded from the database.
+   */
+  private boolean fromSource = false;
+
+  /** The fetch profile enabled while the entities are loaded, null for
+   * none.
+   */
+  private String fetchProfile;
+
+  /** The association paths join fetched with the entities, it's never
+   * null.
+   */
+  private final List<String> fetchPaths = new LinkedList<String>();
+
+  /** Checks if the entities are loaded through a stateless session.*/
+  private boolean stateless = false;
+
+  /** Checks if the entities loaded by a batch of scroll and iterate are
+   * evicted from the session when the next batch is loaded.
+   */
+  private boolean evictBatches = false;
+
   /** The full text query.*/
   private final HSQuery fulltextQuery;
 
@@ -91,31 +116,10 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     }
   };
 
-  /** The null loader.*/
-  private static final Loader NO_LOADER = new Loader() {
-    /** {@inheritDoc}.*/
-    public void init(final Session session,
-        final SearchFactoryImplementor searchFactoryImplementor,
-        final ObjectsInitializer objectsInitializer,
-        final TimeoutManager timeoutManager) {
-      log.trace("Entering init");
-      log.trace("Leaving init");
-    }
-    /** {@inheritDoc}.*/
-    public Object load(final EntityInfo entityInfo) {
-      throw new UnsupportedOperationException("loader should not be used");
-    }
-    /** {@inheritDoc}.*/
-    public Object loadWithoutTiming(final EntityInfo entityInfo) {
-      throw new UnsupportedOperationException("loader should not be used");
-    }
-    /** {@inheritDoc}.*/
-    public List<?> load(final EntityInfo... entityInfos) {
-      throw new UnsupportedOperationException("loader should not be used");
-    }
-  };
-
   /** Constructs a new instance of the Elastic Search Query.
+   *
+   * The query string of hibernate is not set, as rendering the lucene query
+   * is not free and this query never parses it, see {@link #toString()}.
    *
    * @param query the Lucene query, cannot be null.
    * @param classes the classes to search, cannot be null.
@@ -126,7 +130,7 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
       final Class<?>[] classes, final SessionImplementor session,
       final SearchSessionFactory factory) {
 
-    super(query.toString(), null, session, new ParameterMetadata(null, null));
+    super(null, null, session, new ParameterMetadata(null, null));
 
     Validate.notNull(query, "The lucene query cannot be null");
     Validate.notNull(classes, "The classes cannot be null");
@@ -139,6 +143,57 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     fulltextQuery.targetedEntities(Arrays.asList(classes));
   }
 
+  /** Constructs a new query of the given template, see
+   * {@link QueryTemplate}.
+   *
+   * @param template the template, cannot be null.
+   * @param classes the classes to search, cannot be null.
+   * @param session the Hibernate session, cannot be null.
+   * @param factory the search session factory, cannot be null.
+   */
+  public ElasticSearchFullTextQuery(final QueryTemplate template,
+      final Class<?>[] classes, final SessionImplementor session,
+      final SearchSessionFactory factory) {
+    this(template.getQuery(), classes, session, factory);
+    getQuery().template(template);
+  }
+
+  /** Binds a value to a parameter of the template of this query, see
+   * {@link QueryTemplate}.
+   *
+   * @param name the parameter name, cannot be null.
+   * @param value the value, cannot be null.
+   * @return this query.
+   */
+  @Override
+  public Query setParameter(final String name, final Object value) {
+    getQuery().templateParameter(name, value);
+    return this;
+  }
+
+  /** Binds a value to a parameter of the template of this query, the type
+   * is ignored, see {@link #setParameter(String, Object)}.
+   *
+   * @param name the parameter name, cannot be null.
+   * @param value the value, cannot be null.
+   * @param type the hibernate type of the value, ignored.
+   * @return this query.
+   */
+  @Override
+  public Query setParameter(final String name, final Object value,
+      final Type type) {
+    return setParameter(name, value);
+  }
+
+  /** {@inheritDoc}.
+   * The lucene query is rendered on demand.
+   */
+  @Override
+  public String toString() {
+    return "ElasticSearchFullTextQuery(" + fulltextQuery.getLuceneQuery()
+        + ")";
+  }
+
   /**{@inheritDoc}. */
   public FullTextQuery setSort(final Sort sort) {
     fulltextQuery.sort(sort);
@@ -152,31 +207,22 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
   }
 
   /** Return an iterator on the results. Retrieve the object one by one
-   * (initialize it during the next() operation)
+   * (initialize it during the next() operation).
+   *
+   * The hits are streamed through the elasticsearch scroll api, in pages of
+   * fetch size hits.
+   *
    * @return the iterator.
    */
   @SuppressWarnings("rawtypes")
   public Iterator iterate() {
     log.trace("Entering iterate");
-    // implement an iterator which keep the id/class for each hit and get the
-    // object on demand
-    // cause I can't keep the searcher and hence the hit opened. I don't have
-    // any hook to know when the
-    // user stops using it
-    // scrollable is better in this area
     fulltextQuery.getTimeoutManager().start();
-    List<EntityInfo> entityInfos = fulltextQuery.queryEntityInfos();
+    ElasticSearchScroll hits = getQuery().scroll(fetchSize, prefetchDepth);
     // stop timeout manager, the iterator pace is in the user's hands
     fulltextQuery.getTimeoutManager().stop();
-    // TODO is this noloader optimization really needed?
     Iterator<Object> iterator;
-    if (entityInfos.size() == 0) {
-      return new IteratorImpl(entityInfos, NO_LOADER);
-    } else {
-      Loader loader = getLoader();
-      iterator = new IteratorImpl(entityInfos, loader);
-    }
-    fulltextQuery.getTimeoutManager().stop();
+    iterator = new ElasticSearchScrollIterator(hits, fetchSize, getLoader());
     log.trace("Leaving iterate");
     return iterator;
   }
@@ -204,9 +250,32 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
 
     if (fulltextQuery.getProjectedFields() != null) {
       return getProjectionLoader(loaderBuilder);
+    } else if (fromSource) {
+      return new ElasticSearchSourceLoader(getDatabaseLoader(loaderBuilder));
     } else {
-      return loaderBuilder.buildLoader();
+      return getDatabaseLoader(loaderBuilder);
+    }
+  }
+
+  /** Retrieves the loader of the entities from the database.
+   *
+   * The entities are loaded by {@link ElasticSearchBatchLoader}, unless a
+   * criteria restricts them or the retrieval method asks to find them one by
+   * one. Only this loader honors {@link #setReadOnly(boolean)},
+   * {@link #initializeObjectsStateless()} and
+   * {@link #setEvictLoadedBatches(boolean)}.
+   *
+   * @param loaderBuilder the builder, cannot be null.
+   * @return the loader, never null.
+   */
+  @SuppressWarnings("deprecation")
+  private Loader getDatabaseLoader(final ObjectLoaderBuilder loaderBuilder) {
+    if (criteria == null
+        && retrievalMethod == DatabaseRetrievalMethod.QUERY) {
+      return new ElasticSearchBatchLoader(session, fetchProfile, fetchPaths,
+          isReadOnly(), stateless, evictBatches);
     }
+    return loaderBuilder.buildLoader();
   }
 
   /** Retrieves the projection loaders.
@@ -222,17 +291,20 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     return loader;
   }
 
-  /** {@inheritDoc}.*/
+  /** {@inheritDoc}.
+   *
+   * The hits are streamed through the elasticsearch scroll api, in pages of
+   * fetch size hits.
+   */
   public ScrollableResults scroll() {
     log.trace("Entering scroll");
-    // keep the searcher open until the resultset is closed
     fulltextQuery.getTimeoutManager().start();
-    DocumentExtractor extractor = fulltextQuery.queryDocumentExtractor();
-    // stop timeout manager, the iterator pace is in the user's hands
-    fulltextQuery.getTimeoutManager().stop();
     Loader loader = getLoader();
     ScrollableResults result;
-    result = new ScrollableResultsImpl(fetchSize, extractor, loader, session);
+    result = new ElasticSearchScrollableResults(getQuery(), fetchSize,
+        prefetchDepth, loader);
+    // stop timeout manager, the iterator pace is in the user's hands
+    fulltextQuery.getTimeoutManager().stop();
     log.trace("Leaving scroll");
     return result;
   }
@@ -247,7 +319,18 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
   public List<?> list() {
     log.trace("Entering list");
     fulltextQuery.getTimeoutManager().start();
-    final List<EntityInfo> entityInfos = fulltextQuery.queryEntityInfos();
+    List<?> list = load(fulltextQuery.queryEntityInfos());
+    fulltextQuery.getTimeoutManager().stop();
+    log.trace("Leaving list");
+    return list;
+  }
+
+  /** Loads the entities, or the projections, of the given hits, and
+   * transforms them with the result transformer.
+   * @param entityInfos the hits, cannot be null.
+   * @return the results, never null.
+   */
+  List<?> load(final List<EntityInfo> entityInfos) {
     Loader loader = getLoader();
     EntityInfo[] infos = new EntityInfo[entityInfos.size()];
     List<?> list = loader.load(entityInfos.toArray(infos));
@@ -259,8 +342,6 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     } else {
       list = resultTransformer.transformList(list);
     }
-    fulltextQuery.getTimeoutManager().stop();
-    log.trace("Leaving list");
     return list;
   }
 
@@ -292,6 +373,43 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     return this;
   }
 
+  /** Switches this query to the keyset pagination, see
+   * {@link ElasticSearchHSQueryImpl#searchAfter(Object[])}.
+   *
+   * Deep pages cost the same as the first one, as each page starts right
+   * after the last hit of the previous page:
+   *
+   * <pre>
+   * query.setSearchAfter().setMaxResults(50).list();
+   * Object[] last = query.getLastSortValues();
+   * query.setSearchAfter(last).list();
+   * </pre>
+   *
+   * @param sortValues the sort values of the last hit of the previous page,
+   * empty for the first page.
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery setSearchAfter(
+      final Object... sortValues) {
+    getQuery().searchAfter(sortValues);
+    return this;
+  }
+
+  /** Retrieves the elasticsearch query.
+   * @return the query, never null.
+   */
+  ElasticSearchHSQueryImpl getQuery() {
+    return (ElasticSearchHSQueryImpl) fulltextQuery;
+  }
+
+  /** Retrieves the sort values of the last hit of the last page, to fetch
+   * the next page with {@link #setSearchAfter(Object...)}.
+   * @return the sort values, null if the last page was empty.
+   */
+  public Object[] getLastSortValues() {
+    return getQuery().getLastSortValues();
+  }
+
   /** {@inheritDoc}.*/
   public FullTextQuery setMaxResults(final int maxResults) {
     fulltextQuery.maxResults(maxResults);
@@ -309,6 +427,26 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     return this;
   }
 
+  /** Sets the number of pages of hits that scroll and iterate fetch ahead
+   * of the page being consumed.
+   *
+   * While the caller works on a page, the next pages are requested in
+   * background, so elasticsearch, the database and the caller work at the
+   * same time. Each page holds fetch size hits.
+   *
+   * @param depth the number of pages, 0 by default to fetch each page when
+   * it's needed.
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery setPrefetchDepth(final int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException(
+          "'prefetch depth' parameter less than 0");
+    }
+    prefetchDepth = depth;
+    return this;
+  }
+
   /** {@inheritDoc}.*/
   public Query setLockOptions(final LockOptions lockOptions) {
     throw new UnsupportedOperationException(
@@ -370,9 +508,13 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     fulltextQuery.disableFullTextFilter(name);
   }
 
-  /** {@inheritDoc}.*/
+  /** {@inheritDoc}.
+   *
+   * The facets are computed by elasticsearch, in the same request that
+   * fetches the hits.
+   */
   public FacetManager getFacetManager() {
-    return fulltextQuery.getFacetManager();
+    return getQuery().getElasticSearchFacetManager();
   }
 
   /** {@inheritDoc}.*/
@@ -411,4 +553,91 @@ public class ElasticSearchFullTextQuery extends AbstractQueryImpl implements
     retrievalMethod = theRetrievalMethod;
     return this;
   }
+
+  /** Initializes the entities from the source of their elasticsearch
+   * documents, see {@link EntityHydrator}, instead of the database.
+   *
+   * The entities are detached from the session and read only, and only hold
+   * their id and indexed properties, which is enough for the pages that
+   * only render indexed data. The entities that cannot be hydrated are
+   * loaded with the lookup and retrieval methods given to
+   * {@link #initializeObjectsWith(ObjectLookupMethod,
+   * DatabaseRetrievalMethod)}.
+   *
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery initializeObjectsFromSource() {
+    fromSource = true;
+    getQuery().keepSource(true);
+    return this;
+  }
+
+  /** Enables the given hibernate fetch profile while the entities of the
+   * hits are loaded from the database.
+   *
+   * The profile applies to the entities loaded in batch, see
+   * {@link ElasticSearchBatchLoader}, so a page of hits and the associations
+   * of the profile are loaded with a fixed number of statements. The
+   * entities already in the session or the second level cache are not
+   * loaded again.
+   *
+   * @param name the name of the fetch profile, null for none.
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery setFetchProfile(final String name) {
+    fetchProfile = name;
+    return this;
+  }
+
+  /** Loads the entities of the hits through a stateless session opened on
+   * the connection of the session, instead of the session.
+   *
+   * The entities are detached, so the session does not grow with them and
+   * does not dirty check them, which suits the large reports that only
+   * read the entities. Their lazy associations cannot be initialized, so
+   * the associations they need must be join fetched, see
+   * {@link #addFetchPath(String)}. The fetch profiles, the second level
+   * cache and the changes not flushed by the session are not seen.
+   *
+   * To keep the entities in the session with no snapshot, use
+   * {@link #setReadOnly(boolean)} instead.
+   *
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery initializeObjectsStateless() {
+    stateless = true;
+    return this;
+  }
+
+  /** Sets if scroll and iterate evict the entities that each batch of fetch
+   * size hits attached to the session when they load the next batch.
+   *
+   * The session then holds a single batch while the caller iterates a large
+   * result. The changes to the evicted entities are not flushed, and the
+   * entities that were in the session before the query are not evicted.
+   *
+   * @param evict true to evict the entities of each batch, false by default.
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery setEvictLoadedBatches(
+      final boolean evict) {
+    evictBatches = evict;
+    return this;
+  }
+
+  /** Join fetches the association at the given path with the entities of
+   * the hits, as {@link #setFetchProfile(String)} does for the associations
+   * of a profile. When the query spans several classes, the path is only
+   * joined with the entities of the classes it starts at.
+   *
+   * @param path the association path, as given to
+   * {@link Criteria#setFetchMode(String, org.hibernate.FetchMode)}, cannot
+   * be null.
+   * @return this query.
+   */
+  public ElasticSearchFullTextQuery addFetchPath(final String path) {
+    Validate.notNull(path, "The fetch path cannot be null");
+    fetchPaths.add(path);
+    return this;
+  }
 }
@@ -1,5 +1,9 @@
 package org.hibernate.search.elasticsearch;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 import org.apache.commons.lang.Validate;
 import org.apache.lucene.search.Query;
 import org.elasticsearch.client.Client;
@@ -8,6 +12,7 @@ import org.hibernate.engine.SessionImplementor;
 import org.hibernate.search.FullTextQuery;
 import org.hibernate.search.MassIndexer;
 import org.hibernate.search.SearchFactory;
+import org.hibernate.search.backend.BackendQueueProcessorFactory;
 import org.hibernate.search.engine.SearchFactoryImplementor;
 import org.hibernate.search.impl.FullTextSessionImpl;
 
@@ -61,6 +66,49 @@ public class ElasticSearchFullTextSession extends FullTextSessionImpl {
         (SessionImplementor) session, searchSessionFactory);
   }
 
+  /** Creates a query of the registered template with the given name, see
+   * {@link QueryTemplate}.
+   *
+   * The template is translated once for each set of entities, so each
+   * execution only binds the parameters given to
+   * {@link ElasticSearchFullTextQuery#setParameter(String, Object)}.
+   *
+   * @param name the template name, cannot be null.
+   * @param entities the entities to search, cannot be null.
+   * @return the query, never null.
+   * @throws org.hibernate.HibernateException if there is no such template.
+   */
+  public ElasticSearchFullTextQuery createTemplateQuery(final String name,
+      final Class<?>... entities) {
+    return new ElasticSearchFullTextQuery(QueryTemplate.forName(name),
+        entities, (SessionImplementor) session, searchSessionFactory);
+  }
+
+  /** Lists the given queries with a single elasticsearch request, instead
+   * of a request per query.
+   *
+   * Each query searches the page of hits that its list would search, and
+   * its entities are then loaded as its list would load them. The failure of
+   * a query does not fail the others, so the outcome of each query tells
+   * its results or its failure.
+   *
+   * @param queries the queries, created by this session, cannot be null.
+   * @return the outcome of each query, in the order of the queries, never
+   * null.
+   */
+  public List<MultiSearchResult> multiList(final FullTextQuery... queries) {
+    Validate.notNull(queries, "The queries cannot be null");
+    List<ElasticSearchFullTextQuery> elasticsearchQueries;
+    elasticsearchQueries = new ArrayList<ElasticSearchFullTextQuery>();
+    for (FullTextQuery query : queries) {
+      Validate.isTrue(query instanceof ElasticSearchFullTextQuery,
+          "The queries must be created by an elasticsearch session");
+      elasticsearchQueries.add((ElasticSearchFullTextQuery) query);
+    }
+    return new ElasticSearchMultiSearch(searchSessionFactory.getClient())
+        .list(elasticsearchQueries);
+  }
+
   /** {@inheritDoc}.*/
   @Override
   public MassIndexer createIndexer(final Class<?>... types) {
@@ -68,8 +116,30 @@ public class ElasticSearchFullTextSession extends FullTextSessionImpl {
     for (Class<?> indexedClass : types) {
       ElasticsearchIndexManager.recreateIndex(indexedClass, client);
     }
+    BackendQueueProcessorFactory backend;
+    backend = searchFactory.getBackendQueueProcessorFactory();
+    if (backend instanceof ElasticSearchBackendQueueProcessorFactory) {
+      ((ElasticSearchBackendQueueProcessorFactory) backend)
+          .clearFingerprints();
+    }
     MassIndexer indexer = super.createIndexer(types);
     indexer.progressMonitor(ElasticsearchBatchBackendQueue.createMonitor());
     return indexer;
   }
+
+  /** Deletes the partitions of the given time partitioned class that only
+   * hold documents older than the given date, see {@link TimePartitioned}.
+   *
+   * It's the cheap way to apply a retention policy, as whole indices are
+   * dropped instead of deleting each expired document.
+   *
+   * @param type the class annotated with TimePartitioned, cannot be null.
+   * @param date the date, cannot be null.
+   * @return the names of the deleted partitions, never null.
+   */
+  public List<String> dropPartitionsBefore(final Class<?> type,
+      final Date date) {
+    return ElasticsearchIndexManager.dropPartitionsBefore(type, date,
+        searchSessionFactory.getClient());
+  }
 }
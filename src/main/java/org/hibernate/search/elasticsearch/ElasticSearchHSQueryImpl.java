@@ -1,33 +1,60 @@
 package org.hibernate.search.elasticsearch;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.Validate;
 import org.apache.commons.lang.math.NumberUtils;
 
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.support.IgnoreIndices;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 
 import org.elasticsearch.client.Client;
 
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 
 import org.hibernate.HibernateException;
+import org.hibernate.search.FullTextFilter;
+import org.hibernate.search.ProjectionConstants;
+import org.hibernate.search.engine.DocumentBuilderHelper;
+import org.hibernate.search.engine.FilterDef;
 import org.hibernate.search.engine.SearchFactoryImplementor;
 
+import org.hibernate.search.filter.impl.FullTextFilterImpl;
 import org.hibernate.search.query.engine.impl.EntityInfoImpl;
 import org.hibernate.search.query.engine.impl.HSQueryImpl;
 
 import org.hibernate.search.query.engine.spi.EntityInfo;
 
+import org.elasticsearch.index.query.AndFilterBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.OrFilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeFilterBuilder;
 import org.hibernate.search.query.engine.spi.HSQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,17 +72,84 @@ public class ElasticSearchHSQueryImpl extends HSQueryImpl {
   /** Max results per query.*/
   private static final int MAX_RESULTS = 200;
 
+  /** The elasticsearch field that holds the type and id of each document.*/
+  private static final String UID_FIELD = "_uid";
+
+  /** The elasticsearch field that holds the original json document.*/
+  private static final String SOURCE_FIELD = "_source";
+
+  /** The projections that are not fields of the document.*/
+  private static final Set<String> SPECIAL_PROJECTIONS = new HashSet<String>(
+      Arrays.asList(ProjectionConstants.THIS, ProjectionConstants.DOCUMENT,
+          ProjectionConstants.SCORE, ProjectionConstants.ID,
+          ProjectionConstants.DOCUMENT_ID, ProjectionConstants.EXPLANATION,
+          ProjectionConstants.OBJECT_CLASS));
+
+  /** The max number of lucene queries whose translation is remembered.*/
+  private static final int TRANSLATION_CACHE_SIZE = 1024;
+
+  /** The last translated lucene queries, it's never null.*/
+  private static final QueryTranslationCache TRANSLATIONS =
+      new QueryTranslationCache(TRANSLATION_CACHE_SIZE);
+
+  /** The max number of full text filters whose translation is remembered.*/
+  private static final int FILTER_CACHE_SIZE = 1024;
+
+  /** The last translated full text filters, it's never null.*/
+  private static final FullTextFilterCache FULL_TEXT_FILTERS =
+      new FullTextFilterCache(FILTER_CACHE_SIZE);
+
   /** The elastic search client, it's never null.*/
   private final Client client;
 
+  /** The cache of the hits of the last searches, null if it's disabled.*/
+  private final QueryResultCache queryCache;
+
   /** The sort, can be null.*/
   private Sort sort;
 
-  /** Sets the max results.
+  /** Sets the max results, null if they were not set.
    * TODO in the original hibernate search the max is unlimited.
-   * is this correct?
+   * is this correct? the lists are limited to MAX_RESULTS, the scrolls are
+   * unlimited.
    */
-  private int maxResults = MAX_RESULTS;
+  private Integer maxResults;
+
+  /** The position of the first result.*/
+  private int firstResult = 0;
+
+  /** Checks if the query uses the keyset pagination.*/
+  private boolean keyset = false;
+
+  /** The sort values of the hit that precedes the page, can be null.*/
+  private Object[] searchAfter;
+
+  /** The sort values of the last hit of the last page, can be null.*/
+  private Object[] lastSortValues;
+
+  /** The number of hits that match this query, null if it's unknown.*/
+  private Integer resultSize;
+
+  /** Checks if the entity infos keep the source of their documents.*/
+  private boolean keepSource = false;
+
+  /** The filter given to this query, can be null.*/
+  private Filter userFilter;
+
+  /** The enabled full text filters by name, it's never null.*/
+  private final Map<String, FullTextFilterImpl> fullTextFilters =
+      new LinkedHashMap<String, FullTextFilterImpl>();
+
+  /** The facet manager, it's never null.*/
+  private final ElasticSearchFacetManager facetManager =
+      new ElasticSearchFacetManager(this);
+
+  /** The template of this query, null if it's a plain lucene query.*/
+  private QueryTemplate template;
+
+  /** The values of the template parameters by name, it's never null.*/
+  private final Map<String, Object> templateParameters =
+      new HashMap<String, Object>();
 
   /** The constructor.
    * @param factory the session factory implementor, cannot be null.
@@ -63,9 +157,21 @@ public class ElasticSearchHSQueryImpl extends HSQueryImpl {
    */
   public ElasticSearchHSQueryImpl(final SearchFactoryImplementor factory,
       final Client elasticsearchClient) {
+    this(factory, elasticsearchClient, null);
+  }
+
+  /** The constructor.
+   * @param factory the session factory implementor, cannot be null.
+   * @param elasticsearchClient the elastic-search client, cannot be null.
+   * @param resultCache the cache of the hits of the last searches, null if
+   * it's disabled.
+   */
+  public ElasticSearchHSQueryImpl(final SearchFactoryImplementor factory,
+      final Client elasticsearchClient, final QueryResultCache resultCache) {
     super((SearchFactoryImplementor) factory);
     Validate.notNull(elasticsearchClient, "The client cannot be null");
     client = elasticsearchClient;
+    queryCache = resultCache;
   }
 
   /** {@inheritDoc}.
@@ -74,66 +180,629 @@ public class ElasticSearchHSQueryImpl extends HSQueryImpl {
    */
   @Override
   public List<EntityInfo> queryEntityInfos() {
-
     log.trace("Entering queryEntityInfos");
+    List<EntityInfo> entityInfos;
+    entityInfos = toEntityInfos(search(prepareEntityInfosSearch()));
+    log.trace("Leaving queryEntityInfos");
+    return entityInfos;
+  }
 
-    int targetedEntitiesSize = getTargetedEntities().size();
-    String[] types = new String[targetedEntitiesSize];
+  /** Prepares the search of the hits of the current page of this query,
+   * with its facets.
+   * @return the search request, never null.
+   */
+  SearchRequestBuilder prepareEntityInfosSearch() {
+    SearchRequestBuilder searchRequest = prepareSearch();
+    if (!keyset) {
+      searchRequest.setFrom(firstResult);
+    }
+    if (maxResults == null) {
+      searchRequest.setSize(MAX_RESULTS);
+    } else {
+      searchRequest.setSize(maxResults);
+    }
 
-    for (int i = 0; i < targetedEntitiesSize; i++) {
-      types[i] = getTargetedEntities().get(i).getName();
+    if (facetManager.hasRequests()) {
+      facetManager.addFacets(searchRequest, getIndexedTargetedEntities());
     }
+    return searchRequest;
+  }
 
-    // [waabox] how we handle multiple index here?????.
-    Class<?> entity = getTargetedEntities().get(0);
-    String indexName = SearchUtils.getIndexName(entity);
+  /** Reads the hits of the search prepared by
+   * {@link #prepareEntityInfosSearch()}, and keeps its result size, facets
+   * and last sort values.
+   * @param result the hits of the search, cannot be null.
+   * @return the entity infos of the hits, never null.
+   */
+  List<EntityInfo> toEntityInfos(final QueryResultCache.Result result) {
+    if (facetManager.hasRequests()) {
+      facetManager.setResults(result.getFacets());
+    }
 
-    SearchRequestBuilder searchRequest = client.prepareSearch(indexName);
+    List<EntityInfo> entityInfos = new LinkedList<EntityInfo>();
 
-    ElasticsearchQueryBuilder builder;
-    builder = new ElasticsearchQueryBuilder(getLuceneQuery(), entity);
-    QueryBuilder queryBuilder = builder.build();
-    searchRequest.setQuery(queryBuilder);
-    searchRequest.setTypes(types);
+    if (!keyset || searchAfter == null || searchAfter.length == 0) {
+      // the keyset position filters the hits before the page out.
+      resultSize = (int) result.getTotalHits();
+    }
+
+    SearchHit[] hits = result.getHits();
+    if (keyset && hits.length > 0) {
+      lastSortValues = hits[hits.length - 1].getSortValues();
+    } else if (keyset) {
+      lastSortValues = null;
+    }
 
-    log.debug("Sending query: {} to index: {}", queryBuilder, indexName);
+    for (SearchHit hit : hits) {
+      entityInfos.add(toEntityInfo(hit));
+    }
+    return entityInfos;
+  }
 
+  /** {@inheritDoc}.
+   *
+   * It reuses the total hits of the last list of this query, otherwise it
+   * sends a count search to elastic-search, that fetches no hits.
+   */
+  @Override
+  public int queryResultSize() {
+    if (resultSize == null) {
+      SearchRequestBuilder countRequest = prepareUnsortedSearch();
+      countRequest.setSearchType(SearchType.COUNT);
+      countRequest.setSize(0);
+      resultSize = (int) search(countRequest).getTotalHits();
+    } else {
+      log.debug("Reusing the result size: {}", resultSize);
+    }
+    return resultSize;
+  }
+
+  /** Computes the facets of this query with a search that fetches no hits,
+   * see {@link ElasticSearchFacetManager}.
+   */
+  void queryFacets() {
+    SearchRequestBuilder facetRequest = prepareUnsortedSearch();
+    facetRequest.setSearchType(SearchType.COUNT);
+    facetRequest.setSize(0);
+    facetManager.addFacets(facetRequest, getIndexedTargetedEntities());
+    QueryResultCache.Result result = search(facetRequest);
+    resultSize = (int) result.getTotalHits();
+    facetManager.setResults(result.getFacets());
+  }
+
+  /** Retrieves the facet manager of this query, that computes the facets
+   * with elasticsearch.
+   * @return the facet manager, never null.
+   */
+  ElasticSearchFacetManager getElasticSearchFacetManager() {
+    return facetManager;
+  }
+
+  /** Forgets the result size and the facets of this query, it must be
+   * invoked whenever the matching documents may change.
+   */
+  private void queryHasChanged() {
+    resultSize = null;
+    facetManager.queryHasChanged();
+  }
+
+  /** Forgets the result size and the facets of this query, as the selected
+   * facets filter the documents.
+   */
+  void facetSelectionHasChanged() {
+    queryHasChanged();
+  }
+
+  /** Streams the hits of this query through the elasticsearch scroll api,
+   * see {@link ElasticSearchScroll}.
+   * @param pageSize the number of hits fetched by each round trip, must be
+   * greater than zero.
+   * @param prefetch the max number of pages fetched ahead of the current
+   * one, 0 to fetch each page when it's needed.
+   * @return the scroll, never null.
+   */
+  ElasticSearchScroll scroll(final int pageSize, final int prefetch) {
+    return new ElasticSearchScroll(client, this, pageSize, prefetch);
+  }
+
+  /** Creates the search request of this query, without the from and size.
+   *
+   * The hits only carry what the loader needs: the type and id when the
+   * entities come from the database, the source when they are hydrated
+   * from it, and the projected fields otherwise. The scores are not tracked
+   * when the query is sorted by field, unless they are projected.
+   *
+   * @return the search request, never null.
+   */
+  SearchRequestBuilder prepareSearch() {
+
+    SearchRequestBuilder searchRequest = prepareUnsortedSearch();
+
+    List<String> sortNames = new LinkedList<String>();
+    List<Boolean> sortReverse = new LinkedList<Boolean>();
     if (sort != null) {
       SortField[] sortFields = sort.getSort();
       for(SortField sortField : sortFields) {
-        FieldSortBuilder sortBuilder;
         String name = sortField.getField();
-        sortBuilder = new FieldSortBuilder(name + "." + name + "_raw");
-        if (sortField.getReverse()) {
-          sortBuilder.order(SortOrder.DESC);
-        } else {
-          sortBuilder.order(SortOrder.ASC);
+        sortNames.add(name + "." + name + "_raw");
+        sortReverse.add(sortField.getReverse());
+      }
+    }
+    if (keyset) {
+      // the uid breaks the ties, so each hit has a unique position.
+      sortNames.add(UID_FIELD);
+      sortReverse.add(false);
+    }
+    for (int i = 0; i < sortNames.size(); i++) {
+      FieldSortBuilder sortBuilder;
+      sortBuilder = new FieldSortBuilder(sortNames.get(i));
+      if (sortReverse.get(i)) {
+        sortBuilder.order(SortOrder.DESC);
+      } else {
+        sortBuilder.order(SortOrder.ASC);
+      }
+      searchRequest.addSort(sortBuilder);
+    }
+    if (keyset && searchAfter != null && searchAfter.length > 0) {
+      searchRequest.setFilter(after(sortNames, sortReverse, searchAfter));
+    }
+    if (getProjectedFields() != null) {
+      prepareProjection(searchRequest);
+    } else if (!keepSource) {
+      // the entities are loaded from the database, so only the type and the
+      // id of each hit are needed, not its source nor its stored fields.
+      searchRequest.setNoFields();
+    }
+    return searchRequest;
+  }
+
+  /** Requests the stored fields of the projection of this query, instead of
+   * the whole source of each hit.
+   *
+   * The id and the class come with every hit, the score is tracked even if
+   * the query is sorted, and the explanation is requested when projected.
+   * The source is only requested for the document projection.
+   *
+   * @param searchRequest the search request, cannot be null.
+   */
+  private void prepareProjection(final SearchRequestBuilder searchRequest) {
+    List<String> fields = new LinkedList<String>();
+    for (String field : getProjectedFields()) {
+      if (ProjectionConstants.SCORE.equals(field)) {
+        searchRequest.setTrackScores(true);
+      } else if (ProjectionConstants.EXPLANATION.equals(field)) {
+        searchRequest.setExplain(true);
+      } else if (ProjectionConstants.DOCUMENT.equals(field)) {
+        fields.add(SOURCE_FIELD);
+      } else if (!isSpecialProjection(field)) {
+        fields.add(field);
+      }
+    }
+    if (fields.isEmpty()) {
+      searchRequest.setNoFields();
+    } else {
+      searchRequest.addFields(fields.toArray(new String[fields.size()]));
+    }
+  }
+
+  /** Creates the search request of this query, without the sort, the
+   * keyset position, the from and the size.
+   *
+   * The request targets the indices and types of every indexed targeted
+   * entity, including their indexed subclasses, so a query across entities
+   * that live in different indices is still one round trip.
+   *
+   * @return the search request, never null.
+   */
+  private SearchRequestBuilder prepareUnsortedSearch() {
+
+    Set<Class<?>> entities = getIndexedTargetedEntities();
+    if (entities.isEmpty()) {
+      throw new HibernateException("None of the targeted entities is "
+          + "indexed: " + getTargetedEntities());
+    }
+
+    Set<String> indices = new LinkedHashSet<String>();
+    String[] types = new String[entities.size()];
+    boolean partitioned = false;
+    int i = 0;
+    for (Class<?> entity : entities) {
+      types[i++] = entity.getName();
+      IndexNamingStrategy naming = ElasticSearchUtils.getIndexNaming(entity);
+      indices.addAll(Arrays.asList(naming.getSearchIndices(entity,
+          getLuceneQuery())));
+      partitioned |= naming.isPartitioned(entity);
+    }
+    String[] indexNames = indices.toArray(new String[indices.size()]);
+
+    SearchRequestBuilder searchRequest = client.prepareSearch(indexNames);
+    if (partitioned) {
+      // the pruned partitions may not exist, ie: a month without documents.
+      searchRequest.setIgnoreIndices(IgnoreIndices.MISSING);
+    }
+
+    QueryBuilder queryBuilder;
+    if (template == null) {
+      queryBuilder = translate(getLuceneQuery(), entities);
+    } else {
+      queryBuilder = QueryBuilders.wrapperQuery(template.bind(entities,
+          templateParameters));
+    }
+    FilterBuilder filter = buildFilter(entities);
+    if (filter != null) {
+      queryBuilder = QueryBuilders.filteredQuery(queryBuilder, filter);
+    }
+    searchRequest.setQuery(queryBuilder);
+    searchRequest.setTypes(types);
+
+    log.debug("Sending query: {} to indices: {}", queryBuilder,
+        Arrays.toString(indexNames));
+
+    return searchRequest;
+  }
+
+  /** Translates the given lucene query for each of the given entities, or
+   * reuses its last translation, see {@link QueryTranslationCache}.
+   *
+   * The translation depends on the mapping of each entity, ie: its nested
+   * collections and untokenized fields. The entities that share the same
+   * translation share the same query, so usually there is a single one;
+   * otherwise each query only matches the types it was translated for.
+   *
+   * @param luceneQuery the lucene query, cannot be null.
+   * @param entities the indexed entities, cannot be empty.
+   * @return the elasticsearch query, it must not be modified, never null.
+   */
+  static QueryBuilder translate(final Query luceneQuery,
+      final Set<Class<?>> entities) {
+    QueryBuilder translation = TRANSLATIONS.get(luceneQuery, entities);
+    if (translation != null) {
+      return translation;
+    }
+    Map<String, QueryBuilder> queries = new LinkedHashMap<String,
+        QueryBuilder>();
+    Map<String, List<String>> queryTypes = new LinkedHashMap<String,
+        List<String>>();
+    for (Class<?> entity : entities) {
+      ElasticsearchQueryBuilder builder;
+      builder = new ElasticsearchQueryBuilder(luceneQuery, entity);
+      QueryBuilder query = builder.build();
+      String key = query.toString();
+      if (!queries.containsKey(key)) {
+        queries.put(key, query);
+        queryTypes.put(key, new LinkedList<String>());
+      }
+      queryTypes.get(key).add(entity.getName());
+    }
+    if (queries.size() == 1) {
+      translation = queries.values().iterator().next();
+    } else {
+      // each hit matches a single clause, so the coord would only scale down
+      // the scores.
+      BoolQueryBuilder query = QueryBuilders.boolQuery().disableCoord(true);
+      for (Map.Entry<String, QueryBuilder> entry : queries.entrySet()) {
+        OrFilterBuilder typeFilter = FilterBuilders.orFilter();
+        for (String type : queryTypes.get(entry.getKey())) {
+          typeFilter.add(FilterBuilders.typeFilter(type));
         }
-        searchRequest.addSort(sortBuilder);
+        query.should(QueryBuilders.filteredQuery(entry.getValue(),
+            typeFilter));
       }
+      translation = query;
     }
-    searchRequest.setSize(maxResults);
+    TRANSLATIONS.put(luceneQuery, entities, translation);
+    return translation;
+  }
 
-    SearchResponse response = searchRequest.execute().actionGet();
+  /** Translates the filter, the full text filters and the selected facets
+   * of this query.
+   * @param entities the indexed entities, cannot be null.
+   * @return the elasticsearch filter, null if there are no filters.
+   * @throws HibernateException if a filter cannot be translated.
+   */
+  private FilterBuilder buildFilter(final Set<Class<?>> entities) {
+    List<FilterBuilder> filters = new LinkedList<FilterBuilder>();
+    if (userFilter != null) {
+      filters.add(new ElasticsearchFilterBuilder(userFilter, entities)
+          .build());
+    }
+    for (FullTextFilterImpl fullTextFilter : fullTextFilters.values()) {
+      FilterDef definition = getSearchFactoryImplementor()
+          .getFilterDefinition(fullTextFilter.getName());
+      if (definition == null) {
+        throw new HibernateException("Unknown @FullTextFilter: "
+            + fullTextFilter.getName());
+      }
+      filters.add(FULL_TEXT_FILTERS.get(definition,
+          fullTextFilter.getParameters(), entities));
+    }
+    FilterBuilder selection = facetManager.getSelectionFilter(entities);
+    if (selection != null) {
+      filters.add(selection);
+    }
+    if (filters.isEmpty()) {
+      return null;
+    } else if (filters.size() == 1) {
+      return filters.get(0);
+    }
+    return FilterBuilders.boolFilter().must(
+        filters.toArray(new FilterBuilder[filters.size()]));
+  }
 
-    List<EntityInfo> entityInfos = new LinkedList<EntityInfo>();
+  /** Executes the given search request, or reuses its cached hits if the
+   * query result cache is enabled, see {@link QueryResultCache}.
+   * @param searchRequest the search request, cannot be null.
+   * @return the hits, never null.
+   * @throws HibernateException if a shard failed.
+   */
+  private QueryResultCache.Result search(
+      final SearchRequestBuilder searchRequest) {
+    QueryResultCache.Result result = getCachedResult(searchRequest);
+    if (result == null) {
+      long[] generations = getCacheGenerations();
+      result = toResult(searchRequest, generations, execute(searchRequest));
+    }
+    return result;
+  }
+
+  /** Retrieves the cached hits of the given search request.
+   * @param searchRequest the search request, cannot be null.
+   * @return the hits, null if the query result cache is disabled or it does
+   * not have them.
+   */
+  QueryResultCache.Result getCachedResult(
+      final SearchRequestBuilder searchRequest) {
+    if (queryCache == null) {
+      return null;
+    }
+    return queryCache.get(getCacheKey(searchRequest));
+  }
+
+  /** Retrieves the current generations of the indices of this query, it
+   * must be invoked before the search is sent, see {@link QueryResultCache}.
+   * @return the generations, null if the query result cache is disabled.
+   */
+  long[] getCacheGenerations() {
+    if (queryCache == null) {
+      return null;
+    }
+    return queryCache.getGenerations(getCacheIndices());
+  }
 
+  /** Creates the result of the given search response, and caches it if the
+   * query result cache is enabled.
+   * @param searchRequest the search request, cannot be null.
+   * @param generations the generations of the indices before the search was
+   * sent, null to not cache the result.
+   * @param response the response, without shard failures, cannot be null.
+   * @return the hits, never null.
+   */
+  QueryResultCache.Result toResult(final SearchRequestBuilder searchRequest,
+      final long[] generations, final SearchResponse response) {
+    QueryResultCache.Result result = new QueryResultCache.Result(
+        response.getHits().getHits(), response.getHits().getTotalHits(),
+        response.getFacets());
+    if (queryCache != null && generations != null) {
+      queryCache.put(getCacheKey(searchRequest), getCacheIndices(), generations,
+          result);
+    }
+    return result;
+  }
+
+  /** Retrieves the key of the given search request in the query result
+   * cache.
+   * @param searchRequest the search request, cannot be null.
+   * @return the key, never null.
+   */
+  private static String getCacheKey(final SearchRequestBuilder searchRequest) {
+    SearchRequest request = searchRequest.request();
+    return Arrays.toString(request.indices())
+        + Arrays.toString(request.types()) + request.searchType()
+        + searchRequest.internalBuilder();
+  }
+
+  /** Retrieves the indices of the indexed targeted entities, as named by the
+   * query result cache.
+   * @return the indices, never null.
+   */
+  private String[] getCacheIndices() {
+    Set<String> indices = new LinkedHashSet<String>();
+    for (Class<?> entity : getIndexedTargetedEntities()) {
+      indices.add(QueryResultCache.getCacheIndex(entity));
+    }
+    return indices.toArray(new String[indices.size()]);
+  }
+
+  /** Executes the given search request.
+   * @param searchRequest the search request, cannot be null.
+   * @return the response, never null.
+   * @throws HibernateException if a shard failed.
+   */
+  static SearchResponse execute(final SearchRequestBuilder searchRequest) {
+    return checkFailures(searchRequest.execute().actionGet());
+  }
+
+  /** Checks that every shard answered the search of the given response.
+   * @param response the search response, cannot be null.
+   * @return the given response.
+   * @throws HibernateException if a shard failed.
+   */
+  static SearchResponse checkFailures(final SearchResponse response) {
     ShardSearchFailure[] failures = response.getShardFailures();
 
     if (failures.length > 0) {
       throw new HibernateException(failures[0].reason());
     }
+    return response;
+  }
+
+  /** Creates the entity info of the given hit.
+   * @param hit the search hit, cannot be null.
+   * @return the entity info, never null.
+   */
+  EntityInfo toEntityInfo(final SearchHit hit) {
+    Class<?> type = SearchUtils.getClassByName(hit.getType());
+    Serializable id = createId(hit.getId(), type);
+    String idName = SearchUtils.getIdName(type);
+    String[] projected = getProjectedFields();
+    if (projected == null && keepSource && !hit.isSourceEmpty()) {
+      return new SourceEntityInfo(type, idName, id, hit.getSource());
+    }
+    if (projected == null) {
+      return new EntityInfoImpl(type, idName, id, null);
+    }
+    EntityInfoImpl entityInfo = new EntityInfoImpl(type, idName, id,
+        project(hit, type, id, projected));
+    for (int i = 0; i < projected.length; i++) {
+      if (ProjectionConstants.THIS.equals(projected[i])) {
+        // the projection loader loads the entity from the session.
+        entityInfo.getIndexesOfThis().add(i);
+      }
+    }
+    return entityInfo;
+  }
 
-    for (SearchHit hit : response.getHits().getHits()) {
-      Class<?> type = SearchUtils.getClassByName(hit.getType());
-      Serializable id = createId(hit.getId(), type);
-      String idName = SearchUtils.getIdName(type);
-      entityInfos.add(new EntityInfoImpl(type, idName, id, null));
+  /** Creates the projection of the given hit from its stored fields.
+   *
+   * The fields are turned back into objects by the two way field bridges
+   * of the entity, like hibernate search does with the lucene documents.
+   * The lucene document id means nothing outside of its shard, so it is
+   * always null.
+   *
+   * @param hit the search hit, cannot be null.
+   * @param type the class of the entity, cannot be null.
+   * @param id the id of the entity, cannot be null.
+   * @param projected the projected fields, cannot be null.
+   * @return the projected values, in the order of the projected fields,
+   * never null.
+   */
+  private Object[] project(final SearchHit hit, final Class<?> type,
+      final Serializable id, final String[] projected) {
+    Document document = toDocument(hit);
+    Object[] projection = DocumentBuilderHelper.getDocumentFields(
+        getSearchFactoryImplementor(), type, document, projected);
+    for (int i = 0; i < projected.length; i++) {
+      String field = projected[i];
+      if (ProjectionConstants.ID.equals(field)) {
+        projection[i] = id;
+      } else if (ProjectionConstants.OBJECT_CLASS.equals(field)) {
+        projection[i] = type;
+      } else if (ProjectionConstants.SCORE.equals(field)) {
+        projection[i] = hit.getScore();
+      } else if (ProjectionConstants.EXPLANATION.equals(field)) {
+        projection[i] = hit.getExplanation();
+      } else if (ProjectionConstants.DOCUMENT.equals(field)) {
+        projection[i] = document;
+      } else if (isSpecialProjection(field)) {
+        projection[i] = null;
+      }
     }
+    return projection;
+  }
 
-    log.trace("Leaving queryEntityInfos");
+  /** Creates a lucene document with the fields of the given hit, and the
+   * top level fields of its source when it was requested.
+   * @param hit the search hit, cannot be null.
+   * @return the document, never null.
+   */
+  private Document toDocument(final SearchHit hit) {
+    Document document = new Document();
+    for (SearchHitField field : hit.getFields().values()) {
+      if (!SOURCE_FIELD.equals(field.getName())) {
+        addValues(document, field.getName(), field.getValues());
+      }
+    }
+    if (!hit.isSourceEmpty()) {
+      for (Map.Entry<String, Object> field : hit.getSource().entrySet()) {
+        if (document.getFieldable(field.getKey()) == null) {
+          addValues(document, field.getKey(), field.getValue());
+        }
+      }
+    }
+    return document;
+  }
 
-    return entityInfos;
+  /** Adds the given value, or each value of the given collection, to the
+   * document as a stored field.
+   * @param document the document, cannot be null.
+   * @param name the name of the field, cannot be null.
+   * @param value the value, null is ignored.
+   */
+  private void addValues(final Document document, final String name,
+      final Object value) {
+    if (value instanceof Iterable<?>) {
+      for (Object item : (Iterable<?>) value) {
+        addValues(document, name, item);
+      }
+    } else if (value != null) {
+      document.add(new Field(name, String.valueOf(value), Field.Store.YES,
+          Field.Index.NO));
+    }
+  }
+
+  /** Checks if the given projected field is one of the hibernate search
+   * special projections, see {@link ProjectionConstants}.
+   * @param field the projected field, cannot be null.
+   * @return true if it is not a field of the document.
+   */
+  private static boolean isSpecialProjection(final String field) {
+    return SPECIAL_PROJECTIONS.contains(field);
+  }
+
+  /** Checks if the hits of this query are sorted, otherwise they come by
+   * relevance.
+   * @return true if the query is sorted by field or uses the keyset
+   * pagination.
+   */
+  boolean isSorted() {
+    return sort != null || keyset;
+  }
+
+  /** Retrieves the position of the first result.
+   * @return the position of the first result, 0 by default.
+   */
+  int getFirstResult() {
+    if (keyset) {
+      return 0;
+    }
+    return firstResult;
+  }
+
+  /** Retrieves the max results.
+   * @return the max results, null if they were not set.
+   */
+  Integer getMaxResults() {
+    return maxResults;
+  }
+
+  /** Creates the filter that only matches the hits sorted after the given
+   * sort values, that is, the hits whose first different sort value comes
+   * after the value of the previous hit.
+   * @param names the sort fields, cannot be null.
+   * @param reverse the descending simbol of each sort field, cannot be null.
+   * @param values the sort values of the previous hit, cannot be null.
+   * @return the filter, never null.
+   */
+  private FilterBuilder after(final List<String> names,
+      final List<Boolean> reverse, final Object[] values) {
+    Validate.isTrue(values.length == names.size(), "Expected "
+        + names.size() + " sort values, but got " + values.length);
+    OrFilterBuilder after = FilterBuilders.orFilter();
+    for (int i = 0; i < names.size(); i++) {
+      AndFilterBuilder position = FilterBuilders.andFilter();
+      for (int j = 0; j < i; j++) {
+        position.add(FilterBuilders.termFilter(names.get(j), values[j]));
+      }
+      RangeFilterBuilder range = FilterBuilders.rangeFilter(names.get(i));
+      if (reverse.get(i)) {
+        range.lt(values[i]);
+      } else {
+        range.gt(values[i]);
+      }
+      position.add(range);
+      after.add(position);
+    }
+    return after;
   }
 
   /** Creates an id based on the given string-id.
@@ -158,6 +827,48 @@ public class ElasticSearchHSQueryImpl extends HSQueryImpl {
     }
   }
 
+  /** {@inheritDoc}.
+   * It also drops the template of this query, if any.
+   */
+  @Override
+  public HSQuery luceneQuery(final Query query) {
+    queryHasChanged();
+    template = null;
+    return super.luceneQuery(query);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public HSQuery targetedEntities(final List<Class<?>> classes) {
+    queryHasChanged();
+    return super.targetedEntities(classes);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public HSQuery filter(final Filter filter) {
+    queryHasChanged();
+    userFilter = filter;
+    return super.filter(filter);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public FullTextFilter enableFullTextFilter(final String name) {
+    queryHasChanged();
+    FullTextFilter filter = super.enableFullTextFilter(name);
+    fullTextFilters.put(name, (FullTextFilterImpl) filter);
+    return filter;
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void disableFullTextFilter(final String name) {
+    queryHasChanged();
+    fullTextFilters.remove(name);
+    super.disableFullTextFilter(name);
+  }
+
   /** {@inheritDoc}.
    * Sets the sort to this instance.
    *
@@ -171,6 +882,85 @@ public class ElasticSearchHSQueryImpl extends HSQueryImpl {
     return this;
   }
 
+  /** {@inheritDoc}.
+   * Sets the first result to this instance.
+   *
+   * @param first the position of the first result, starting from 0.
+   *
+   * @return this query.
+   */
+  public HSQuery firstResult(final int first) {
+    super.firstResult(first);
+    firstResult = first;
+    return this;
+  }
+
+  /** Switches this query to the keyset pagination, and sets the sort values
+   * of the last hit of the previous page.
+   *
+   * The page starts right after the given hit, so the cost of a page does
+   * not depend on how deep it is. The first result is ignored, and the hits
+   * are also sorted by uid to break the ties.
+   *
+   * @param sortValues the sort values of the last hit of the previous page,
+   * see {@link #getLastSortValues()}, null or empty for the first page.
+   * @return this query.
+   */
+  public HSQuery searchAfter(final Object[] sortValues) {
+    keyset = true;
+    searchAfter = sortValues;
+    return this;
+  }
+
+  /** Retrieves the sort values of the last hit of the last page, in keyset
+   * pagination.
+   * @return the sort values, null if the last page was empty or the query
+   * does not use the keyset pagination.
+   */
+  public Object[] getLastSortValues() {
+    return lastSortValues;
+  }
+
+  /** Sets if the entity infos of this query keep the source of their
+   * documents, to hydrate the entities without the database.
+   * @param keep true to keep the source, false by default.
+   * @return this query.
+   */
+  public HSQuery keepSource(final boolean keep) {
+    keepSource = keep;
+    return this;
+  }
+
+  /** Sets the template of this query, whose lucene query becomes the
+   * lucene query of this query, see {@link QueryTemplate}.
+   * @param theTemplate the template, cannot be null.
+   * @return this query.
+   */
+  public HSQuery template(final QueryTemplate theTemplate) {
+    Validate.notNull(theTemplate, "The template cannot be null");
+    luceneQuery(theTemplate.getQuery());
+    template = theTemplate;
+    templateParameters.clear();
+    return this;
+  }
+
+  /** Binds a value to a parameter of the template of this query.
+   * @param name the parameter name, cannot be null.
+   * @param value the value, cannot be null.
+   * @return this query.
+   */
+  public HSQuery templateParameter(final String name, final Object value) {
+    Validate.notNull(name, "The name cannot be null");
+    Validate.notNull(value, "The value cannot be null");
+    if (template == null) {
+      throw new HibernateException("The query has no template, cannot bind "
+          + name);
+    }
+    queryHasChanged();
+    templateParameters.put(name, value);
+    return this;
+  }
+
   /** Sets the max results.
    * @param max the max results.
    * @return the instance.
@@ -2,6 +2,7 @@ package org.hibernate.search.elasticsearch;
 
 import org.apache.commons.lang.Validate;
 import org.elasticsearch.client.Client;
+import org.hibernate.search.backend.BackendQueueProcessorFactory;
 import org.hibernate.search.impl.ImmutableSearchFactory;
 import org.hibernate.search.query.engine.spi.HSQuery;
 import org.hibernate.search.spi.internals.SearchFactoryState;
@@ -31,6 +32,13 @@ public class ElasticSearchImmutableSearchFactory
   /** {@inheritDoc}.*/
   @Override
   public HSQuery createHSQuery() {
-    return new ElasticSearchHSQueryImpl(this, client);
+    QueryResultCache queryCache = null;
+    BackendQueueProcessorFactory backend =
+        getBackendQueueProcessorFactory();
+    if (backend instanceof ElasticSearchBackendQueueProcessorFactory) {
+      queryCache = ((ElasticSearchBackendQueueProcessorFactory) backend)
+          .getQueryCache();
+    }
+    return new ElasticSearchHSQueryImpl(this, client, queryCache);
   }
 }
@@ -0,0 +1,527 @@
+package org.hibernate.search.elasticsearch;
+
+import java.io.Serializable;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.AbstractCollectionEvent;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostCollectionRecreateEvent;
+import org.hibernate.event.PostCollectionRemoveEvent;
+import org.hibernate.event.PostCollectionUpdateEvent;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.search.annotations.ClassBridge;
+import org.hibernate.search.annotations.ClassBridges;
+import org.hibernate.search.annotations.ContainedIn;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.FieldBridge;
+import org.hibernate.search.annotations.Fields;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.backend.configuration.ConfigurationParseHelper;
+import org.hibernate.search.engine.DocumentBuilderIndexedEntity;
+import org.hibernate.search.event.FullTextIndexEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Hibernate search event listener that keeps track of the indexed fields
+ * that changed on each update, so the backend queue can send a partial update
+ * instead of the whole document.
+ *
+ * To use it, call {@link #register(Configuration)} before building the
+ * session factory, so a single instance is installed instead of the
+ * FullTextIndexEventListener for the post-insert, post-update, post-delete,
+ * post-collection-recreate, post-collection-remove, post-collection-update
+ * and flush events. Hibernate search only supports a single instance, so it
+ * cannot be declared once for each event in the hibernate.cfg.xml.
+ *
+ * A whole document is sent on inserts, and on updates that touch a property
+ * that cannot be translated to its own fields (embedded objects, class or
+ * custom bridges, collections).
+ *
+ * It also follows the ContainedIn properties of every changed entity and
+ * marks the entities they reach as cascades, so their documents can be
+ * deferred, see {@link ContainedInReindexQueue}.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public class ElasticSearchIndexEventListener
+  extends FullTextIndexEventListener {
+
+  /** The serial version.*/
+  private static final long serialVersionUID = 1L;
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(
+      ElasticSearchIndexEventListener.class);
+
+  /** Marks a property that requires to send the whole document.*/
+  private static final Set<String> WHOLE_DOCUMENT = Collections.emptySet();
+
+  /** Marks a class that requires to send the whole document.*/
+  private static final Map<String, Set<String>> WHOLE_CLASS =
+      Collections.emptyMap();
+
+  /** The document fields of each indexed property, by entity class, it's
+   * never null.
+   */
+  private final ConcurrentMap<Class<?>, Map<String, Set<String>>>
+    fieldsByClass =
+      new ConcurrentHashMap<Class<?>, Map<String, Set<String>>>();
+
+  /** The ContainedIn fields and getters of each entity class, it's never
+   * null.
+   */
+  private final ConcurrentMap<Class<?>, List<AccessibleObject>>
+    containedInByClass =
+      new ConcurrentHashMap<Class<?>, List<AccessibleObject>>();
+
+  /** Whether the ContainedIn cascades are deferred, so the changed entities
+   * and the cascades have to be registered.
+   */
+  private boolean deferCascades = false;
+
+  /** Creates a new listener, that must be installed as the single instance
+   * for every event, see {@link #register(Configuration)}.
+   */
+  public ElasticSearchIndexEventListener() {
+    super(Installation.SINGLE_INSTANCE);
+  }
+
+  /** Installs a new listener for every indexing event of the given
+   * configuration, hibernate search does not register its own listener when
+   * it finds this one.
+   * @param cfg the hibernate configuration, cannot be null.
+   */
+  public static void register(final Configuration cfg) {
+    Validate.notNull(cfg, "The configuration cannot be null");
+    ElasticSearchIndexEventListener listener;
+    listener = new ElasticSearchIndexEventListener();
+    EventListeners events = cfg.getEventListeners();
+    events.setPostInsertEventListeners(append(
+        events.getPostInsertEventListeners(), listener));
+    events.setPostUpdateEventListeners(append(
+        events.getPostUpdateEventListeners(), listener));
+    events.setPostDeleteEventListeners(append(
+        events.getPostDeleteEventListeners(), listener));
+    events.setPostCollectionRecreateEventListeners(append(
+        events.getPostCollectionRecreateEventListeners(), listener));
+    events.setPostCollectionRemoveEventListeners(append(
+        events.getPostCollectionRemoveEventListeners(), listener));
+    events.setPostCollectionUpdateEventListeners(append(
+        events.getPostCollectionUpdateEventListeners(), listener));
+    events.setFlushEventListeners(append(
+        events.getFlushEventListeners(), listener));
+  }
+
+  /** Creates a copy of the given listeners with the given one at the end.
+   * @param <T> the listener type.
+   * @param listeners the current listeners, cannot be null.
+   * @param listener the listener to add, cannot be null.
+   * @return the new listeners, never null.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T[] append(final T[] listeners, final T listener) {
+    T[] result = (T[]) Array.newInstance(
+        listeners.getClass().getComponentType(), listeners.length + 1);
+    System.arraycopy(listeners, 0, result, 0, listeners.length);
+    result[listeners.length] = listener;
+    return result;
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void initialize(final Configuration cfg) {
+    super.initialize(cfg);
+    if (used) {
+      deferCascades = ConfigurationParseHelper.getIntValue(
+          cfg.getProperties(), ElasticSearchEnvironment.CASCADE_DELAY,
+          ElasticSearchEnvironment.DEFAULT_CASCADE_DELAY) > 0;
+      if (deferCascades) {
+        ChangedEntityRegistry.enable();
+      }
+      for (Class<?> type
+          : searchFactoryImplementor.getDocumentBuildersIndexedEntities()
+            .keySet()) {
+        EntityHydrator.generate(type);
+      }
+    }
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void cleanup() {
+    ChangedEntityRegistry.disable();
+    super.cleanup();
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void onPostInsert(final PostInsertEvent event) {
+    if (used) {
+      registerChange(event.getPersister().getMappedClass(EntityMode.POJO),
+          event.getId());
+      registerCascades(event.getSession(), event.getEntity());
+    }
+    super.onPostInsert(event);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void onPostUpdate(final PostUpdateEvent event) {
+    if (used) {
+      registerChange(event.getPersister().getMappedClass(EntityMode.POJO),
+          event.getId());
+      registerCascades(event.getSession(), event.getEntity());
+      registerDirtyFields(event);
+    }
+    super.onPostUpdate(event);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void onPostDelete(final PostDeleteEvent event) {
+    if (used) {
+      registerCascades(event.getSession(), event.getEntity());
+    }
+    super.onPostDelete(event);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void onPostRecreateCollection(
+      final PostCollectionRecreateEvent event) {
+    sendWholeDocument(event);
+    super.onPostRecreateCollection(event);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void onPostRemoveCollection(final PostCollectionRemoveEvent event) {
+    sendWholeDocument(event);
+    super.onPostRemoveCollection(event);
+  }
+
+  /** {@inheritDoc}.*/
+  @Override
+  public void onPostUpdateCollection(final PostCollectionUpdateEvent event) {
+    sendWholeDocument(event);
+    super.onPostUpdateCollection(event);
+  }
+
+  /** Registers the document fields changed by the given update.
+   * @param event the update event, cannot be null.
+   */
+  private void registerDirtyFields(final PostUpdateEvent event) {
+    int[] dirtyProperties = event.getDirtyProperties();
+    if (dirtyProperties == null || dirtyProperties.length == 0) {
+      return;
+    }
+    Class<?> type = event.getPersister().getMappedClass(EntityMode.POJO);
+    String id = idInString(type, event.getId());
+    if (id == null) {
+      return;
+    }
+    // the fields registered by a former flush of the same transaction are
+    // not enough when this update requires the whole document.
+    Map<String, Set<String>> fieldsByProperty = getFields(type);
+    if (fieldsByProperty == null) {
+      DirtyFieldRegistry.whole(type.getName(), id);
+      return;
+    }
+    String[] names = event.getPersister().getPropertyNames();
+    Set<String> dirtyFields = new HashSet<String>();
+    for (int property : dirtyProperties) {
+      Set<String> fields = fieldsByProperty.get(names[property]);
+      if (fields == WHOLE_DOCUMENT) {
+        log.trace("{} requires the whole document", names[property]);
+        DirtyFieldRegistry.whole(type.getName(), id);
+        return;
+      } else if (fields != null) {
+        dirtyFields.addAll(fields);
+      }
+    }
+    if (!dirtyFields.isEmpty()) {
+      log.debug("Dirty fields of {} with id {}: {}",
+          new Object[] {type.getName(), id, dirtyFields});
+      DirtyFieldRegistry.dirty(type.getName(), id, dirtyFields);
+    }
+  }
+
+  /** Forces the owner of the given collection to be sent as a whole.
+   * @param event the collection event, cannot be null.
+   */
+  private void sendWholeDocument(final AbstractCollectionEvent event) {
+    Object owner = event.getAffectedOwnerOrNull();
+    Serializable ownerId = event.getAffectedOwnerIdOrNull();
+    if (used && owner != null && ownerId != null) {
+      Class<?> type = Hibernate.getClass(owner);
+      String id = idInString(type, ownerId);
+      if (id != null) {
+        DirtyFieldRegistry.whole(type.getName(), id);
+      }
+      registerChange(type, ownerId);
+      registerCascades(event.getSession(), unproxy(owner));
+    }
+  }
+
+  /** Registers the given entity as changed by the application, so the
+   * backend queue does not defer it as a ContainedIn cascade.
+   * @param type the entity type, cannot be null.
+   * @param entityId the entity id, can be null.
+   */
+  private void registerChange(final Class<?> type,
+      final Serializable entityId) {
+    if (!deferCascades || entityId == null) {
+      return;
+    }
+    String id = idInString(type, entityId);
+    if (id != null) {
+      ChangedEntityRegistry.changed(type.getName(), id);
+    }
+  }
+
+  /** Marks the entities reached by the ContainedIn properties of the given
+   * entity, and of the entities they reach, as ContainedIn cascades.
+   * @param session the session of the event, cannot be null.
+   * @param entity the changed entity, cannot be null.
+   */
+  private void registerCascades(final EventSource session,
+      final Object entity) {
+    if (!deferCascades) {
+      return;
+    }
+    registerCascades(session, entity, new IdentityHashMap<Object, Object>());
+  }
+
+  /** Marks the entities reached by the ContainedIn properties of the given
+   * entity as cascades, and follows theirs.
+   * @param session the session of the event, cannot be null.
+   * @param entity the entity, cannot be null.
+   * @param visited the entities already followed, cannot be null.
+   */
+  private void registerCascades(final EventSource session,
+      final Object entity, final Map<Object, Object> visited) {
+    if (visited.put(entity, entity) != null) {
+      return;
+    }
+    for (AccessibleObject member : getContainedIn(entity.getClass())) {
+      for (Object target : read(member, entity)) {
+        if (target == null) {
+          continue;
+        }
+        Class<?> type = Hibernate.getClass(target);
+        Serializable targetId = session.getContextEntityIdentifier(target);
+        if (targetId != null) {
+          String id = idInString(type, targetId);
+          if (id != null) {
+            ChangedEntityRegistry.cascaded(type.getName(), id);
+          }
+        }
+        registerCascades(session, unproxy(target), visited);
+      }
+    }
+  }
+
+  /** Retrieves the ContainedIn fields and getters of the given class and its
+   * super classes.
+   * @param type the entity class, cannot be null.
+   * @return the accessible fields and getters, never null.
+   */
+  private List<AccessibleObject> getContainedIn(final Class<?> type) {
+    List<AccessibleObject> members = containedInByClass.get(type);
+    if (members == null) {
+      members = new ArrayList<AccessibleObject>();
+      Class<?> current = type;
+      while (current != null && current != Object.class) {
+        for (java.lang.reflect.Field field : current.getDeclaredFields()) {
+          if (field.isAnnotationPresent(ContainedIn.class)) {
+            members.add(field);
+          }
+        }
+        for (Method method : current.getDeclaredMethods()) {
+          if (method.isAnnotationPresent(ContainedIn.class)
+              && method.getParameterTypes().length == 0) {
+            members.add(method);
+          }
+        }
+        current = current.getSuperclass();
+      }
+      for (AccessibleObject member : members) {
+        member.setAccessible(true);
+      }
+      containedInByClass.putIfAbsent(type, members);
+    }
+    return members;
+  }
+
+  /** Reads the entities referenced by the given ContainedIn member.
+   * @param member the field or getter, cannot be null.
+   * @param entity the entity to read, cannot be null.
+   * @return the referenced entities, never null.
+   */
+  private static Collection<?> read(final AccessibleObject member,
+      final Object entity) {
+    Object value;
+    try {
+      if (member instanceof Method) {
+        value = ((Method) member).invoke(entity);
+      } else {
+        value = ((java.lang.reflect.Field) member).get(entity);
+      }
+    } catch (Exception e) {
+      log.warn("Cannot read the ContainedIn " + member + ", its documents"
+          + " are not deferred", e);
+      return Collections.emptySet();
+    }
+    if (value == null) {
+      return Collections.emptySet();
+    } else if (value instanceof Collection) {
+      return (Collection<?>) value;
+    } else if (value instanceof Map) {
+      return ((Map<?, ?>) value).values();
+    } else if (value instanceof Object[]) {
+      return Arrays.asList((Object[]) value);
+    }
+    return Collections.singleton(value);
+  }
+
+  /** Retrieves the entity behind the given proxy.
+   * @param entity the entity or its proxy, cannot be null.
+   * @return the entity, never null.
+   */
+  private static Object unproxy(final Object entity) {
+    if (entity instanceof HibernateProxy) {
+      return ((HibernateProxy) entity).getHibernateLazyInitializer()
+          .getImplementation();
+    }
+    return entity;
+  }
+
+  /** Converts the given id to the string sent to elasticsearch.
+   * @param type the entity type, cannot be null.
+   * @param id the entity id, cannot be null.
+   * @return the id as string, null if the type is not indexed.
+   */
+  private String idInString(final Class<?> type, final Serializable id) {
+    DocumentBuilderIndexedEntity<?> builder;
+    builder = searchFactoryImplementor.getDocumentBuilderIndexedEntity(type);
+    if (builder == null) {
+      return null;
+    }
+    return builder.getIdBridge().objectToString(id);
+  }
+
+  /** Retrieves the document fields of each indexed property of the given
+   * type.
+   * @param type the entity type, cannot be null.
+   * @return the fields by property name, null if any change requires the
+   * whole document.
+   */
+  private Map<String, Set<String>> getFields(final Class<?> type) {
+    Map<String, Set<String>> fields = fieldsByClass.get(type);
+    if (fields == null) {
+      fields = introspect(type);
+      fieldsByClass.putIfAbsent(type, fields);
+    }
+    if (fields == WHOLE_CLASS) {
+      return null;
+    }
+    return fields;
+  }
+
+  /** Reads the search annotations of the given type and its super classes.
+   * @param type the entity type, cannot be null.
+   * @return the fields by property name, WHOLE_CLASS if the class has
+   * bridges.
+   */
+  private static Map<String, Set<String>> introspect(final Class<?> type) {
+    Map<String, Set<String>> fields = new HashMap<String, Set<String>>();
+    Class<?> current = type;
+    while (current != null && current != Object.class) {
+      if (current.isAnnotationPresent(ClassBridge.class)
+          || current.isAnnotationPresent(ClassBridges.class)) {
+        return WHOLE_CLASS;
+      }
+      for (java.lang.reflect.Field field : current.getDeclaredFields()) {
+        introspect(field.getName(), field, fields);
+      }
+      for (Method method : current.getDeclaredMethods()) {
+        String name = method.getName();
+        if (name.startsWith("get") && name.length() > 3) {
+          introspect(Character.toLowerCase(name.charAt(3))
+              + name.substring(4), method, fields);
+        } else if (name.startsWith("is") && name.length() > 2) {
+          introspect(Character.toLowerCase(name.charAt(2))
+              + name.substring(3), method, fields);
+        }
+      }
+      current = current.getSuperclass();
+    }
+    return fields;
+  }
+
+  /** Adds the fields mapped by the given property.
+   * @param property the property name, cannot be null.
+   * @param member the annotated field or getter, cannot be null.
+   * @param fields the fields by property name, cannot be null.
+   */
+  private static void introspect(final String property,
+      final AnnotatedElement member, final Map<String, Set<String>> fields) {
+    if (member.isAnnotationPresent(IndexedEmbedded.class)
+        || member.isAnnotationPresent(FieldBridge.class)) {
+      fields.put(property, WHOLE_DOCUMENT);
+      return;
+    }
+    Field[] annotations = null;
+    if (member.isAnnotationPresent(Field.class)) {
+      annotations = new Field[] {member.getAnnotation(Field.class)};
+    } else if (member.isAnnotationPresent(Fields.class)) {
+      annotations = member.getAnnotation(Fields.class).value();
+    }
+    if (annotations == null) {
+      return;
+    }
+    Set<String> names = new HashSet<String>();
+    for (Field annotation : annotations) {
+      if (annotation.bridge().impl() != void.class) {
+        fields.put(property, WHOLE_DOCUMENT);
+        return;
+      }
+      if ("".equals(annotation.name())) {
+        names.add(property);
+      } else {
+        names.add(annotation.name());
+      }
+    }
+    Set<String> current = fields.get(property);
+    if (current == WHOLE_DOCUMENT) {
+      return;
+    } else if (current != null) {
+      names.addAll(current);
+    }
+    fields.put(property, names);
+  }
+
+}
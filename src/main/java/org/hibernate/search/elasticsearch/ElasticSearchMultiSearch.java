@@ -0,0 +1,114 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.hibernate.HibernateException;
+import org.hibernate.search.query.engine.spi.EntityInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Lists several full text queries with a single elasticsearch multi search
+ * request.
+ *
+ * The searches of the queries whose hits are in the query result cache are
+ * not sent, see {@link QueryResultCache}. The entities of each query are
+ * then loaded as {@link ElasticSearchFullTextQuery#list()} does.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchMultiSearch {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(
+      ElasticSearchMultiSearch.class);
+
+  /** The elasticsearch client, it's never null.*/
+  private final Client client;
+
+  /** Creates a new multi search.
+   * @param theClient the elasticsearch client, cannot be null.
+   */
+  ElasticSearchMultiSearch(final Client theClient) {
+    Validate.notNull(theClient, "The client cannot be null");
+    client = theClient;
+  }
+
+  /** Lists the given queries.
+   * @param queries the queries, cannot be null.
+   * @return the outcome of each query, in the order of the queries, never
+   * null.
+   */
+  List<MultiSearchResult> list(final List<ElasticSearchFullTextQuery> queries) {
+    Validate.notNull(queries, "The queries cannot be null");
+    int size = queries.size();
+    SearchRequestBuilder[] requests = new SearchRequestBuilder[size];
+    QueryResultCache.Result[] results = new QueryResultCache.Result[size];
+    long[][] generations = new long[size][];
+    HibernateException[] failures = new HibernateException[size];
+
+    MultiSearchRequestBuilder multiSearch = client.prepareMultiSearch();
+    List<Integer> sent = new ArrayList<Integer>(size);
+    for (int i = 0; i < size; i++) {
+      ElasticSearchHSQueryImpl query = queries.get(i).getQuery();
+      try {
+        requests[i] = query.prepareEntityInfosSearch();
+        results[i] = query.getCachedResult(requests[i]);
+      } catch (HibernateException e) {
+        failures[i] = e;
+        continue;
+      }
+      if (results[i] == null) {
+        generations[i] = query.getCacheGenerations();
+        multiSearch.add(requests[i]);
+        sent.add(i);
+      }
+    }
+
+    if (!sent.isEmpty()) {
+      log.debug("Sending {} of {} searches", sent.size(), size);
+      MultiSearchResponse.Item[] items;
+      items = multiSearch.execute().actionGet().getResponses();
+      for (int i = 0; i < items.length; i++) {
+        int position = sent.get(i);
+        if (items[i].isFailure()) {
+          failures[position] = new HibernateException(
+              items[i].getFailureMessage());
+          continue;
+        }
+        try {
+          SearchResponse response = ElasticSearchHSQueryImpl.checkFailures(
+              items[i].getResponse());
+          results[position] = queries.get(position).getQuery().toResult(
+              requests[position], generations[position], response);
+        } catch (HibernateException e) {
+          failures[position] = e;
+        }
+      }
+    }
+
+    List<MultiSearchResult> outcomes = new ArrayList<MultiSearchResult>(size);
+    for (int i = 0; i < size; i++) {
+      if (failures[i] != null) {
+        outcomes.add(new MultiSearchResult(failures[i]));
+        continue;
+      }
+      ElasticSearchFullTextQuery query = queries.get(i);
+      try {
+        List<EntityInfo> entityInfos;
+        entityInfos = query.getQuery().toEntityInfos(results[i]);
+        outcomes.add(new MultiSearchResult(query.load(entityInfos)));
+      } catch (HibernateException e) {
+        outcomes.add(new MultiSearchResult(e));
+      }
+    }
+    return outcomes;
+  }
+
+}
@@ -0,0 +1,295 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang.Validate;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.SearchHit;
+import org.hibernate.HibernateException;
+import org.hibernate.search.query.engine.spi.EntityInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Streams the hits of a query through the elasticsearch scroll api.
+ *
+ * The hits are fetched in pages, on demand, and only the current page is
+ * kept in memory. The queries that are not sorted use the scan search type,
+ * that skips the scoring and the sorting, so each page returns up to the
+ * page size hits from each shard.
+ *
+ * With a prefetch depth, the next pages are requested in background while
+ * the current one is consumed, up to the given number of pages ahead, and
+ * their hits are turned into entity infos as soon as they arrive.
+ *
+ * Elasticsearch 0.20 cannot clear a scroll, so the scroll context of a
+ * closed scroll is released by elasticsearch once its keep alive expires.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchScroll {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(
+      ElasticSearchScroll.class);
+
+  /** The time elasticsearch keeps the scroll context between two pages.*/
+  private static final String KEEP_ALIVE = "1m";
+
+  /** The empty page.*/
+  private static final EntityInfo[] NO_HITS = new EntityInfo[0];
+
+  /** The elastic search client, it's never null.*/
+  private final Client client;
+
+  /** The query, it's never null.*/
+  private final ElasticSearchHSQueryImpl query;
+
+  /** The number of hits this scroll returns.*/
+  private final int total;
+
+  /** The max number of pages fetched ahead of the current one.*/
+  private final int prefetch;
+
+  /** The pages fetched ahead of the current one, it's never null. Guarded
+   * by this scroll.
+   */
+  private final LinkedList<EntityInfo[]> ahead =
+      new LinkedList<EntityInfo[]>();
+
+  /** The id of the scroll, it changes with each page. Guarded by this
+   * scroll.
+   */
+  private String scrollId;
+
+  /** Checks if there is a request of the next page in flight. Guarded by
+   * this scroll.
+   */
+  private boolean requesting = false;
+
+  /** The failure of the last page request, null if none. Guarded by this
+   * scroll.
+   */
+  private Throwable failure;
+
+  /** The current page, it's never null.*/
+  private EntityInfo[] page;
+
+  /** The position of the next hit within the current page.*/
+  private int position = 0;
+
+  /** The number of hits to skip before the first result.*/
+  private int skip;
+
+  /** The number of hits returned so far.*/
+  private int returned = 0;
+
+  /** Checks if elasticsearch has no more hits. Guarded by this scroll.*/
+  private boolean done = false;
+
+  /** Creates a new scroll and fetches its first page.
+   * @param theClient the elastic search client, cannot be null.
+   * @param theQuery the query, cannot be null.
+   * @param pageSize the number of hits fetched by each round trip, must be
+   * greater than zero.
+   * @param prefetchDepth the max number of pages fetched ahead of the
+   * current one, 0 to fetch each page when it's needed.
+   */
+  ElasticSearchScroll(final Client theClient,
+      final ElasticSearchHSQueryImpl theQuery, final int pageSize,
+      final int prefetchDepth) {
+    Validate.notNull(theClient, "The client cannot be null");
+    Validate.notNull(theQuery, "The query cannot be null");
+    Validate.isTrue(pageSize > 0, "The page size must be greater than 0");
+    Validate.isTrue(prefetchDepth >= 0, "The prefetch depth cannot be < 0");
+    client = theClient;
+    query = theQuery;
+    prefetch = prefetchDepth;
+
+    SearchRequestBuilder searchRequest = query.prepareSearch();
+    if (!query.isSorted()) {
+      searchRequest.setSearchType(SearchType.SCAN);
+    }
+    searchRequest.setScroll(KEEP_ALIVE);
+    searchRequest.setSize(pageSize);
+
+    SearchResponse response = ElasticSearchHSQueryImpl.execute(searchRequest);
+    scrollId = response.getScrollId();
+    // the scan search type returns no hits within the first response.
+    page = toEntityInfos(response.getHits().getHits());
+    skip = query.getFirstResult();
+
+    long hits = Math.max(0, response.getHits().getTotalHits() - skip);
+    if (query.getMaxResults() != null) {
+      hits = Math.min(hits, query.getMaxResults());
+    }
+    total = (int) hits;
+    log.debug("Scrolling {} hits in pages of {}", total, pageSize);
+    if (total > page.length) {
+      request(prefetch);
+    }
+  }
+
+  /** Retrieves the number of hits this scroll returns.
+   * @return the number of hits, zero or more.
+   */
+  int getTotal() {
+    return total;
+  }
+
+  /** Checks if there are more hits.
+   * @return true if next returns a hit.
+   */
+  boolean hasNext() {
+    return returned < total && fetch();
+  }
+
+  /** Retrieves the next hit.
+   * @return the entity info of the next hit, never null.
+   * @throws NoSuchElementException if there are no more hits.
+   */
+  EntityInfo next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("There are no more hits");
+    }
+    returned++;
+    return page[position++];
+  }
+
+  /** Stops this scroll and forgets its current page, the pages fetched
+   * ahead are discarded when they arrive.
+   */
+  synchronized void close() {
+    if (!done) {
+      log.debug("Closing the scroll after {} of {} hits", returned, total);
+    }
+    done = true;
+    ahead.clear();
+    page = NO_HITS;
+    position = 0;
+  }
+
+  /** Moves to the next available hit, skipping the hits before the first
+   * result and fetching the next page when needed.
+   * @return true if the current page holds the next hit.
+   */
+  private boolean fetch() {
+    while (true) {
+      while (skip > 0 && position < page.length) {
+        position++;
+        skip--;
+      }
+      if (position < page.length) {
+        return true;
+      }
+      EntityInfo[] next = nextPage();
+      if (next == null) {
+        return false;
+      }
+      page = next;
+      position = 0;
+    }
+  }
+
+  /** Takes the next page, waiting for it if it did not arrive yet.
+   * @return the next page, null if there are no more hits.
+   */
+  private synchronized EntityInfo[] nextPage() {
+    request(1);
+    while (ahead.isEmpty() && !done && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new HibernateException("Interrupted while scrolling", e);
+      }
+    }
+    if (failure != null) {
+      Throwable cause = failure;
+      close();
+      throw new HibernateException("Cannot fetch the next page", cause);
+    }
+    if (ahead.isEmpty()) {
+      return null;
+    }
+    EntityInfo[] next = ahead.removeFirst();
+    request(prefetch);
+    return next;
+  }
+
+  /** Requests the next page, unless there are already the given number of
+   * pages ahead of the current one, or a request in flight.
+   *
+   * Each page needs the scroll id of the previous one, so the requests are
+   * chained: the next request is sent when the response of the previous one
+   * arrives.
+   *
+   * @param pages the number of pages to keep ahead of the current one.
+   */
+  private synchronized void request(final int pages) {
+    if (requesting || done || failure != null || ahead.size() >= pages) {
+      return;
+    }
+    requesting = true;
+    client.prepareSearchScroll(scrollId).setScroll(KEEP_ALIVE).execute(
+        new ActionListener<SearchResponse>() {
+          /** {@inheritDoc}.*/
+          public void onResponse(final SearchResponse response) {
+            arrived(response, null);
+          }
+          /** {@inheritDoc}.*/
+          public void onFailure(final Throwable e) {
+            arrived(null, e);
+          }
+        });
+  }
+
+  /** Keeps the page of the given response, and requests the next one if
+   * the prefetch depth allows it.
+   * @param response the response, null if the request failed.
+   * @param error the failure, null if the request succeeded.
+   */
+  private synchronized void arrived(final SearchResponse response,
+      final Throwable error) {
+    requesting = false;
+    try {
+      if (done) {
+        return;
+      }
+      if (error != null) {
+        failure = error;
+        return;
+      }
+      ElasticSearchHSQueryImpl.checkFailures(response);
+      scrollId = response.getScrollId();
+      SearchHit[] hits = response.getHits().getHits();
+      if (hits.length == 0) {
+        done = true;
+        return;
+      }
+      ahead.add(toEntityInfos(hits));
+      request(prefetch);
+    } catch (RuntimeException e) {
+      failure = e;
+    } finally {
+      notifyAll();
+    }
+  }
+
+  /** Creates the entity infos of the given hits.
+   * @param hits the search hits, cannot be null.
+   * @return the entity infos, never null.
+   */
+  private EntityInfo[] toEntityInfos(final SearchHit[] hits) {
+    EntityInfo[] infos = new EntityInfo[hits.length];
+    for (int i = 0; i < hits.length; i++) {
+      infos[i] = query.toEntityInfo(hits[i]);
+    }
+    return infos;
+  }
+
+}
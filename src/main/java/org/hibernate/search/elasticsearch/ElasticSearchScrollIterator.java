@@ -0,0 +1,84 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.search.query.engine.spi.EntityInfo;
+import org.hibernate.search.query.hibernate.impl.Loader;
+import org.hibernate.search.query.hibernate.impl.ProjectionLoader;
+
+/** Iterates the results of a query backed by an {@link ElasticSearchScroll}.
+ *
+ * The entities are loaded in batches of fetch size entities, when the first
+ * one of each batch is reached, and each one is returned from the session.
+ *
+ * The scroll is closed once the last hit is reached.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchScrollIterator implements Iterator<Object> {
+
+  /** The scroll, it's never null.*/
+  private final ElasticSearchScroll scroll;
+
+  /** The number of entities loaded by each batch.*/
+  private final int batchSize;
+
+  /** The loader of the entities, it's never null.*/
+  private final Loader loader;
+
+  /** The entity infos of the current batch not returned yet, it's never
+   * null.
+   */
+  private final LinkedList<EntityInfo> batch = new LinkedList<EntityInfo>();
+
+  /** Creates a new iterator.
+   * @param theScroll the scroll, cannot be null.
+   * @param theBatchSize the number of entities loaded by each batch, must be
+   * greater than zero.
+   * @param theLoader the loader of the entities, cannot be null.
+   */
+  ElasticSearchScrollIterator(final ElasticSearchScroll theScroll,
+      final int theBatchSize, final Loader theLoader) {
+    Validate.notNull(theScroll, "The scroll cannot be null");
+    Validate.isTrue(theBatchSize > 0, "The batch size must be greater than 0");
+    Validate.notNull(theLoader, "The loader cannot be null");
+    scroll = theScroll;
+    batchSize = theBatchSize;
+    loader = theLoader;
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean hasNext() {
+    if (!batch.isEmpty() || scroll.hasNext()) {
+      return true;
+    }
+    scroll.close();
+    return false;
+  }
+
+  /** {@inheritDoc}.*/
+  public Object next() {
+    if (batch.isEmpty()) {
+      while (batch.size() < batchSize && scroll.hasNext()) {
+        batch.add(scroll.next());
+      }
+      if (batch.isEmpty()) {
+        throw new NoSuchElementException("There are no more results");
+      }
+      if (!(loader instanceof ProjectionLoader)) {
+        loader.load(batch.toArray(new EntityInfo[batch.size()]));
+      }
+    }
+    return loader.load(batch.removeFirst());
+  }
+
+  /** {@inheritDoc}.*/
+  public void remove() {
+    throw new UnsupportedOperationException(
+        "Cannot remove from a full text query result");
+  }
+
+}
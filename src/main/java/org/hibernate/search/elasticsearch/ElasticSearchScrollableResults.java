@@ -0,0 +1,351 @@
+package org.hibernate.search.elasticsearch;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.ScrollableResults;
+import org.hibernate.search.query.engine.spi.EntityInfo;
+import org.hibernate.search.query.hibernate.impl.Loader;
+import org.hibernate.search.query.hibernate.impl.ProjectionLoader;
+import org.hibernate.type.Type;
+
+/** Scrollable results backed by an {@link ElasticSearchScroll}.
+ *
+ * Only the last two fetch sizes of entity infos are kept in memory: the
+ * rows read ahead for the current batch, and the fetch size rows before the
+ * current one. The entities are loaded in batches of fetch size entities
+ * when the first one of each batch is read. Moving backwards beyond the
+ * kept entity infos starts the scroll again, so these results are meant to
+ * be read forward.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchScrollableResults implements ScrollableResults {
+
+  /** The query, it's never null.*/
+  private final ElasticSearchHSQueryImpl query;
+
+  /** The number of hits fetched by each round trip.*/
+  private final int fetchSize;
+
+  /** The max number of pages fetched ahead of the current one.*/
+  private final int prefetch;
+
+  /** The loader of the entities, it's never null.*/
+  private final Loader loader;
+
+  /** The last entity infos read from the scroll, by row modulo its length,
+   * twice the fetch size.
+   */
+  private final EntityInfo[] window;
+
+  /** The number of rows.*/
+  private final int total;
+
+  /** The scroll, it's never null.*/
+  private ElasticSearchScroll scroll;
+
+  /** The row of the last entity info read from the scroll, -1 if none.*/
+  private int scrollRow = -1;
+
+  /** The current row, -1 before the first row and total after the last.*/
+  private int row = -1;
+
+  /** The values of the current row, null if they were not loaded yet.*/
+  private Object[] current;
+
+  /** The first row of the last batch of loaded entities.*/
+  private int batchStart = 0;
+
+  /** The last row of the last batch of loaded entities, -1 if none.*/
+  private int batchEnd = -1;
+
+  /** Creates new scrollable results and fetches the first page of hits.
+   * @param theQuery the query, cannot be null.
+   * @param theFetchSize the number of hits fetched by each round trip, must
+   * be greater than zero.
+   * @param prefetchDepth the max number of pages fetched ahead of the
+   * current one, 0 to fetch each page when it's needed.
+   * @param theLoader the loader of the entities, cannot be null.
+   */
+  ElasticSearchScrollableResults(final ElasticSearchHSQueryImpl theQuery,
+      final int theFetchSize, final int prefetchDepth,
+      final Loader theLoader) {
+    Validate.notNull(theQuery, "The query cannot be null");
+    Validate.notNull(theLoader, "The loader cannot be null");
+    query = theQuery;
+    fetchSize = theFetchSize;
+    prefetch = prefetchDepth;
+    loader = theLoader;
+    window = new EntityInfo[2 * theFetchSize];
+    scroll = query.scroll(theFetchSize, prefetch);
+    total = scroll.getTotal();
+  }
+
+  /** Moves to the given row.
+   * @param target the row, starting from 0.
+   * @return true if the row exists.
+   */
+  private boolean moveTo(final int target) {
+    current = null;
+    if (target < 0) {
+      row = -1;
+      return false;
+    }
+    if (target >= total) {
+      row = total;
+      return false;
+    }
+    if (target <= scrollRow - window.length) {
+      // the row is not kept anymore, the scroll starts again.
+      scroll.close();
+      scroll = query.scroll(fetchSize, prefetch);
+      scrollRow = -1;
+      batchEnd = -1;
+    }
+    if (!readUntil(target)) {
+      // the index changed since the first page.
+      row = total;
+      return false;
+    }
+    row = target;
+    return true;
+  }
+
+  /** Reads the entity infos from the scroll up to the given row.
+   * @param target the row, starting from 0.
+   * @return true if the scroll reached the row.
+   */
+  private boolean readUntil(final int target) {
+    while (scrollRow < target) {
+      if (!scroll.hasNext()) {
+        return false;
+      }
+      scrollRow++;
+      window[scrollRow % window.length] = scroll.next();
+    }
+    return true;
+  }
+
+  /** Loads the entities of the next fetch size rows in a single batch,
+   * starting from the current row, so they are in the session when they
+   * are read.
+   */
+  private void loadBatch() {
+    int last = Math.min(total - 1, row + fetchSize - 1);
+    readUntil(last);
+    batchStart = row;
+    batchEnd = Math.min(last, scrollRow);
+    if (loader instanceof ProjectionLoader) {
+      return;
+    }
+    EntityInfo[] batch = new EntityInfo[batchEnd - batchStart + 1];
+    for (int i = 0; i < batch.length; i++) {
+      batch[i] = window[(batchStart + i) % window.length];
+    }
+    loader.load(batch);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean next() {
+    return moveTo(row + 1);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean previous() {
+    return moveTo(row - 1);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean scroll(final int positions) {
+    return moveTo(row + positions);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean last() {
+    return moveTo(total - 1);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean first() {
+    return moveTo(0);
+  }
+
+  /** {@inheritDoc}.*/
+  public void beforeFirst() {
+    moveTo(-1);
+  }
+
+  /** {@inheritDoc}.*/
+  public void afterLast() {
+    moveTo(total);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean isFirst() {
+    return row == 0;
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean isLast() {
+    return row == total - 1;
+  }
+
+  /** {@inheritDoc}.*/
+  public void close() {
+    scroll.close();
+  }
+
+  /** {@inheritDoc}.*/
+  public Object[] get() {
+    if (row < 0 || row >= total) {
+      return null;
+    }
+    if (current == null) {
+      if (row < batchStart || row > batchEnd) {
+        loadBatch();
+      }
+      Object result = loader.load(window[row % window.length]);
+      if (result instanceof Object[]) {
+        // the projections are already an array.
+        current = (Object[]) result;
+      } else {
+        current = new Object[] {result};
+      }
+    }
+    return current;
+  }
+
+  /** {@inheritDoc}.*/
+  public Object get(final int col) {
+    Object[] values = get();
+    if (values == null) {
+      return null;
+    }
+    return values[col];
+  }
+
+  /** {@inheritDoc}.*/
+  public Type getType(final int col) {
+    throw new UnsupportedOperationException(
+        "The full text queries do not support getType");
+  }
+
+  /** {@inheritDoc}.*/
+  public Integer getInteger(final int col) {
+    return (Integer) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Long getLong(final int col) {
+    return (Long) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Float getFloat(final int col) {
+    return (Float) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Boolean getBoolean(final int col) {
+    return (Boolean) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Double getDouble(final int col) {
+    return (Double) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Short getShort(final int col) {
+    return (Short) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Byte getByte(final int col) {
+    return (Byte) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Character getCharacter(final int col) {
+    return (Character) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public byte[] getBinary(final int col) {
+    return (byte[]) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public String getText(final int col) {
+    return (String) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Blob getBlob(final int col) {
+    return (Blob) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Clob getClob(final int col) {
+    return (Clob) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public String getString(final int col) {
+    return (String) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public BigDecimal getBigDecimal(final int col) {
+    return (BigDecimal) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public BigInteger getBigInteger(final int col) {
+    return (BigInteger) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Date getDate(final int col) {
+    return (Date) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Locale getLocale(final int col) {
+    return (Locale) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public Calendar getCalendar(final int col) {
+    return (Calendar) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public TimeZone getTimeZone(final int col) {
+    return (TimeZone) get(col);
+  }
+
+  /** {@inheritDoc}.*/
+  public int getRowNumber() {
+    return row;
+  }
+
+  /** {@inheritDoc}.
+   * Negative row numbers count from the last row, -1 being the last one.
+   */
+  public boolean setRowNumber(final int rowNumber) {
+    if (rowNumber >= 0) {
+      return moveTo(rowNumber);
+    }
+    return moveTo(total + rowNumber);
+  }
+
+}
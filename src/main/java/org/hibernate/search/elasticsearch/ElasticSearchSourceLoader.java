@@ -0,0 +1,113 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.Session;
+import org.hibernate.search.engine.SearchFactoryImplementor;
+import org.hibernate.search.query.engine.spi.EntityInfo;
+import org.hibernate.search.query.engine.spi.TimeoutManager;
+import org.hibernate.search.query.hibernate.impl.Loader;
+import org.hibernate.search.query.hibernate.impl.ObjectsInitializer;
+
+/** Loads the entities hydrating them from the source of their documents,
+ * see {@link EntityHydrator}.
+ *
+ * The hydrated entities are detached from the session and read only. The
+ * entities of the classes without hydrator, or of the hits without source,
+ * are loaded by the given loader from the database.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class ElasticSearchSourceLoader implements Loader {
+
+  /** The loader of the entities that cannot be hydrated, it's never null.*/
+  private final Loader databaseLoader;
+
+  /** Creates a new loader.
+   * @param theDatabaseLoader the initialized loader of the entities that
+   * cannot be hydrated, cannot be null.
+   */
+  ElasticSearchSourceLoader(final Loader theDatabaseLoader) {
+    Validate.notNull(theDatabaseLoader, "The database loader cannot be null");
+    databaseLoader = theDatabaseLoader;
+  }
+
+  /** {@inheritDoc}.
+   * The database loader is already initialized, so this does nothing.
+   */
+  public void init(final Session session,
+      final SearchFactoryImplementor searchFactory,
+      final ObjectsInitializer objectsInitializer,
+      final TimeoutManager timeoutManager) {
+  }
+
+  /** {@inheritDoc}.*/
+  public Object load(final EntityInfo entityInfo) {
+    Object entity = hydrate(entityInfo);
+    if (entity == null) {
+      entity = databaseLoader.load(entityInfo);
+    }
+    return entity;
+  }
+
+  /** {@inheritDoc}.*/
+  public Object loadWithoutTiming(final EntityInfo entityInfo) {
+    Object entity = hydrate(entityInfo);
+    if (entity == null) {
+      entity = databaseLoader.loadWithoutTiming(entityInfo);
+    }
+    return entity;
+  }
+
+  /** {@inheritDoc}.
+   * The entities that cannot be hydrated are loaded from the database in a
+   * single batch, the result keeps the order of the entity infos.
+   */
+  @SuppressWarnings("rawtypes")
+  public List load(final EntityInfo... entityInfos) {
+    List<Object> entities = new ArrayList<Object>(entityInfos.length);
+    List<EntityInfo> missing = new ArrayList<EntityInfo>();
+    for (EntityInfo entityInfo : entityInfos) {
+      Object entity = hydrate(entityInfo);
+      entities.add(entity);
+      if (entity == null) {
+        missing.add(entityInfo);
+      }
+    }
+    if (missing.isEmpty()) {
+      return entities;
+    }
+    databaseLoader.load(missing.toArray(new EntityInfo[missing.size()]));
+    List<Object> result = new ArrayList<Object>(entityInfos.length);
+    for (int i = 0; i < entityInfos.length; i++) {
+      Object entity = entities.get(i);
+      if (entity == null) {
+        // the batch left the entity in the session.
+        entity = databaseLoader.loadWithoutTiming(entityInfos[i]);
+      }
+      if (entity != null) {
+        result.add(entity);
+      }
+    }
+    return result;
+  }
+
+  /** Hydrates the entity of the given entity info from its source.
+   * @param entityInfo the entity info, cannot be null.
+   * @return the entity, null if it cannot be hydrated.
+   */
+  private Object hydrate(final EntityInfo entityInfo) {
+    if (!(entityInfo instanceof SourceEntityInfo)) {
+      return null;
+    }
+    EntityHydrator hydrator = EntityHydrator.forClass(entityInfo.getClazz());
+    if (hydrator == null) {
+      return null;
+    }
+    return hydrator.hydrate(entityInfo.getId(),
+        ((SourceEntityInfo) entityInfo).getSource());
+  }
+
+}
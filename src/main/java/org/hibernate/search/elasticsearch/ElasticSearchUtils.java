@@ -1,10 +1,13 @@
 package org.hibernate.search.elasticsearch;
 
 import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.Id;
 
 import org.apache.commons.lang.Validate;
+import org.elasticsearch.common.unit.TimeValue;
 import org.hibernate.search.annotations.Indexed;
 
 /** Helper class for elastic-search.
@@ -13,6 +16,20 @@ import org.hibernate.search.annotations.Indexed;
  */
 final class ElasticSearchUtils {
 
+  /** The default naming strategy, it's never null.*/
+  private static final IndexNamingStrategy SINGLE_INDEX =
+      new SingleIndexNaming();
+
+  /** The naming strategies of each indexed class, it's never null.*/
+  private static final ConcurrentMap<Class<?>, IndexNamingStrategy> NAMING =
+      new ConcurrentHashMap<Class<?>, IndexNamingStrategy>();
+
+  /** The time to live of the documents of each indexed class, in ms, -1 if
+   * they never expire. It's never null.
+   */
+  private static final ConcurrentMap<Class<?>, Long> TIME_TO_LIVE =
+      new ConcurrentHashMap<Class<?>, Long>();
+
   /** Utility class constructor.*/
   private ElasticSearchUtils() {
   }
@@ -30,6 +47,71 @@ final class ElasticSearchUtils {
     return name;
   }
 
+  /** Retrieves the naming strategy of the given class, see
+   * {@link IndexNaming} and {@link TimePartitioned}.
+   * @param klass the indexed class, cannot be null.
+   * @return the naming strategy, never null.
+   */
+  public static IndexNamingStrategy getIndexNaming(final Class<?> klass) {
+    Validate.notNull(klass, "The class cannot be null");
+    IndexNamingStrategy naming = NAMING.get(klass);
+    if (naming != null) {
+      return naming;
+    }
+    IndexNaming custom = klass.getAnnotation(IndexNaming.class);
+    if (custom != null) {
+      try {
+        naming = custom.value().newInstance();
+      } catch (Exception e) {
+        throw new RuntimeException("Cannot create the naming strategy of: "
+            + klass.getName(), e);
+      }
+    } else if (klass.isAnnotationPresent(TimePartitioned.class)) {
+      naming = new TimePartitionedIndexNaming();
+    } else {
+      naming = SINGLE_INDEX;
+    }
+    IndexNamingStrategy previous = NAMING.putIfAbsent(klass, naming);
+    if (previous != null) {
+      return previous;
+    }
+    return naming;
+  }
+
+  /** Retrieves the time to live of the documents of the given class.
+   *
+   * The {@link TimeToLive} of each class is parsed once, when the index of
+   * the class is created at bootstrap.
+   *
+   * @param klass the indexed class, cannot be null.
+   * @return the time to live in milliseconds, or -1 if the documents of the
+   * class never expire.
+   * @throws IllegalArgumentException if the time to live is not a valid
+   * elasticsearch time value.
+   */
+  public static long getTimeToLive(final Class<?> klass) {
+    Validate.notNull(klass, "The class cannot be null");
+    Long millis = TIME_TO_LIVE.get(klass);
+    if (millis != null) {
+      return millis;
+    }
+    TimeToLive ttl = klass.getAnnotation(TimeToLive.class);
+    if (ttl == null) {
+      millis = -1L;
+    } else {
+      try {
+        millis = TimeValue.parseTimeValue(ttl.value(), null).millis();
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid time to live: "
+            + ttl.value() + " of: " + klass.getName(), e);
+      }
+      Validate.isTrue(millis > 0, "The time to live of: " + klass.getName()
+          + " must be greater than 0");
+    }
+    TIME_TO_LIVE.putIfAbsent(klass, millis);
+    return millis;
+  }
+
   /** Retrieves a Class instance based on the fully class name.
    * @param type the fully class name, cannot be null.
    * @return the class.
@@ -37,6 +37,9 @@ public class ElasticsearchBatchBackendQueue extends LuceneBatchBackend {
   /** The elastic search client. */
   private Client client;
 
+  /** The encoding of the documents. */
+  private DocumentEncoding encoding = DocumentEncoding.JSON;
+
   /** The lucene works queue. */
   private List<LuceneWork> works = new ArrayList<LuceneWork>();
 
@@ -51,6 +54,8 @@ public class ElasticsearchBatchBackendQueue extends LuceneBatchBackend {
     if (ElasticSearchClientFactory.isActive()) {
       super.initialize(cfg, monitor, context);
       client = ElasticSearchClientFactory.getClient();
+      encoding = DocumentEncoding.fromName(cfg.getProperty(
+          ElasticSearchEnvironment.DOCUMENT_ENCODING));
     } else {
       super.initialize(cfg, monitor, context);
     }
@@ -103,7 +108,8 @@ public class ElasticsearchBatchBackendQueue extends LuceneBatchBackend {
     @Override
     public void run() {
       List<LuceneWork> theWorks = new LinkedList<LuceneWork>(instance.works);
-      new ElasticSearchBackendQueue(theWorks, instance.client, true).run();
+      new ElasticSearchBackendQueue(theWorks, instance.client, true, null,
+          null, instance.encoding).run();
       instance.works.clear();
     }
   }
@@ -0,0 +1,208 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.reflect.Field;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanFilter;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilterClause;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.search.PrefixFilter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeFilter;
+import org.apache.lucene.search.TermsFilter;
+import org.elasticsearch.index.query.BoolFilterBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.hibernate.HibernateException;
+
+/** This class creates a FilterBuilder for elasticsearch based on a Lucene
+ * filter.
+ *
+ * The term range, numeric range, prefix, terms, boolean and query wrapper
+ * filters are translated to the matching elasticsearch filters, that
+ * elasticsearch caches by default, and the caching wrapper filters to the
+ * filter they wrap. Any other filter must implement
+ * {@link ElasticSearchFilter}, as the lucene filters do not expose what they
+ * match.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public class ElasticsearchFilterBuilder {
+
+  /** The lucene filter, it's never null.*/
+  private final Filter filter;
+
+  /** The indexed entities of the search, it's never null.*/
+  private final Set<Class<?>> entities;
+
+  /** Creates a new instance of the factory.
+   * @param luceneFilter the lucene filter, cannot be null.
+   * @param targetEntities the indexed entities of the search, cannot be
+   * null.
+   */
+  public ElasticsearchFilterBuilder(final Filter luceneFilter,
+      final Set<Class<?>> targetEntities) {
+    Validate.notNull(luceneFilter, "The lucene filter cannot be null");
+    Validate.notNull(targetEntities, "The entities cannot be null");
+    filter = luceneFilter;
+    entities = targetEntities;
+  }
+
+  /** Retrieves the filter builder.
+   * @return the filter builder, never null.
+   * @throws HibernateException if the filter cannot be translated.
+   */
+  public FilterBuilder build() {
+    return translate(filter);
+  }
+
+  /** Translates the given lucene filter, with the filters it wraps.
+   * @param luceneFilter the lucene filter, cannot be null.
+   * @return the filter builder, never null.
+   * @throws HibernateException if the filter cannot be translated.
+   */
+  private FilterBuilder translate(final Filter luceneFilter) {
+    if (luceneFilter instanceof ElasticSearchFilter) {
+      return ((ElasticSearchFilter) luceneFilter).getFilterBuilder();
+    } else if (luceneFilter instanceof TermRangeFilter) {
+      TermRangeFilter range = (TermRangeFilter) luceneFilter;
+      return FilterBuilders.rangeFilter(exactField(range.getField()))
+          .from(range.getLowerTerm()).to(range.getUpperTerm())
+          .includeLower(range.includesLower())
+          .includeUpper(range.includesUpper());
+    } else if (luceneFilter instanceof NumericRangeFilter<?>) {
+      NumericRangeFilter<?> range = (NumericRangeFilter<?>) luceneFilter;
+      return FilterBuilders.rangeFilter(range.getField())
+          .from((Object) range.getMin()).to((Object) range.getMax())
+          .includeLower(range.includesMin())
+          .includeUpper(range.includesMax());
+    } else if (luceneFilter instanceof PrefixFilter) {
+      PrefixFilter prefix = (PrefixFilter) luceneFilter;
+      return FilterBuilders.prefixFilter(
+          exactField(prefix.getPrefix().field()), prefix.getPrefix().text());
+    } else if (luceneFilter instanceof QueryWrapperFilter) {
+      Query query = (Query) read(luceneFilter, QueryWrapperFilter.class,
+          "query");
+      if (query instanceof TermQuery) {
+        Term term = ((TermQuery) query).getTerm();
+        return FilterBuilders.termFilter(exactField(term.field()),
+            term.text());
+      }
+      Class<?> entity = null;
+      if (entities.size() == 1) {
+        entity = entities.iterator().next();
+      }
+      return FilterBuilders.queryFilter(
+          new ElasticsearchQueryBuilder(query, entity).build());
+    } else if (luceneFilter instanceof CachingWrapperFilter) {
+      // elasticsearch caches the translated filter on its own.
+      return translate((Filter) read(luceneFilter,
+          CachingWrapperFilter.class, "filter"));
+    } else if (luceneFilter instanceof BooleanFilter) {
+      return booleanFilter((BooleanFilter) luceneFilter);
+    } else if (luceneFilter instanceof TermsFilter) {
+      @SuppressWarnings("unchecked")
+      Set<Term> terms = (Set<Term>) read(luceneFilter, TermsFilter.class,
+          "terms");
+      return termsFilter(terms);
+    }
+    throw new HibernateException("Cannot translate the filter " + luceneFilter
+        + " to elasticsearch, it must implement "
+        + ElasticSearchFilter.class.getName());
+  }
+
+  /** Translates a boolean filter, with its nested filters.
+   * @param booleanFilter the boolean filter, cannot be null.
+   * @return the bool filter, never null.
+   */
+  private BoolFilterBuilder booleanFilter(final BooleanFilter booleanFilter) {
+    BoolFilterBuilder builder = FilterBuilders.boolFilter();
+    for (FilterClause clause : booleanFilter.clauses()) {
+      FilterBuilder clauseFilter = translate(clause.getFilter());
+      switch (clause.getOccur()) {
+      case MUST:
+        builder.must(clauseFilter);
+        break;
+      case MUST_NOT:
+        builder.mustNot(clauseFilter);
+        break;
+      case SHOULD:
+        builder.should(clauseFilter);
+        break;
+      default:
+        throw new IllegalStateException("Filter clause must contain occur");
+      }
+    }
+    return builder;
+  }
+
+  /** Translates the terms of a terms filter, that matches any of them.
+   * @param terms the terms, cannot be null.
+   * @return a terms filter for a single field, or a bool filter that should
+   * match the terms filter of each field, never null.
+   */
+  private FilterBuilder termsFilter(final Set<Term> terms) {
+    Map<String, List<String>> values = new LinkedHashMap<String,
+        List<String>>();
+    for (Term term : terms) {
+      List<String> texts = values.get(term.field());
+      if (texts == null) {
+        texts = new LinkedList<String>();
+        values.put(term.field(), texts);
+      }
+      texts.add(term.text());
+    }
+    if (values.size() == 1) {
+      Map.Entry<String, List<String>> field;
+      field = values.entrySet().iterator().next();
+      return FilterBuilders.termsFilter(exactField(field.getKey()),
+          field.getValue());
+    }
+    BoolFilterBuilder builder = FilterBuilders.boolFilter();
+    for (Map.Entry<String, List<String>> field : values.entrySet()) {
+      builder.should(FilterBuilders.termsFilter(exactField(field.getKey()),
+          field.getValue()));
+    }
+    return builder;
+  }
+
+  /** Reads the given field of a lucene filter, as lucene does not expose
+   * what most of its filters wrap.
+   * @param luceneFilter the lucene filter, cannot be null.
+   * @param type the class that declares the field, cannot be null.
+   * @param name the field name, cannot be null.
+   * @return the field value, can be null.
+   * @throws HibernateException if the field cannot be read.
+   */
+  private static Object read(final Filter luceneFilter, final Class<?> type,
+      final String name) {
+    try {
+      Field field = type.getDeclaredField(name);
+      field.setAccessible(true);
+      return field.get(luceneFilter);
+    } catch (Exception e) {
+      throw new HibernateException("Cannot read the " + name + " of the"
+          + " filter " + luceneFilter, e);
+    }
+  }
+
+  /** Retrieves the elasticsearch field that holds the whole values of the
+   * given field, see {@link ElasticsearchQueryBuilder#exactField}.
+   * @param field the field name, cannot be null.
+   * @return the field to filter on, never null.
+   */
+  private String exactField(final String field) {
+    return ElasticsearchQueryBuilder.exactField(entities, field);
+  }
+
+}
@@ -1,9 +1,18 @@
 package org.hibernate.search.elasticsearch;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.Validate;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.indices.alias
+  .IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
@@ -13,6 +22,7 @@ import org.elasticsearch.action.admin.indices.exists.indices
   .IndicesExistsResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.hibernate.search.annotations.Field;
@@ -30,6 +40,12 @@ final class ElasticsearchIndexManager {
   private static Logger log = LoggerFactory.getLogger(
       ElasticsearchIndexManager.class);
 
+  /** The partitions created by this application, keyed by index and type,
+   * it's never null.
+   */
+  private static final Map<String, Boolean> PARTITIONS =
+      new ConcurrentHashMap<String, Boolean>();
+
   /** Utility class constructor.*/
   private ElasticsearchIndexManager() {
   }
@@ -48,6 +64,12 @@ final class ElasticsearchIndexManager {
   }
 
   /** Creates an index for the given indexed class.
+   *
+   * The indices of a partitioned class are created when the first document
+   * of each partition is sent, only the current partition of a
+   * {@link TimePartitioned} class is created here, so its alias exists
+   * before the first query.
+   *
    * @param indexedClass the indexed class, cannot be null.
    * @param client the elastic-search client, cannot be null.
    */
@@ -56,75 +78,197 @@ final class ElasticsearchIndexManager {
     Validate.notNull(indexedClass, "The indexed class cannot be null");
     Validate.notNull(client, "The client cannot be null");
 
+    if (indexedClass.isAnnotationPresent(Indexed.class)) {
+      // an invalid time to live fails here, and not with the first document.
+      ElasticSearchUtils.getTimeToLive(indexedClass);
+      IndexNamingStrategy naming;
+      naming = ElasticSearchUtils.getIndexNaming(indexedClass);
+      if (naming instanceof TimePartitionedIndexNaming) {
+        String partition = ((TimePartitionedIndexNaming) naming).getPartition(
+            indexedClass, new Date());
+        ensurePartition(indexedClass, partition, client);
+      } else if (!naming.isPartitioned(indexedClass)) {
+        Indexed indexed = indexedClass.getAnnotation(Indexed.class);
+        createIndex(indexedClass, indexed.index(), client);
+      }
+    }
+
+    log.debug("finished the index creation.");
+  }
+
+  /** Creates the given partition of the given class if it was not created
+   * by this application yet, and adds it to the search aliases of the class.
+   *
+   * The partition is only remembered once it's created, so no document is
+   * sent to it before, and the next documents of the partition do not call
+   * elasticsearch.
+   *
+   * @param indexedClass the partitioned class, cannot be null.
+   * @param indexName the partition name, cannot be null.
+   * @param client the elastic-search client, cannot be null.
+   */
+  static void ensurePartition(final Class<?> indexedClass,
+      final String indexName, final Client client) {
+    Validate.notNull(indexedClass, "The indexed class cannot be null");
+    Validate.notNull(indexName, "The index name cannot be null");
+    Validate.notNull(client, "The client cannot be null");
+
+    String key = indexName + "#" + indexedClass.getName();
+    if (PARTITIONS.containsKey(key)) {
+      return;
+    }
+    synchronized (PARTITIONS) {
+      if (PARTITIONS.containsKey(key)) {
+        return;
+      }
+      createIndex(indexedClass, indexName, client);
+      IndexNamingStrategy naming;
+      naming = ElasticSearchUtils.getIndexNaming(indexedClass);
+      IndicesAliasesRequestBuilder aliases;
+      aliases = client.admin().indices().prepareAliases();
+      boolean aliased = false;
+      for (String alias : naming.getSearchIndices(indexedClass, null)) {
+        if (!alias.equals(indexName)) {
+          aliases.addAlias(indexName, alias);
+          aliased = true;
+        }
+      }
+      if (aliased) {
+        aliases.execute().actionGet();
+      }
+      log.debug("created the partition: {}", indexName);
+      PARTITIONS.put(key, Boolean.TRUE);
+    }
+  }
+
+  /** Creates the given index with the mapping of the given class.
+   * @param indexedClass the indexed class, cannot be null.
+   * @param indexName the index name, cannot be null.
+   * @param client the elastic-search client, cannot be null.
+   */
+  private static void createIndex(final Class<?> indexedClass,
+      final String indexName, final Client client) {
     try {
 
       IndicesAdminClient indicesAdmin = client.admin().indices();
 
-      if (indexedClass.isAnnotationPresent(Indexed.class)) {
+      IndicesExistsRequest request;
+      request = new IndicesExistsRequest(indexName);
+      IndicesExistsResponse response;
+      response = indicesAdmin.exists(request).get();
 
-        Indexed indexed = indexedClass.getAnnotation(Indexed.class);
-        String indexName = indexed.index();
-
-        IndicesExistsRequest request;
-        request = new IndicesExistsRequest(indexName);
-        IndicesExistsResponse response;
-        response = indicesAdmin.exists(request).get();
-
-        if (!response.isExists()) {
-          java.lang.reflect.Field[] fields = indexedClass.getDeclaredFields();
-
-          String theType = indexedClass.getName();
-
-          XContentBuilder builder = XContentFactory.jsonBuilder();
-          builder.startObject();
-          builder.startObject(theType).startObject("properties");
-
-          for (java.lang.reflect.Field field : fields) {
-            if (field.isAnnotationPresent(Field.class)) {
-              String dataType = getType(field);
-              builder.
-              startObject(field.getName()).
-                field("type").value("multi_field").
-                  startObject("fields").
-                    startObject(field.getName()).
-                      field("index", "analyzed").
-                      field("store", "yes").
-                      field("type", dataType).
-                    endObject().
-                    startObject(field.getName() + "_raw").
-                      field("index", "not_analyzed").
-                      field("store", "yes").
-                      field("type", dataType).
-                    endObject().
-                  endObject().
-              endObject();
-            }
-          }
-
-          builder.endObject().endObject().endObject();
-
-          log.debug("mapping: {}", builder.prettyPrint().string());
-
-          // lets create the index.
-          CreateIndexRequest createRequest;
-          createRequest = new CreateIndexRequest(indexName);
-          createRequest.mapping(theType, builder);
-
-          CreateIndexResponse createResponse;
-          createResponse = indicesAdmin.create(createRequest).actionGet();
-
-          if (!createResponse.acknowledged()) {
-            throw new RuntimeException("not acknowledged the put operation");
-          }
+      String theType = indexedClass.getName();
+
+      if (!response.isExists()) {
+        XContentBuilder builder = getMapping(indexedClass);
+
+        log.debug("mapping: {}", builder.prettyPrint().string());
+
+        // lets create the index.
+        CreateIndexRequest createRequest;
+        createRequest = new CreateIndexRequest(indexName);
+        createRequest.mapping(theType, builder);
+
+        CreateIndexResponse createResponse;
+        createResponse = indicesAdmin.create(createRequest).actionGet();
+
+        if (!createResponse.acknowledged()) {
+          throw new RuntimeException("not acknowledged the put operation");
+        }
+      } else if (indexedClass.isAnnotationPresent(ParentDocument.class)
+          || ElasticSearchUtils.getTimeToLive(indexedClass) > 0) {
+        // child documents usually live in the index of their parent, and
+        // the _parent mapping must exist before the first child is sent;
+        // without the _ttl mapping the documents never expire.
+        try {
+          indicesAdmin.preparePutMapping(indexName).setType(theType)
+              .setSource(getMapping(indexedClass)).execute().actionGet();
+        } catch (Exception e) {
+          log.warn("Cannot put the mapping of: " + theType, e);
         }
-        waitFor(indexName, client);
       }
+      waitFor(indexName, client);
 
     } catch (Exception e) {
       throw new RuntimeException("Cannot create the index", e);
     }
+  }
 
-    log.debug("finished the index creation.");
+  /** Creates the mapping of the given indexed class.
+   * @param indexedClass the indexed class, cannot be null.
+   * @return the mapping, never null.
+   * @throws IOException if the mapping cannot be written.
+   */
+  private static XContentBuilder getMapping(final Class<?> indexedClass)
+      throws IOException {
+
+    XContentBuilder builder = XContentFactory.jsonBuilder();
+    builder.startObject();
+    builder.startObject(indexedClass.getName());
+
+    long ttl = ElasticSearchUtils.getTimeToLive(indexedClass);
+    if (ttl > 0) {
+      builder.startObject("_ttl").
+        field("enabled", true).
+        field("default", ttl).
+      endObject();
+    }
+
+    ParentDocument parent = indexedClass.getAnnotation(ParentDocument.class);
+    if (parent != null) {
+      builder.startObject("_parent").
+        field("type", parent.type().getName()).
+      endObject();
+    }
+
+    builder.startObject("properties");
+
+    addFields(builder, indexedClass);
+
+    for (EmbeddedCollection embedded
+        : EmbeddedCollection.forClass(indexedClass)) {
+      if (embedded.isNested()) {
+        builder.startObject(embedded.getPath());
+        builder.field("type", "nested");
+        builder.startObject("properties");
+        addFields(builder, embedded.getElementType());
+        builder.endObject();
+        builder.endObject();
+      }
+    }
+
+    builder.endObject().endObject().endObject();
+    return builder;
+  }
+
+  /** Adds the mapping of the indexed fields declared by the given class.
+   * @param builder the mapping builder, cannot be null.
+   * @param theClass the class that declares the fields, cannot be null.
+   * @throws IOException if the mapping cannot be written.
+   */
+  private static void addFields(final XContentBuilder builder,
+      final Class<?> theClass) throws IOException {
+    for (java.lang.reflect.Field field : theClass.getDeclaredFields()) {
+      if (field.isAnnotationPresent(Field.class)) {
+        String dataType = getType(field);
+        builder.
+        startObject(field.getName()).
+          field("type").value("multi_field").
+          startObject("fields").
+            startObject(field.getName()).
+              field("index", "analyzed").
+              field("store", "yes").
+              field("type", dataType).
+            endObject().
+            startObject(field.getName() + "_raw").
+              field("index", "not_analyzed").
+              field("store", "yes").
+              field("type", dataType).
+            endObject().
+          endObject().
+        endObject();
+      }
+    }
   }
 
   /** Retrieves the string type representation for the given field.
@@ -172,8 +316,8 @@ final class ElasticsearchIndexManager {
     log.debug("done!, index named:" + indexName + " created");
   }
 
-  /** Deletes the given index.
-   * @param index the index to delete, cannot be null.
+  /** Deletes the given index, or every partition of a partitioned class.
+   * @param indexedClass the indexed class, cannot be null.
    * @param client the elasticsearch client, cannot be null.
    */
   public static void deleteIndex(final Class<?> indexedClass,
@@ -182,6 +326,21 @@ final class ElasticsearchIndexManager {
     Validate.notNull(indexedClass, "The indexed classes cannot be null");
     Validate.notNull(client, "The client cannot be null");
 
+    IndexNamingStrategy naming;
+    naming = ElasticSearchUtils.getIndexNaming(indexedClass);
+    if (naming.isPartitioned(indexedClass)) {
+      Set<String> partitions = new HashSet<String>();
+      Map<String, ? extends Map<String, ?>> aliases = getMetaData(client)
+          .aliases();
+      for (String alias : naming.getSearchIndices(indexedClass, null)) {
+        if (aliases.containsKey(alias)) {
+          partitions.addAll(aliases.get(alias).keySet());
+        }
+      }
+      dropPartitions(indexedClass, new ArrayList<String>(partitions), client);
+      return;
+    }
+
     String index = "";
     if (indexedClass.isAnnotationPresent(Indexed.class)) {
       Indexed indexed = indexedClass.getAnnotation(Indexed.class);
@@ -195,6 +354,61 @@ final class ElasticsearchIndexManager {
     }
   }
 
+  /** Deletes the partitions of the given class that only hold documents
+   * older than the given date.
+   * @param indexedClass the class annotated with {@link TimePartitioned},
+   * cannot be null.
+   * @param date the date, cannot be null.
+   * @param client the elasticsearch client, cannot be null.
+   * @return the names of the deleted partitions, never null.
+   */
+  public static List<String> dropPartitionsBefore(final Class<?> indexedClass,
+      final Date date, final Client client) {
+    Validate.notNull(indexedClass, "The indexed class cannot be null");
+    Validate.notNull(date, "The date cannot be null");
+    Validate.notNull(client, "The client cannot be null");
+
+    IndexNamingStrategy naming;
+    naming = ElasticSearchUtils.getIndexNaming(indexedClass);
+    Validate.isTrue(naming instanceof TimePartitionedIndexNaming,
+        "The class: " + indexedClass.getName() + " is not time partitioned");
+
+    List<String> expired;
+    expired = ((TimePartitionedIndexNaming) naming).getExpiredPartitions(
+        indexedClass, getMetaData(client).concreteAllIndices(), date);
+    dropPartitions(indexedClass, expired, client);
+    return expired;
+  }
+
+  /** Deletes the given partitions.
+   * @param indexedClass the partitioned class, cannot be null.
+   * @param partitions the partitions to delete, cannot be null.
+   * @param client the elasticsearch client, cannot be null.
+   */
+  private static void dropPartitions(final Class<?> indexedClass,
+      final List<String> partitions, final Client client) {
+    if (partitions.isEmpty()) {
+      log.debug("No partitions of: {} to delete", indexedClass.getName());
+      return;
+    }
+    log.info("Deleting the partitions: {}", partitions);
+    client.admin().indices().delete(new DeleteIndexRequest(
+        partitions.toArray(new String[partitions.size()]))).actionGet();
+    for (String partition : partitions) {
+      PARTITIONS.remove(partition + "#" + indexedClass.getName());
+    }
+  }
+
+  /** Retrieves the indices and aliases of the cluster.
+   * @param client the elasticsearch client, cannot be null.
+   * @return the cluster meta data, never null.
+   */
+  private static MetaData getMetaData(final Client client) {
+    return client.admin().cluster().prepareState().setFilterNodes(true)
+        .setFilterRoutingTable(true).setFilterBlocks(true).execute()
+        .actionGet().getState().getMetaData();
+  }
+
   /** Recreates the given index.
    * @param indexedClass the index class to re-create, cannot be null.
    * @param client the elasticsearch client, cannot be null.
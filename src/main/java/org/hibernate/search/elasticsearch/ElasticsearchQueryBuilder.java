@@ -1,14 +1,28 @@
 package org.hibernate.search.elasticsearch;
 
 import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Set;
 
 import org.apache.commons.lang.Validate;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.WildcardQuery;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.BoostableQueryBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.hibernate.search.annotations.Index;
@@ -37,72 +51,294 @@ public class ElasticsearchQueryBuilder {
   }
 
   /** Retrieves the query builder.
+   *
+   * Each lucene query is translated to the matching elasticsearch query, so
+   * the cluster does not parse nor analyze it again; only the query types
+   * that are not known are sent as a query string.
+   *
    * @return the query builder, never null.
    */
   public QueryBuilder build() {
     // case for non-query.
-    if (query.toString().equals("()")) {
+    if (isEmpty(query)) {
       return QueryBuilders.matchAllQuery();
     }
     // case for queries :D
     if (query instanceof BooleanQuery) {
-      BooleanQuery booleanQuery = (BooleanQuery) query;
-      BoolQueryBuilder booleanQueryBuilder = QueryBuilders.boolQuery();
-      booleanQuery(booleanQueryBuilder, booleanQuery.getClauses());
-      return booleanQueryBuilder;
-    } else if (query instanceof WildcardQuery) {
-      return wildcard(query);
+      return booleanQuery((BooleanQuery) query);
     } else {
-      return QueryBuilders.queryString(query.toString());
+      return leaf(query);
     }
   }
 
-  /** Resolves the boolean clauses.
-   * @param booleanQuertBuilder the query builder.
-   * @param clouses the boolean clauses.
+  /** Checks if the given query is a boolean query without any clause other
+   * than empty boolean queries, ie: the query of an empty search box.
+   * @param luceneQuery the lucene query, cannot be null.
+   * @return true if the query has no terms at all.
    */
-  private void booleanQuery(final BoolQueryBuilder booleanQuertBuilder,
-      final BooleanClause[] clouses) {
-    for (BooleanClause clause : clouses) {
-      if (clause.getQuery() instanceof BooleanQuery) {
-        BooleanQuery booleanQuery = (BooleanQuery) clause.getQuery();
-        if (booleanQuery.getClauses().length > 0) {
-          booleanQuery(booleanQuertBuilder, booleanQuery.getClauses());
-        } // { else } should never been here, do I decide to ignore it.
+  private static boolean isEmpty(final Query luceneQuery) {
+    if (!(luceneQuery instanceof BooleanQuery)) {
+      return false;
+    }
+    for (BooleanClause clause : ((BooleanQuery) luceneQuery).getClauses()) {
+      if (!isEmpty(clause.getQuery())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Translates a boolean query, with its nested boolean queries.
+   *
+   * The empty nested boolean queries are ignored.
+   *
+   * @param booleanQuery the boolean query, cannot be null.
+   * @return the bool query, never null.
+   */
+  private BoolQueryBuilder booleanQuery(final BooleanQuery booleanQuery) {
+    BoolQueryBuilder builder = QueryBuilders.boolQuery();
+    for (BooleanClause clause : booleanQuery.getClauses()) {
+      Query clauseQuery = clause.getQuery();
+      if (isEmpty(clauseQuery)) {
+        continue;
+      }
+      if (clauseQuery instanceof BooleanQuery) {
+        accur(builder, clause, booleanQuery((BooleanQuery) clauseQuery));
       } else {
-        Query query = clause.getQuery();
-        // Here you can add lot of types, fuzzy, etc.
-        if (query instanceof WildcardQuery) {
-          accur(booleanQuertBuilder, clause, wildcard(query));
-        } else {
-          accur(booleanQuertBuilder, clause,
-              QueryBuilders.queryString(query.toString()));
-        }
+        accur(builder, clause, leaf(clauseQuery));
       }
     }
+    if (booleanQuery.isCoordDisabled()) {
+      builder.disableCoord(true);
+    }
+    if (booleanQuery.getMinimumNumberShouldMatch() > 0) {
+      builder.minimumNumberShouldMatch(
+          booleanQuery.getMinimumNumberShouldMatch());
+    }
+    boost(builder, booleanQuery);
+    return builder;
   }
 
-  /** Generates a wildcard based on the given lucene query.
-   * @param luceneQuery the lucene query.
+  /** Translates a lucene query that is not a boolean query.
+   *
+   * The queries on the fields of nested collections are wrapped in a nested
+   * query, and the queries on the fields of child collections are sent as a
+   * has_child query on the child documents.
+   *
+   * @param luceneQuery the lucene query, cannot be null.
+   * @return the elasticsearch query, never null.
    */
-  private QueryBuilder wildcard(final Query luceneQuery) {
-    Term term = ((WildcardQuery) luceneQuery).getTerm();
-    String termField = term.field();
-    try {
-      Field field = entity.getDeclaredField(termField);
-      org.hibernate.search.annotations.Field searchField;
-      searchField = field.getAnnotation(
-          org.hibernate.search.annotations.Field.class);
-
-      if (searchField.index() == Index.UN_TOKENIZED) {
-        // So, if it's not-tokenized, we use the raw value to search.
-        return QueryBuilders.wildcardQuery(termField + "_raw", term.text());
+  private QueryBuilder leaf(final Query luceneQuery) {
+    String fieldName = getField(luceneQuery);
+    EmbeddedCollection collection = null;
+    if (entity != null) {
+      collection = EmbeddedCollection.forField(entity, fieldName);
+    }
+    if (collection != null && !collection.isNested()) {
+      // the child documents name the fields without the collection prefix.
+      return QueryBuilders.hasChildQuery(
+          collection.getElementType().getName(),
+          translate(luceneQuery, collection.getElementField(fieldName)));
+    }
+    QueryBuilder builder = translate(luceneQuery, fieldName);
+    if (collection != null) {
+      return QueryBuilders.nestedQuery(collection.getPath(), builder);
+    }
+    return builder;
+  }
+
+  /** Translates a lucene query that is not a boolean query to the matching
+   * elasticsearch query, on the given field.
+   *
+   * The term, wildcard, prefix and term range queries on untokenized fields
+   * go to the not analyzed version of the field, as the term is the whole
+   * value.
+   *
+   * @param luceneQuery the lucene query, cannot be null.
+   * @param field the elasticsearch field, null if the query has no field.
+   * @return the elasticsearch query, never null.
+   */
+  private QueryBuilder translate(final Query luceneQuery, final String field) {
+    QueryBuilder builder;
+    if (luceneQuery instanceof TermQuery) {
+      Term term = ((TermQuery) luceneQuery).getTerm();
+      builder = QueryBuilders.termQuery(exactField(field), term.text());
+    } else if (luceneQuery instanceof WildcardQuery) {
+      Term term = ((WildcardQuery) luceneQuery).getTerm();
+      builder = QueryBuilders.wildcardQuery(exactField(field), term.text());
+    } else if (luceneQuery instanceof PrefixQuery) {
+      Term term = ((PrefixQuery) luceneQuery).getPrefix();
+      builder = QueryBuilders.prefixQuery(exactField(field), term.text());
+    } else if (luceneQuery instanceof FuzzyQuery) {
+      FuzzyQuery fuzzy = (FuzzyQuery) luceneQuery;
+      builder = QueryBuilders.fuzzyQuery(field, fuzzy.getTerm().text())
+          .minSimilarity(fuzzy.getMinSimilarity())
+          .prefixLength(fuzzy.getPrefixLength());
+    } else if (luceneQuery instanceof TermRangeQuery) {
+      TermRangeQuery range = (TermRangeQuery) luceneQuery;
+      builder = QueryBuilders.rangeQuery(exactField(field))
+          .from(range.getLowerTerm()).to(range.getUpperTerm())
+          .includeLower(range.includesLower())
+          .includeUpper(range.includesUpper());
+    } else if (luceneQuery instanceof NumericRangeQuery<?>) {
+      NumericRangeQuery<?> range = (NumericRangeQuery<?>) luceneQuery;
+      builder = QueryBuilders.rangeQuery(field)
+          .from((Object) range.getMin()).to((Object) range.getMax())
+          .includeLower(range.includesMin())
+          .includeUpper(range.includesMax());
+    } else if (luceneQuery instanceof PhraseQuery
+        && ((PhraseQuery) luceneQuery).getTerms().length > 0) {
+      PhraseQuery phrase = (PhraseQuery) luceneQuery;
+      StringBuilder text = new StringBuilder();
+      for (Term term : phrase.getTerms()) {
+        if (text.length() > 0) {
+          text.append(' ');
+        }
+        text.append(term.text());
+      }
+      builder = QueryBuilders.matchPhraseQuery(field, text.toString())
+          .slop(phrase.getSlop());
+    } else if (luceneQuery instanceof MatchAllDocsQuery) {
+      builder = QueryBuilders.matchAllQuery();
+    } else if (luceneQuery instanceof ConstantScoreQuery) {
+      // the query dsl wraps the query in a filter, see withConstantScore.
+      ConstantScoreQuery constantScore = (ConstantScoreQuery) luceneQuery;
+      if (constantScore.getQuery() != null) {
+        builder = QueryBuilders.constantScoreQuery(
+            new ElasticsearchQueryBuilder(constantScore.getQuery(), entity)
+              .build());
       } else {
-        return QueryBuilders.queryString(luceneQuery.toString());
+        builder = QueryBuilders.constantScoreQuery(
+            filter(constantScore.getFilter()));
       }
+    } else if (luceneQuery instanceof FilteredQuery) {
+      FilteredQuery filtered = (FilteredQuery) luceneQuery;
+      builder = QueryBuilders.filteredQuery(
+          new ElasticsearchQueryBuilder(filtered.getQuery(), entity).build(),
+          filter(filtered.getFilter()));
+    } else {
+      // the query string already holds the boost.
+      return QueryBuilders.queryString(luceneQuery.toString());
+    }
+    boost(builder, luceneQuery);
+    return builder;
+  }
+
+  /** Translates the given lucene filter, see
+   * {@link ElasticsearchFilterBuilder}.
+   * @param luceneFilter the lucene filter, cannot be null.
+   * @return the elasticsearch filter, never null.
+   */
+  private FilterBuilder filter(final Filter luceneFilter) {
+    Set<Class<?>> entities = Collections.emptySet();
+    if (entity != null) {
+      entities = Collections.<Class<?>>singleton(entity);
+    }
+    return new ElasticsearchFilterBuilder(luceneFilter, entities).build();
+  }
 
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+  /** Sets the boost of the given lucene query to the given elasticsearch
+   * query, if it's not the default one.
+   * @param builder the elasticsearch query, cannot be null.
+   * @param luceneQuery the lucene query, cannot be null.
+   */
+  private static void boost(final QueryBuilder builder,
+      final Query luceneQuery) {
+    if (luceneQuery.getBoost() != 1.0f
+        && builder instanceof BoostableQueryBuilder<?>) {
+      ((BoostableQueryBuilder<?>) builder).boost(luceneQuery.getBoost());
+    }
+  }
+
+  /** Retrieves the field of the given lucene query.
+   * @param luceneQuery the lucene query, cannot be null.
+   * @return the field name, null if the query type is not known.
+   */
+  private static String getField(final Query luceneQuery) {
+    if (luceneQuery instanceof TermQuery) {
+      return ((TermQuery) luceneQuery).getTerm().field();
+    } else if (luceneQuery instanceof WildcardQuery) {
+      return ((WildcardQuery) luceneQuery).getTerm().field();
+    } else if (luceneQuery instanceof PrefixQuery) {
+      return ((PrefixQuery) luceneQuery).getPrefix().field();
+    } else if (luceneQuery instanceof FuzzyQuery) {
+      return ((FuzzyQuery) luceneQuery).getTerm().field();
+    } else if (luceneQuery instanceof TermRangeQuery) {
+      return ((TermRangeQuery) luceneQuery).getField();
+    } else if (luceneQuery instanceof NumericRangeQuery<?>) {
+      return ((NumericRangeQuery<?>) luceneQuery).getField();
+    } else if (luceneQuery instanceof PhraseQuery) {
+      Term[] terms = ((PhraseQuery) luceneQuery).getTerms();
+      if (terms.length > 0) {
+        return terms[0].field();
+      }
+    }
+    return null;
+  }
+
+  /** Retrieves the elasticsearch field that holds the whole values of the
+   * given field.
+   * @param field the field name, can be null.
+   * @return the not analyzed version of the field if the entity declares it
+   * untokenized, the given field otherwise.
+   */
+  private String exactField(final String field) {
+    return exactField(entity, field);
+  }
+
+  /** Retrieves the elasticsearch field that holds the whole values of the
+   * given field of the given entity.
+   * @param entity the entity, can be null.
+   * @param field the field name, can be null.
+   * @return the not analyzed version of the field if the entity declares it
+   * untokenized, the given field otherwise.
+   */
+  static String exactField(final Class<?> entity, final String field) {
+    if (entity == null || field == null) {
+      return field;
+    }
+    Field declared = getDeclaredField(entity, field);
+    if (declared == null) {
+      return field;
+    }
+    org.hibernate.search.annotations.Field searchField = declared.getAnnotation(
+        org.hibernate.search.annotations.Field.class);
+    if (searchField != null && searchField.index() == Index.UN_TOKENIZED) {
+      // So, if it's not-tokenized, we use the raw value to search.
+      return field + "_raw";
+    }
+    return field;
+  }
+
+  /** Retrieves the elasticsearch field that holds the whole values of the
+   * given field of the given entities.
+   * @param entities the entities, cannot be null.
+   * @param field the field name, can be null.
+   * @return the not analyzed version of the field if any entity declares it
+   * untokenized, the given field otherwise.
+   */
+  static String exactField(final Set<Class<?>> entities, final String field) {
+    for (Class<?> entity : entities) {
+      String exact = exactField(entity, field);
+      if (exact != null && !exact.equals(field)) {
+        return exact;
+      }
+    }
+    return field;
+  }
+
+  /** Retrieves the java field of the given entity with the given name.
+   * @param entity the entity, cannot be null.
+   * @param name the field name, cannot be null.
+   * @return the field, null if the entity does not declare it, ie: the
+   * fields of the embedded objects.
+   */
+  private static Field getDeclaredField(final Class<?> entity,
+      final String name) {
+    try {
+      return entity.getDeclaredField(name);
+    } catch (NoSuchFieldException e) {
+      return null;
     }
   }
 
@@ -0,0 +1,283 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.TermVector;
+import org.hibernate.annotations.common.reflection.XMember;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.annotations.Store;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.LuceneOptions;
+import org.hibernate.search.engine.DocumentBuilderIndexedEntity;
+
+/** An IndexedEmbedded collection that is stored as nested or child documents,
+ * see {@link EmbeddedDocuments}.
+ *
+ * Hibernate search writes the fields of every element of a collection into
+ * the same lucene document. So the elements of the nested collections can be
+ * told apart, a class bridge is added to the metadata of the elements when
+ * the search factory starts, that writes an empty marker field before the
+ * fields of each element, see {@link #markElements}.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class EmbeddedCollection {
+
+  /** The suffix of the marker field written before each element.*/
+  private static final String ELEMENT_MARKER = "_element";
+
+  /** The embedded collections by class, it's never null.*/
+  private static final ConcurrentMap<Class<?>, List<EmbeddedCollection>>
+    COLLECTIONS = new ConcurrentHashMap<Class<?>, List<EmbeddedCollection>>();
+
+  /** The name of the collection property, it's never null.*/
+  private final String property;
+
+  /** The prefix of the embedded fields, ie: comments., it's never null.*/
+  private final String prefix;
+
+  /** The path of the nested documents, ie: comments, it's never null.*/
+  private final String path;
+
+  /** The class of the elements, it's never null.*/
+  private final Class<?> elementType;
+
+  /** How the elements are stored, it's never null.*/
+  private final EmbeddedDocuments.Mode mode;
+
+  /** Creates a new embedded collection.
+   * @param theProperty the name of the collection property, cannot be null.
+   * @param thePrefix the prefix of the embedded fields, cannot be null.
+   * @param theElementType the class of the elements, cannot be null.
+   * @param theMode how the elements are stored, cannot be null.
+   */
+  private EmbeddedCollection(final String theProperty, final String thePrefix,
+      final Class<?> theElementType, final EmbeddedDocuments.Mode theMode) {
+    property = theProperty;
+    prefix = thePrefix;
+    if (prefix.endsWith(".")) {
+      path = prefix.substring(0, prefix.length() - 1);
+    } else {
+      path = prefix;
+    }
+    elementType = theElementType;
+    mode = theMode;
+  }
+
+  /** Retrieves the embedded collections of the given class that are stored as
+   * nested or child documents.
+   * @param type the indexed class, cannot be null.
+   * @return the embedded collections, never null.
+   */
+  static List<EmbeddedCollection> forClass(final Class<?> type) {
+    Validate.notNull(type, "The type cannot be null");
+    List<EmbeddedCollection> collections = COLLECTIONS.get(type);
+    if (collections == null) {
+      collections = introspect(type);
+      COLLECTIONS.putIfAbsent(type, collections);
+    }
+    return collections;
+  }
+
+  /** Retrieves the embedded collection that holds the given field.
+   * @param type the indexed class, cannot be null.
+   * @param fieldName the document field name, can be null.
+   * @return the collection, or null if the field is not in a nested or child
+   * collection.
+   */
+  static EmbeddedCollection forField(final Class<?> type,
+      final String fieldName) {
+    if (fieldName == null) {
+      return null;
+    }
+    for (EmbeddedCollection collection : forClass(type)) {
+      if (fieldName.startsWith(collection.prefix)) {
+        return collection;
+      }
+    }
+    return null;
+  }
+
+  /** Makes hibernate search write a marker field before the fields of each
+   * element of the nested collections of the given entity.
+   *
+   * It must be invoked once the document builders are created, before the
+   * first document is built.
+   *
+   * @param builder the document builder of the entity, cannot be null.
+   */
+  static void markElements(final DocumentBuilderIndexedEntity<?> builder) {
+    Validate.notNull(builder, "The document builder cannot be null");
+    Object metadata = builder.getMetadata();
+    List<Object> getters = read(metadata, "embeddedGetters");
+    List<Object> elements = read(metadata, "embeddedPropertiesMetadata");
+    for (EmbeddedCollection collection : forClass(builder.getBeanClass())) {
+      if (!collection.isNested()) {
+        continue;
+      }
+      for (int i = 0; i < getters.size(); i++) {
+        String name = ((XMember) getters.get(i)).getName();
+        if (name.equals(collection.property)) {
+          collection.mark(elements.get(i));
+        }
+      }
+    }
+  }
+
+  /** Adds the marker class bridge to the given element metadata, the class
+   * bridges are the first fields written for each element.
+   * @param element the metadata of the elements, cannot be null.
+   */
+  private void mark(final Object element) {
+    List<Object> bridges = read(element, "classBridges");
+    if (!bridges.isEmpty() && bridges.get(0) instanceof ElementMarker) {
+      return;
+    }
+    read(element, "classNames").add(0, getElementMarker());
+    bridges.add(0, new ElementMarker());
+    read(element, "classStores").add(0, Store.YES);
+    read(element, "classIndexes").add(0, Index.NO);
+    read(element, "classTermVectors").add(0, TermVector.NO);
+    read(element, "classBoosts").add(0, 1.0f);
+  }
+
+  /** Reads one of the lists of the hibernate search metadata of a class.
+   *
+   * The metadata class is protected within hibernate search, so its public
+   * lists are read by reflection.
+   *
+   * @param metadata the properties metadata, cannot be null.
+   * @param name the name of the list.
+   * @return the list, never null.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<Object> read(final Object metadata, final String name) {
+    try {
+      return (List<Object>) metadata.getClass().getField(name).get(metadata);
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot read the metadata: " + name, e);
+    }
+  }
+
+  /** Reads the embedded collections of the given class.
+   * @param type the indexed class, cannot be null.
+   * @return the embedded collections, never null.
+   */
+  private static List<EmbeddedCollection> introspect(final Class<?> type) {
+    List<EmbeddedCollection> collections = new ArrayList<EmbeddedCollection>();
+    Class<?> current = type;
+    while (current != null && current != Object.class) {
+      for (Field field : current.getDeclaredFields()) {
+        EmbeddedDocuments documents;
+        documents = field.getAnnotation(EmbeddedDocuments.class);
+        IndexedEmbedded embedded = field.getAnnotation(IndexedEmbedded.class);
+        if (documents != null && embedded != null) {
+          String prefix = embedded.prefix();
+          if (".".equals(prefix)) {
+            prefix = field.getName() + ".";
+          }
+          collections.add(new EmbeddedCollection(field.getName(), prefix,
+              getElementType(field, embedded), documents.value()));
+        }
+      }
+      current = current.getSuperclass();
+    }
+    return Collections.unmodifiableList(collections);
+  }
+
+  /** Retrieves the class of the elements of the given collection.
+   * @param field the collection field, cannot be null.
+   * @param embedded the IndexedEmbedded annotation, cannot be null.
+   * @return the class of the elements.
+   */
+  private static Class<?> getElementType(final Field field,
+      final IndexedEmbedded embedded) {
+    if (embedded.targetElement() != void.class) {
+      return embedded.targetElement();
+    }
+    Type generic = field.getGenericType();
+    if (generic instanceof ParameterizedType) {
+      Type[] arguments = ((ParameterizedType) generic).getActualTypeArguments();
+      Type element = arguments[arguments.length - 1];
+      if (element instanceof Class<?>) {
+        return (Class<?>) element;
+      }
+    }
+    if (field.getType().isArray()) {
+      return field.getType().getComponentType();
+    }
+    throw new IllegalStateException("Cannot resolve the element type of: "
+        + field + ", please set IndexedEmbedded.targetElement");
+  }
+
+  /** Retrieves the prefix of the embedded fields.
+   * @return the prefix, ie: comments., never null.
+   */
+  String getPrefix() {
+    return prefix;
+  }
+
+  /** Retrieves the name of the marker field written before the fields of
+   * each element of a nested collection.
+   * @return the field name, ie: comments._element, never null.
+   */
+  String getElementMarker() {
+    return prefix + ELEMENT_MARKER;
+  }
+
+  /** Retrieves the path of the nested documents.
+   * @return the path, ie: comments, never null.
+   */
+  String getPath() {
+    return path;
+  }
+
+  /** Retrieves the class of the elements.
+   * @return the element class, never null.
+   */
+  Class<?> getElementType() {
+    return elementType;
+  }
+
+  /** Checks if the elements are stored as nested documents.
+   * @return true for nested documents, false for child documents.
+   */
+  boolean isNested() {
+    return mode == EmbeddedDocuments.Mode.NESTED;
+  }
+
+  /** Retrieves the name of a field within the element document.
+   * @param fieldName the field name within the parent, ie: comments.text.
+   * @return the field name within the element, ie: text for child
+   * documents, and the same field for nested documents.
+   */
+  String getElementField(final String fieldName) {
+    if (isNested()) {
+      return fieldName;
+    }
+    return fieldName.substring(prefix.length());
+  }
+
+  /** The class bridge that writes the empty marker field of an element.*/
+  private static final class ElementMarker implements FieldBridge {
+
+    /** {@inheritDoc}.*/
+    public void set(final String name, final Object value,
+        final Document document, final LuceneOptions luceneOptions) {
+      // the lucene options leave out the empty values.
+      document.add(new org.apache.lucene.document.Field(name, "",
+          org.apache.lucene.document.Field.Store.YES, Index.NO));
+    }
+  }
+
+}
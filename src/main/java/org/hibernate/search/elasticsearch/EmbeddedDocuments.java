@@ -0,0 +1,53 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Changes how an {@link org.hibernate.search.annotations.IndexedEmbedded}
+ * collection is stored in elasticsearch.
+ *
+ * By default hibernate search flattens the embedded collection into the
+ * parent document. With this annotation the elements are mapped as nested
+ * documents of the parent, or as child documents of their own:
+ *
+ * <pre>
+ * &#64;IndexedEmbedded
+ * &#64;EmbeddedDocuments(EmbeddedDocuments.Mode.CHILD)
+ * private Set&lt;Comment&gt; comments;
+ * </pre>
+ *
+ * Queries on the embedded fields, ie: comments.text, are translated to nested
+ * or has_child queries.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD })
+public @interface EmbeddedDocuments {
+
+  /** How the embedded elements are stored.*/
+  Mode value();
+
+  /** The ways to store the embedded elements. */
+  public enum Mode {
+
+    /** Each element is a nested document of the parent document, so a query
+     * matches the fields of a single element. A change on an element still
+     * re-indexes the parent.
+     */
+    NESTED,
+
+    /** Each element is a document of its own, whose _parent is the parent
+     * document. The element class must be indexed within the same index as
+     * the parent, and declare its parent with {@link ParentDocument}. A change
+     * on an element only re-indexes the element, so the element should not
+     * declare a ContainedIn to the parent.
+     */
+    CHILD
+  }
+
+}
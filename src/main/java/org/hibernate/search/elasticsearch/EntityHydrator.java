@@ -0,0 +1,472 @@
+package org.hibernate.search.elasticsearch;
+
+import java.io.Serializable;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+
+import javax.persistence.Id;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.document.DateTools;
+import org.hibernate.HibernateException;
+import org.hibernate.search.annotations.ClassBridge;
+import org.hibernate.search.annotations.ClassBridges;
+import org.hibernate.search.annotations.ContainedIn;
+import org.hibernate.search.annotations.DocumentId;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.FieldBridge;
+import org.hibernate.search.annotations.Fields;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Creates detached, read only instances of an indexed entity straight from
+ * the source of its elasticsearch document.
+ *
+ * The hydrators are generated with javassist the first time an entity of
+ * the class is hydrated, or at bootstrap when the
+ * {@link ElasticSearchIndexEventListener} is registered, one class per
+ * indexed entity, with a plain constructor invocation and a plain setter
+ * invocation, or field assignment, for the id and each indexed property. So
+ * the entities are created without reflection and without the database.
+ *
+ * Only the entities whose indexed properties are strings, numbers, booleans,
+ * chars or dates, without bridges nor embedded objects, and whose id and
+ * properties can be set from their package, get a hydrator. The hydrated
+ * entities only hold the indexed properties and the id, the other properties
+ * and the associations are left with their default values.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public abstract class EntityHydrator {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(EntityHydrator.class);
+
+  /** The type codes of the values the hydrators convert, by type. The
+   * primitives use the code of their wrapper.
+   */
+  private static final Map<Class<?>, Integer> TYPE_CODES =
+      new HashMap<Class<?>, Integer>();
+
+  /** The wrappers of the primitive types, by primitive type.*/
+  private static final Map<Class<?>, Class<?>> WRAPPERS =
+      new HashMap<Class<?>, Class<?>>();
+
+  static {
+    List<Class<?>> types = Arrays.asList(new Class<?>[] {String.class,
+        Boolean.class, Character.class, Byte.class, Short.class,
+        Integer.class, Long.class, Float.class, Double.class,
+        BigInteger.class, BigDecimal.class, Date.class});
+    for (int i = 0; i < types.size(); i++) {
+      TYPE_CODES.put(types.get(i), i);
+    }
+    WRAPPERS.put(boolean.class, Boolean.class);
+    WRAPPERS.put(char.class, Character.class);
+    WRAPPERS.put(byte.class, Byte.class);
+    WRAPPERS.put(short.class, Short.class);
+    WRAPPERS.put(int.class, Integer.class);
+    WRAPPERS.put(long.class, Long.class);
+    WRAPPERS.put(float.class, Float.class);
+    WRAPPERS.put(double.class, Double.class);
+  }
+
+  /** Marks a class that cannot be hydrated, so its hydrator is not
+   * generated again.
+   */
+  private static final EntityHydrator NONE = new EntityHydrator() {
+    /** {@inheritDoc}.*/
+    @SuppressWarnings("rawtypes")
+    protected Object create(final Serializable id, final Map source) {
+      throw new UnsupportedOperationException("The class has no hydrator");
+    }
+  };
+
+  /** The generated hydrators, or NONE, by entity class, it's never null.*/
+  private static final ConcurrentMap<Class<?>, EntityHydrator> HYDRATORS =
+      new ConcurrentHashMap<Class<?>, EntityHydrator>();
+
+  /** The generated hydrators sequence, used to name the classes.*/
+  private static int sequence = 0;
+
+  /** Constructor for the generated subclasses.*/
+  protected EntityHydrator() {
+  }
+
+  /** Creates the entity of the given document source.
+   * @param id the entity id, cannot be null.
+   * @param source the source of the document, cannot be null.
+   * @return a new detached entity, never null.
+   */
+  final Object hydrate(final Serializable id,
+      final Map<String, Object> source) {
+    Validate.notNull(id, "The id cannot be null");
+    Validate.notNull(source, "The source cannot be null");
+    return create(id, source);
+  }
+
+  /** Creates the entity and sets its id and indexed properties, it's
+   * implemented by the generated hydrators.
+   * @param id the entity id, never null.
+   * @param source the source of the document, never null.
+   * @return the entity, never null.
+   */
+  @SuppressWarnings("rawtypes")
+  protected abstract Object create(final Serializable id, final Map source);
+
+  /** Converts the given source value as the hibernate search built-in
+   * bridges do.
+   * @param value the source value, cannot be null.
+   * @param type the type code of the property.
+   * @return the property value, never null.
+   */
+  protected static Object value(final Object value, final int type) {
+    String text = value.toString();
+    switch (type) {
+    case 0:
+      return text;
+    case 1:
+      return Boolean.valueOf(text);
+    case 2:
+      return text.charAt(0);
+    case 3:
+      return Byte.valueOf(text);
+    case 4:
+      return Short.valueOf(text);
+    case 5:
+      return Integer.valueOf(text);
+    case 6:
+      return Long.valueOf(text);
+    case 7:
+      return Float.valueOf(text);
+    case 8:
+      return Double.valueOf(text);
+    case 9:
+      return new BigInteger(text);
+    case 10:
+      return new BigDecimal(text);
+    case 11:
+      try {
+        return DateTools.stringToDate(text);
+      } catch (ParseException e) {
+        throw new HibernateException("Cannot parse the date " + text, e);
+      }
+    default:
+      throw new IllegalArgumentException("Unknown type code " + type);
+    }
+  }
+
+  /** Retrieves the hydrator of the given class, generating it the first
+   * time.
+   * @param type the entity class, cannot be null.
+   * @return the hydrator, null if the class cannot be hydrated.
+   */
+  static EntityHydrator forClass(final Class<?> type) {
+    Validate.notNull(type, "The type cannot be null");
+    EntityHydrator hydrator = HYDRATORS.get(type);
+    if (hydrator == null) {
+      hydrator = create(type);
+      EntityHydrator previous = HYDRATORS.putIfAbsent(type, hydrator);
+      if (previous != null) {
+        hydrator = previous;
+      }
+    }
+    if (hydrator == NONE) {
+      return null;
+    }
+    return hydrator;
+  }
+
+  /** Generates the hydrator of the given indexed class, if its id and all
+   * its indexed properties can be set without hibernate.
+   * @param type the indexed class, cannot be null.
+   */
+  static void generate(final Class<?> type) {
+    forClass(type);
+  }
+
+  /** Creates the hydrator of the given class.
+   * @param type the entity class, cannot be null.
+   * @return the hydrator, NONE if the class cannot be hydrated.
+   */
+  private static EntityHydrator create(final Class<?> type) {
+    String body = createBody(type);
+    if (body == null) {
+      log.debug("{} is always loaded from the database", type.getName());
+      return NONE;
+    }
+    try {
+      EntityHydrator hydrator = compile(type, body);
+      log.debug("Generated the hydrator of {}", type.getName());
+      return hydrator;
+    } catch (Exception e) {
+      log.warn("Cannot generate the hydrator of " + type.getName()
+          + ", it will be loaded from the database", e);
+      return NONE;
+    }
+  }
+
+  /** Compiles the hydrator of the given class.
+   *
+   * The hydrator lives in the package of the entity, and in its class
+   * loader, so it can use the package private constructor and setters.
+   *
+   * @param type the entity class, cannot be null.
+   * @param body the body of the create method, cannot be null.
+   * @return the hydrator, never null.
+   * @throws Exception if the class cannot be compiled.
+   */
+  private static synchronized EntityHydrator compile(final Class<?> type,
+      final String body) throws Exception {
+    ClassPool pool = new ClassPool(true);
+    pool.insertClassPath(new ClassClassPath(EntityHydrator.class));
+    pool.insertClassPath(new ClassClassPath(type));
+    String name = type.getName() + "$$Hydrator" + (sequence++);
+    CtClass hydrator = pool.makeClass(name,
+        pool.get(EntityHydrator.class.getName()));
+    hydrator.addConstructor(CtNewConstructor.defaultConstructor(hydrator));
+    hydrator.addMethod(CtNewMethod.make("protected Object create("
+        + "java.io.Serializable id, java.util.Map source) {" + body + "}",
+        hydrator));
+    Class<?> generated = hydrator.toClass(type.getClassLoader(),
+        type.getProtectionDomain());
+    hydrator.detach();
+    return (EntityHydrator) generated.newInstance();
+  }
+
+  /** Creates the source code that creates the entity and sets its id and
+   * indexed properties.
+   * @param type the entity class, cannot be null.
+   * @return the source code, null if the entity cannot be created, or its id
+   * or any indexed property cannot be set, without hibernate.
+   */
+  private static String createBody(final Class<?> type) {
+    if (Modifier.isAbstract(type.getModifiers()) || type.isLocalClass()
+        || type.isAnonymousClass() || type.isMemberClass()
+        && !Modifier.isStatic(type.getModifiers())) {
+      return null;
+    }
+    try {
+      Constructor<?> constructor = type.getDeclaredConstructor();
+      if (!isAccessible(type, constructor)) {
+        return null;
+      }
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+    StringBuilder body = new StringBuilder();
+    body.append(type.getName()).append(" e = new ").append(type.getName())
+      .append("();");
+    boolean hasId = false;
+    Set<String> properties = new HashSet<String>();
+    Class<?> current = type;
+    while (current != null && current != Object.class) {
+      if (current.isAnnotationPresent(ClassBridge.class)
+          || current.isAnnotationPresent(ClassBridges.class)) {
+        return null;
+      }
+      List<Member> members = new ArrayList<Member>();
+      members.addAll(Arrays.asList(current.getDeclaredFields()));
+      members.addAll(Arrays.asList(current.getDeclaredMethods()));
+      for (Member member : members) {
+        AnnotatedElement element = (AnnotatedElement) member;
+        if (element.isAnnotationPresent(IndexedEmbedded.class)
+            || element.isAnnotationPresent(FieldBridge.class)) {
+          return null;
+        }
+        if (element.isAnnotationPresent(ContainedIn.class)) {
+          continue;
+        }
+        boolean isId = element.isAnnotationPresent(Id.class)
+            || element.isAnnotationPresent(DocumentId.class);
+        Field annotation = null;
+        if (element.isAnnotationPresent(Field.class)) {
+          annotation = element.getAnnotation(Field.class);
+        } else if (element.isAnnotationPresent(Fields.class)
+            && element.getAnnotation(Fields.class).value().length > 0) {
+          // all the fields of a property hold the same value.
+          annotation = element.getAnnotation(Fields.class).value()[0];
+        }
+        if (!isId && annotation == null) {
+          continue;
+        }
+        String property = propertyName(member);
+        if (property == null || !properties.add(property)) {
+          return null;
+        }
+        Class<?> valueType = valueType(member);
+        String assignment = assignment(type, member, property, valueType);
+        if (assignment == null) {
+          return null;
+        }
+        if (isId) {
+          hasId = true;
+          body.append(String.format(assignment, convert("id", valueType)));
+        } else {
+          if (annotation.bridge().impl() != void.class
+              || !Field.DO_NOT_INDEX_NULL.equals(annotation.indexNullAs())) {
+            return null;
+          }
+          String name = annotation.name();
+          if ("".equals(name)) {
+            name = property;
+          }
+          body.append("if (source.get(\"").append(name)
+            .append("\") != null) {")
+            .append(String.format(assignment, convert("source.get(\""
+                + name + "\")", valueType)))
+            .append("}");
+        }
+      }
+      current = current.getSuperclass();
+    }
+    if (!hasId) {
+      return null;
+    }
+    body.append("return e;");
+    return body.toString();
+  }
+
+  /** Creates the java expression that converts the given value to the given
+   * type, ie: ((Integer) value(v, 5)).intValue().
+   * @param value the java expression of the source value, cannot be null.
+   * @param valueType the type of the property, cannot be null.
+   * @return the expression, null if the type is not supported.
+   */
+  private static String convert(final String value,
+      final Class<?> valueType) {
+    Class<?> wrapper = valueType;
+    if (valueType.isPrimitive()) {
+      wrapper = WRAPPERS.get(valueType);
+    }
+    String conversion = "((" + wrapper.getName() + ") value(" + value + ", "
+        + TYPE_CODES.get(wrapper) + "))";
+    if (valueType.isPrimitive()) {
+      // javassist does not unbox.
+      conversion += "." + valueType.getName() + "Value()";
+    }
+    return conversion;
+  }
+
+  /** Retrieves the java statement that sets the given property of the
+   * entity, with a %s placeholder for the value, ie: e.setName(%s);.
+   * @param type the entity class, cannot be null.
+   * @param member the field or getter, cannot be null.
+   * @param property the property name, cannot be null.
+   * @param valueType the type of the property, cannot be null.
+   * @return the statement, null if the property cannot be set from the
+   * package of the entity or its type is not supported.
+   */
+  private static String assignment(final Class<?> type, final Member member,
+      final String property, final Class<?> valueType) {
+    Class<?> wrapper = valueType;
+    if (valueType.isPrimitive()) {
+      wrapper = WRAPPERS.get(valueType);
+    }
+    if (wrapper == null || !TYPE_CODES.containsKey(wrapper)) {
+      return null;
+    }
+    if (member instanceof java.lang.reflect.Field
+        && !Modifier.isFinal(member.getModifiers())
+        && isAccessible(type, member)) {
+      return "e." + member.getName() + " = %s;";
+    }
+    String setter = "set" + Character.toUpperCase(property.charAt(0))
+      + property.substring(1);
+    Class<?> current = type;
+    while (current != null && current != Object.class) {
+      try {
+        Method method = current.getDeclaredMethod(setter, valueType);
+        if (isAccessible(type, method)) {
+          return "e." + setter + "(%s);";
+        }
+        return null;
+      } catch (NoSuchMethodException e) {
+        log.trace("No setter {} in {}", setter, current.getName());
+      }
+      current = current.getSuperclass();
+    }
+    return null;
+  }
+
+  /** Checks if the given member can be used from a class of the package of
+   * the given entity that is not its subclass.
+   * @param type the entity class, cannot be null.
+   * @param member the member, cannot be null.
+   * @return true if it's public, or not private and declared in the same
+   * package.
+   */
+  private static boolean isAccessible(final Class<?> type,
+      final Member member) {
+    int modifiers = member.getModifiers();
+    Class<?> declaring = member.getDeclaringClass();
+    boolean samePackage = packageName(declaring).equals(packageName(type));
+    if (Modifier.isPublic(modifiers)) {
+      return Modifier.isPublic(declaring.getModifiers()) || samePackage;
+    }
+    return !Modifier.isPrivate(modifiers) && samePackage;
+  }
+
+  /** Retrieves the package name of the given class.
+   * @param type the class, cannot be null.
+   * @return the package name, empty for the default package.
+   */
+  private static String packageName(final Class<?> type) {
+    String name = type.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot < 0) {
+      return "";
+    }
+    return name.substring(0, dot);
+  }
+
+  /** Retrieves the property name of the given field or getter.
+   * @param member the field or getter, cannot be null.
+   * @return the property name, null if the method is not a getter.
+   */
+  private static String propertyName(final Member member) {
+    String name = member.getName();
+    if (member instanceof java.lang.reflect.Field) {
+      return name;
+    } else if (name.startsWith("get") && name.length() > 3) {
+      return Character.toLowerCase(name.charAt(3)) + name.substring(4);
+    } else if (name.startsWith("is") && name.length() > 2) {
+      return Character.toLowerCase(name.charAt(2)) + name.substring(3);
+    }
+    return null;
+  }
+
+  /** Retrieves the type of the value of the given field or getter.
+   * @param member the field or getter, cannot be null.
+   * @return the type of the value, never null.
+   */
+  private static Class<?> valueType(final Member member) {
+    if (member instanceof Method) {
+      return ((Method) member).getReturnType();
+    }
+    return ((java.lang.reflect.Field) member).getType();
+  }
+
+}
@@ -0,0 +1,204 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.search.Filter;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.hibernate.HibernateException;
+import org.hibernate.search.annotations.FilterCacheModeType;
+import org.hibernate.search.engine.FilterDef;
+
+/** Translates the full text filters, defined with FullTextFilterDef, to
+ * elasticsearch filters, and remembers the last translations.
+ *
+ * The filter implementation is created and its parameters are set as
+ * hibernate search does. Its factory method, if any, can return a lucene
+ * filter, that is translated by {@link ElasticsearchFilterBuilder}, or an
+ * elasticsearch FilterBuilder.
+ *
+ * The cache modes of the definitions are honored: the translations are not
+ * remembered for FilterCacheModeType.NONE, and for
+ * FilterCacheModeType.INSTANCE_AND_DOCIDSETRESULTS, the default, the filter
+ * is also cached by elasticsearch under a key made of its name, its
+ * parameters and the searched entities, so each segment computes its bitset
+ * once. The entities are part of the key because the field names of a
+ * translated lucene filter depend on them. The parameters must have a
+ * meaningful toString for that key.
+ *
+ * This class is thread safe.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class FullTextFilterCache {
+
+  /** The translations from the least to the most recently used, it's never
+   * null. Guarded by this cache.
+   */
+  private final LinkedHashMap<Key, FilterBuilder> entries;
+
+  /** Creates a new cache.
+   * @param size the max number of translations, must be greater than zero.
+   */
+  FullTextFilterCache(final int size) {
+    Validate.isTrue(size > 0, "The size must be greater than zero");
+    entries = new LinkedHashMap<Key, FilterBuilder>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      /** {@inheritDoc}.*/
+      @Override
+      protected boolean removeEldestEntry(
+          final Map.Entry<Key, FilterBuilder> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /** Retrieves the elasticsearch filter of the given full text filter.
+   * @param definition the definition of the filter, cannot be null.
+   * @param parameters the parameters of the filter, cannot be null.
+   * @param entities the indexed entities of the search, cannot be null.
+   * @return the filter, it must not be modified, never null.
+   * @throws HibernateException if the filter cannot be created or
+   * translated.
+   */
+  FilterBuilder get(final FilterDef definition,
+      final Map<String, Object> parameters, final Set<Class<?>> entities) {
+    Validate.notNull(definition, "The definition cannot be null");
+    Validate.notNull(parameters, "The parameters cannot be null");
+    Validate.notNull(entities, "The entities cannot be null");
+    if (definition.getCacheMode() == FilterCacheModeType.NONE) {
+      return create(definition, parameters, entities);
+    }
+    Key key = new Key(definition.getName(),
+        new HashMap<String, Object>(parameters),
+        new HashSet<Class<?>>(entities));
+    FilterBuilder filter;
+    synchronized (this) {
+      filter = entries.get(key);
+    }
+    if (filter == null) {
+      filter = create(definition, parameters, entities);
+      if (definition.getCacheMode()
+          == FilterCacheModeType.INSTANCE_AND_DOCIDSETRESULTS) {
+        filter = FilterBuilders.boolFilter().must(filter).cache(true)
+            .cacheKey(cacheKey(definition, parameters, entities));
+      }
+      synchronized (this) {
+        entries.put(key, filter);
+      }
+    }
+    return filter;
+  }
+
+  /** Forgets every translation.*/
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  /** Creates the key of the given filter in the elasticsearch filter cache.
+   * @param definition the definition of the filter, cannot be null.
+   * @param parameters the parameters of the filter, cannot be null.
+   * @param entities the indexed entities of the search, cannot be null.
+   * @return the name, the sorted parameters and the sorted entity names,
+   * never null.
+   */
+  private static String cacheKey(final FilterDef definition,
+      final Map<String, Object> parameters, final Set<Class<?>> entities) {
+    Set<String> names = new TreeSet<String>();
+    for (Class<?> entity : entities) {
+      names.add(entity.getName());
+    }
+    return definition.getName() + new TreeMap<String, Object>(parameters)
+        + names;
+  }
+
+  /** Creates the given full text filter and translates it.
+   * @param definition the definition of the filter, cannot be null.
+   * @param parameters the parameters of the filter, cannot be null.
+   * @param entities the indexed entities of the search, cannot be null.
+   * @return the filter, never null.
+   */
+  private static FilterBuilder create(final FilterDef definition,
+      final Map<String, Object> parameters, final Set<Class<?>> entities) {
+    Object instance;
+    try {
+      instance = definition.getImpl().newInstance();
+      for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+        definition.invoke(parameter.getKey(), instance,
+            parameter.getValue());
+      }
+      if (definition.getFactoryMethod() != null) {
+        instance = definition.getFactoryMethod().invoke(instance);
+      }
+    } catch (InstantiationException e) {
+      throw new HibernateException("Unable to create the filter "
+          + definition.getName(), e);
+    } catch (IllegalAccessException e) {
+      throw new HibernateException("Unable to create the filter "
+          + definition.getName(), e);
+    } catch (InvocationTargetException e) {
+      throw new HibernateException("Unable to create the filter "
+          + definition.getName(), e.getCause());
+    }
+    if (instance instanceof FilterBuilder) {
+      return (FilterBuilder) instance;
+    } else if (instance instanceof Filter) {
+      return new ElasticsearchFilterBuilder((Filter) instance, entities)
+          .build();
+    }
+    throw new HibernateException("The filter " + definition.getName()
+        + " is neither a lucene filter nor an elasticsearch filter");
+  }
+
+  /** The name, the parameters and the entities of a translation.*/
+  private static final class Key {
+
+    /** The filter name, it's never null.*/
+    private final String name;
+
+    /** The filter parameters, it's never null.*/
+    private final Map<String, Object> parameters;
+
+    /** The entities, it's never null.*/
+    private final Set<Class<?>> entities;
+
+    /** Creates a new key.
+     * @param theName the filter name, cannot be null.
+     * @param theParameters the filter parameters, cannot be null.
+     * @param theEntities the entities, cannot be null.
+     */
+    private Key(final String theName, final Map<String, Object> theParameters,
+        final Set<Class<?>> theEntities) {
+      name = theName;
+      parameters = theParameters;
+      entities = theEntities;
+    }
+
+    /** {@inheritDoc}.*/
+    @Override
+    public int hashCode() {
+      return 31 * (31 * name.hashCode() + parameters.hashCode())
+          + entities.hashCode();
+    }
+
+    /** {@inheritDoc}.*/
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return name.equals(key.name) && parameters.equals(key.parameters)
+          && entities.equals(key.entities);
+    }
+  }
+
+}
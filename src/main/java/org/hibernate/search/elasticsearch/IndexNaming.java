@@ -0,0 +1,27 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Plugs a custom {@link IndexNamingStrategy} to an indexed entity.
+ *
+ * <pre>
+ * &#64;Indexed(index = "orders")
+ * &#64;IndexNaming(OrdersByRegion.class)
+ * public class Order { ... }
+ * </pre>
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface IndexNaming {
+
+  /** The strategy class, it must have a public default constructor.*/
+  Class<? extends IndexNamingStrategy> value();
+
+}
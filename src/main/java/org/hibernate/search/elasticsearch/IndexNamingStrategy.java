@@ -0,0 +1,48 @@
+package org.hibernate.search.elasticsearch;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Query;
+
+/** Decides the indices where the documents of an indexed entity are written
+ * and searched.
+ *
+ * The default strategy keeps every document of an entity within the index
+ * declared by its {@link org.hibernate.search.annotations.Indexed}
+ * annotation. A strategy can also spread the documents across several
+ * indices, see {@link TimePartitionedIndexNaming}, or be plugged in with the
+ * {@link IndexNaming} annotation.
+ *
+ * Implementations must be thread safe, a single instance serves every
+ * document of the entity.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public interface IndexNamingStrategy {
+
+  /** Retrieves the index where the given document is written.
+   * @param type the indexed class, cannot be null.
+   * @param document the lucene document, cannot be null.
+   * @return the index name, never null.
+   */
+  String getIndexName(Class<?> type, Document document);
+
+  /** Retrieves the indices to search for the given query.
+   * @param type the indexed class, cannot be null.
+   * @param query the lucene query, null to retrieve the indices that hold
+   * every document of the class.
+   * @return the index names or aliases, never null nor empty.
+   */
+  String[] getSearchIndices(Class<?> type, Query query);
+
+  /** Checks if the documents of the given class are spread across several
+   * indices.
+   *
+   * The documents of a partitioned class are deleted by a query against its
+   * search indices, as the index of a deleted document is unknown.
+   *
+   * @param type the indexed class, cannot be null.
+   * @return true if the class is partitioned.
+   */
+  boolean isPartitioned(Class<?> type);
+
+}
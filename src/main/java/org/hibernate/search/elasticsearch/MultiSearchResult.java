@@ -0,0 +1,69 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.HibernateException;
+
+/** The outcome of one of the queries of a multi search, see
+ * {@link ElasticSearchFullTextSession#multiList(
+ * org.hibernate.search.FullTextQuery...)}.
+ *
+ * Each query of a multi search succeeds or fails on its own, so a failed
+ * query does not lose the results of the others.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public final class MultiSearchResult {
+
+  /** The results of the query, null if it failed.*/
+  private final List<?> results;
+
+  /** The failure of the query, null if it succeeded.*/
+  private final HibernateException failure;
+
+  /** Creates the outcome of a query that succeeded.
+   * @param theResults the results, as list would return them, cannot be
+   * null.
+   */
+  MultiSearchResult(final List<?> theResults) {
+    Validate.notNull(theResults, "The results cannot be null");
+    results = theResults;
+    failure = null;
+  }
+
+  /** Creates the outcome of a query that failed.
+   * @param theFailure the failure, cannot be null.
+   */
+  MultiSearchResult(final HibernateException theFailure) {
+    Validate.notNull(theFailure, "The failure cannot be null");
+    results = null;
+    failure = theFailure;
+  }
+
+  /** Checks if the query failed.
+   * @return true if the query failed.
+   */
+  public boolean isFailure() {
+    return failure != null;
+  }
+
+  /** Retrieves the failure of the query.
+   * @return the failure, null if the query succeeded.
+   */
+  public HibernateException getFailure() {
+    return failure;
+  }
+
+  /** Retrieves the results of the query, as list would return them.
+   * @return the results, never null.
+   * @throws HibernateException the failure, if the query failed.
+   */
+  public List<?> getResults() {
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+
+}
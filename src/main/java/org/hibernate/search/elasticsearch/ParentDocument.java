@@ -0,0 +1,34 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Declares the parent of an indexed entity that is stored as a child
+ * document, see {@link EmbeddedDocuments.Mode#CHILD}.
+ *
+ * <pre>
+ * &#64;Indexed(index = "posts")
+ * &#64;ParentDocument(type = Post.class, field = "post.id")
+ * public class Comment { ... }
+ * </pre>
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ParentDocument {
+
+  /** The parent entity class, it must be indexed within the same index.*/
+  Class<?> type();
+
+  /** The name of the field of the child document that holds the parent id,
+   * ie: the id of an IndexedEmbedded parent, or a Field on a getter that
+   * returns the parent id.
+   */
+  String field();
+
+}
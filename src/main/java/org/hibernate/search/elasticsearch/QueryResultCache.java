@@ -0,0 +1,389 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.facet.Facets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Remembers the hits of the last searches sent to elasticsearch, so the
+ * same search does not go to the cluster again.
+ *
+ * The entries are keyed by the whole search request: the translated query,
+ * the sort, the paging, the fields, and the target indices and types. The
+ * cache is bounded by the estimated memory of its entries, the least
+ * recently used entries are evicted first, and each entry expires after the
+ * time to live.
+ *
+ * Each index has a generation that the backend queue increments whenever it
+ * sends writes to that index, see {@link #invalidate(String)}. An entry
+ * remembers the generations of its indices from before its search was sent,
+ * so it's stale as soon as any of them changes. The indices are named by
+ * {@link #getCacheIndex(Class)}, so the partitions of a partitioned class
+ * share the generation of their alias.
+ *
+ * Elasticsearch shows the writes after the next refresh of the index, so a
+ * search sent within the refresh interval after a write may still miss it.
+ * The results of those searches are not kept. The writes of other processes
+ * do not invalidate this cache, so the time to live bounds how stale a
+ * result can be.
+ *
+ * This class is thread safe.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class QueryResultCache {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+  /** The estimated bytes of an entry, without its key and hits.*/
+  private static final int ENTRY_WEIGHT = 128;
+
+  /** The estimated bytes of a hit, without its source and fields.*/
+  private static final int HIT_WEIGHT = 128;
+
+  /** The estimated bytes of a stored field of a hit.*/
+  private static final int FIELD_WEIGHT = 64;
+
+  /** The estimated bytes of a facet of a search.*/
+  private static final int FACET_WEIGHT = 1024;
+
+  /** The generation given to an index written within the refresh interval,
+   * that no entry can be current with.
+   */
+  private static final long UNSETTLED = -1;
+
+  /** The generation of each index, it's never null.*/
+  private final ConcurrentMap<String, Generation> generations =
+      new ConcurrentHashMap<String, Generation>();
+
+  /** The entries from the least to the most recently used, it's never null.
+   * Guarded by this cache.
+   */
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** The max estimated bytes of the entries.*/
+  private final long maxWeight;
+
+  /** The ms each entry lives.*/
+  private final long timeToLive;
+
+  /** The ms elasticsearch takes to show the writes to the searches.*/
+  private final long refreshInterval;
+
+  /** The estimated bytes of the entries. Guarded by this cache.*/
+  private long weight = 0;
+
+  /** Creates a new cache, for indices refreshed every second.
+   * @param theMaxWeight the max estimated bytes of the entries, must be
+   * greater than zero.
+   * @param theTimeToLive the ms each entry lives, must be greater than
+   * zero.
+   */
+  QueryResultCache(final long theMaxWeight, final long theTimeToLive) {
+    this(theMaxWeight, theTimeToLive,
+        ElasticSearchEnvironment.DEFAULT_QUERY_CACHE_REFRESH_INTERVAL);
+  }
+
+  /** Creates a new cache.
+   * @param theMaxWeight the max estimated bytes of the entries, must be
+   * greater than zero.
+   * @param theTimeToLive the ms each entry lives, must be greater than
+   * zero.
+   * @param theRefreshInterval the ms elasticsearch takes to show the writes
+   * to the searches, cannot be negative.
+   */
+  QueryResultCache(final long theMaxWeight, final long theTimeToLive,
+      final long theRefreshInterval) {
+    Validate.isTrue(theMaxWeight > 0, "The max weight must be greater than 0");
+    Validate.isTrue(theTimeToLive > 0, "The ttl must be greater than 0");
+    Validate.isTrue(theRefreshInterval >= 0,
+        "The refresh interval cannot be negative");
+    maxWeight = theMaxWeight;
+    timeToLive = theTimeToLive;
+    refreshInterval = theRefreshInterval;
+  }
+
+  /** Invalidates the entries that searched the given index, it must be
+   * invoked whenever documents are written to it.
+   * @param index the index, as given by {@link #getCacheIndex(Class)},
+   * cannot be null.
+   */
+  void invalidate(final String index) {
+    Validate.notNull(index, "The index cannot be null");
+    generation(index).increment();
+  }
+
+  /** Retrieves the index that names the given class in this cache: the
+   * alias of the partitions for the partitioned classes, the index
+   * otherwise.
+   * @param type the indexed class, cannot be null.
+   * @return the index, never null.
+   */
+  static String getCacheIndex(final Class<?> type) {
+    return ElasticSearchUtils.getIndexNaming(type).getSearchIndices(type,
+        null)[0];
+  }
+
+  /** Retrieves the current generations of the given indices, to be given to
+   * {@link #put} once the search returns.
+   *
+   * The indices written within the refresh interval get a generation that
+   * no entry is current with, so the result of a search that may miss those
+   * writes is not kept.
+   *
+   * @param indices the indices, cannot be null.
+   * @return the generations, never null.
+   */
+  long[] getGenerations(final String[] indices) {
+    long now = System.currentTimeMillis();
+    long[] current = new long[indices.length];
+    for (int i = 0; i < indices.length; i++) {
+      Generation generation = generation(indices[i]);
+      if (now - generation.changed < refreshInterval) {
+        current[i] = UNSETTLED;
+      } else {
+        current[i] = generation.value.get();
+      }
+    }
+    return current;
+  }
+
+  /** Retrieves the hits of the given search.
+   * @param key the search request, cannot be null.
+   * @return the result, null if it's not cached, it expired, or any of its
+   * indices changed.
+   */
+  synchronized Result get(final String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiration < System.currentTimeMillis()
+        || !isCurrent(entry)) {
+      remove(key);
+      return null;
+    }
+    log.debug("Reusing the cached result of: {}", key);
+    return entry.result;
+  }
+
+  /** Keeps the hits of the given search, evicting the least recently used
+   * entries if the cache is full.
+   * @param key the search request, cannot be null.
+   * @param indices the indices the search went to, cannot be null.
+   * @param indexGenerations the generations of the indices before the
+   * search was sent, cannot be null.
+   * @param result the hits, cannot be null.
+   */
+  synchronized void put(final String key, final String[] indices,
+      final long[] indexGenerations, final Result result) {
+    Validate.notNull(result, "The result cannot be null");
+    long entryWeight = ENTRY_WEIGHT + 2L * key.length() + result.weight();
+    if (entryWeight > maxWeight) {
+      return;
+    }
+    remove(key);
+    Entry entry = new Entry(indices, indexGenerations, result, entryWeight,
+        System.currentTimeMillis() + timeToLive);
+    if (!isCurrent(entry)) {
+      // an index changed while the search was in flight.
+      return;
+    }
+    entries.put(key, entry);
+    weight += entryWeight;
+    Iterator<Map.Entry<String, Entry>> eldest;
+    eldest = entries.entrySet().iterator();
+    while (weight > maxWeight && eldest.hasNext()) {
+      weight -= eldest.next().getValue().weight;
+      eldest.remove();
+    }
+  }
+
+  /** Forgets every entry.*/
+  synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  /** Removes the entry of the given search, if any.
+   * @param key the search request, cannot be null.
+   */
+  private void remove(final String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      weight -= entry.weight;
+    }
+  }
+
+  /** Checks that none of the indices of the given entry changed since its
+   * search was sent.
+   * @param entry the entry, cannot be null.
+   * @return true if the result is still current.
+   */
+  private boolean isCurrent(final Entry entry) {
+    for (int i = 0; i < entry.indices.length; i++) {
+      if (generation(entry.indices[i]).value.get()
+          != entry.generations[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Retrieves the generation of the given index.
+   * @param index the index, cannot be null.
+   * @return the generation, never null.
+   */
+  private Generation generation(final String index) {
+    Generation generation = generations.get(index);
+    if (generation == null) {
+      Generation created = new Generation();
+      generation = generations.putIfAbsent(index, created);
+      if (generation == null) {
+        generation = created;
+      }
+    }
+    return generation;
+  }
+
+  /** The generation of an index.*/
+  private static final class Generation {
+
+    /** The number of times the index was written.*/
+    private final AtomicLong value = new AtomicLong();
+
+    /** The time in ms of the last write to the index, zero if it was never
+     * written.
+     */
+    private volatile long changed = 0;
+
+    /** Tells that the index was written.*/
+    private void increment() {
+      changed = System.currentTimeMillis();
+      value.incrementAndGet();
+    }
+  }
+
+  /** The hits of a search.*/
+  static final class Result {
+
+    /** The hits, it's never null.*/
+    private final SearchHit[] hits;
+
+    /** The number of hits that match the search.*/
+    private final long totalHits;
+
+    /** The facets, null if the search had none.*/
+    private final Facets facets;
+
+    /** Creates a new result without facets.
+     * @param theHits the hits, cannot be null.
+     * @param theTotalHits the number of hits that match the search.
+     */
+    Result(final SearchHit[] theHits, final long theTotalHits) {
+      this(theHits, theTotalHits, null);
+    }
+
+    /** Creates a new result.
+     * @param theHits the hits, cannot be null.
+     * @param theTotalHits the number of hits that match the search.
+     * @param theFacets the facets, null if the search had none.
+     */
+    Result(final SearchHit[] theHits, final long theTotalHits,
+        final Facets theFacets) {
+      Validate.notNull(theHits, "The hits cannot be null");
+      hits = theHits;
+      totalHits = theTotalHits;
+      facets = theFacets;
+    }
+
+    /** Retrieves the hits.
+     * @return the hits, never null.
+     */
+    SearchHit[] getHits() {
+      return hits;
+    }
+
+    /** Retrieves the number of hits that match the search.
+     * @return the number of hits.
+     */
+    long getTotalHits() {
+      return totalHits;
+    }
+
+    /** Retrieves the facets.
+     * @return the facets, null if the search had none.
+     */
+    Facets getFacets() {
+      return facets;
+    }
+
+    /** Estimates the bytes of this result.
+     * @return the estimated bytes.
+     */
+    private long weight() {
+      long bytes = 0;
+      for (SearchHit hit : hits) {
+        bytes += HIT_WEIGHT + 2L * (hit.getType().length()
+            + hit.getId().length());
+        if (!hit.isSourceEmpty()) {
+          bytes += hit.getSourceRef().length();
+        }
+        if (hit.getFields() != null) {
+          bytes += FIELD_WEIGHT * hit.getFields().size();
+        }
+      }
+      if (facets != null) {
+        bytes += FACET_WEIGHT * facets.facets().size();
+      }
+      return bytes;
+    }
+  }
+
+  /** A cached result, with the generations of its indices.*/
+  private static final class Entry {
+
+    /** The indices the search went to, it's never null.*/
+    private final String[] indices;
+
+    /** The generations of the indices before the search, it's never null.*/
+    private final long[] generations;
+
+    /** The hits, it's never null.*/
+    private final Result result;
+
+    /** The estimated bytes of this entry.*/
+    private final long weight;
+
+    /** The time in ms after which this entry expires.*/
+    private final long expiration;
+
+    /** Creates a new entry.
+     * @param theIndices the indices, cannot be null.
+     * @param theGenerations the generations of the indices.
+     * @param theResult the hits, cannot be null.
+     * @param theWeight the estimated bytes of this entry.
+     * @param theExpiration the time in ms after which this entry expires.
+     */
+    private Entry(final String[] theIndices, final long[] theGenerations,
+        final Result theResult, final long theWeight,
+        final long theExpiration) {
+      indices = theIndices;
+      generations = theGenerations;
+      result = theResult;
+      weight = theWeight;
+      expiration = theExpiration;
+    }
+  }
+
+}
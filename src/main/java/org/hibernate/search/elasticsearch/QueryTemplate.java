@@ -0,0 +1,258 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.Query;
+import org.hibernate.HibernateException;
+
+/** A named lucene query with parameters, translated to elasticsearch once.
+ *
+ * The parameters are written as ${name} in the term texts of the lucene
+ * query, ie: new TermQuery(new Term("name", "${name}")). Those terms are
+ * sent as they are, so they must not go through an analyzer. The first time
+ * the template is executed for a set of entities, its translation is split
+ * in the literal json and the parameter slots, so each execution only binds
+ * the values and concatenates the json:
+ *
+ * <pre>
+ * QueryTemplate.register("byName", new TermQuery(new Term("name",
+ *     "${name}")));
+ * session.createTemplateQuery("byName", Person.class)
+ *     .setParameter("name", "waabox").list();
+ * </pre>
+ *
+ * The values are converted to text as the default bridges do, and they are
+ * escaped for the lucene query syntax when they end up in a query string.
+ * The time partitions are not pruned by the parameters, as the template is
+ * translated before their values are known.
+ *
+ * This class is thread safe.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public final class QueryTemplate {
+
+  /** The pattern of a parameter.*/
+  private static final Pattern PARAMETER = Pattern.compile(
+      "\\$\\{(\\w+)\\}");
+
+  /** The pattern of the whitespace, that splits the terms of a query
+   * string.
+   */
+  private static final Pattern WHITESPACE = Pattern.compile("\\s");
+
+  /** The key that precedes the text of a query string.*/
+  private static final String QUERY_STRING = "\"query_string\":{\"query\":\"";
+
+  /** The registered templates by name, it's never null.*/
+  private static final ConcurrentMap<String, QueryTemplate> TEMPLATES =
+      new ConcurrentHashMap<String, QueryTemplate>();
+
+  /** The name, it's never null.*/
+  private final String name;
+
+  /** The lucene query, it's never null.*/
+  private final Query query;
+
+  /** The translations by the entities they were translated for, it's never
+   * null.
+   */
+  private final ConcurrentMap<Set<Class<?>>, Translation> translations =
+      new ConcurrentHashMap<Set<Class<?>>, Translation>();
+
+  /** Creates a new template.
+   * @param theName the name, cannot be null.
+   * @param theQuery the lucene query, cannot be null.
+   */
+  private QueryTemplate(final String theName, final Query theQuery) {
+    Validate.notNull(theName, "The name cannot be null");
+    Validate.notNull(theQuery, "The query cannot be null");
+    name = theName;
+    query = theQuery;
+  }
+
+  /** Registers a template, replacing the template with the same name.
+   * @param name the name, cannot be null.
+   * @param query the lucene query with the parameters, it must not be
+   * modified afterwards, cannot be null.
+   * @return the template, never null.
+   */
+  public static QueryTemplate register(final String name, final Query query) {
+    QueryTemplate template = new QueryTemplate(name, query);
+    TEMPLATES.put(name, template);
+    return template;
+  }
+
+  /** Retrieves the template with the given name.
+   * @param name the name, cannot be null.
+   * @return the template, never null.
+   * @throws HibernateException if there is no such template.
+   */
+  public static QueryTemplate forName(final String name) {
+    Validate.notNull(name, "The name cannot be null");
+    QueryTemplate template = TEMPLATES.get(name);
+    if (template == null) {
+      throw new HibernateException("There is no query template " + name);
+    }
+    return template;
+  }
+
+  /** Retrieves the name.
+   * @return the name, never null.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /** Retrieves the lucene query.
+   * @return the lucene query, never null.
+   */
+  public Query getQuery() {
+    return query;
+  }
+
+  /** Binds the given values to the translation of this template.
+   * @param entities the indexed entities of the search, cannot be null.
+   * @param values the values by parameter name, cannot be null.
+   * @return the elasticsearch query json, never null.
+   * @throws HibernateException if a parameter is not bound.
+   */
+  String bind(final Set<Class<?>> entities, final Map<String, Object> values) {
+    Validate.notNull(values, "The values cannot be null");
+    Translation translation = translations.get(entities);
+    if (translation == null) {
+      translation = new Translation(ElasticSearchHSQueryImpl.translate(query,
+          entities).buildAsBytes().toUtf8());
+      translations.put(new HashSet<Class<?>>(entities), translation);
+    }
+    return translation.bind(values);
+  }
+
+  /** Converts a value to the text of its term.
+   * @param value the value, cannot be null.
+   * @return the text, never null.
+   */
+  private static String toText(final Object value) {
+    if (value instanceof Date) {
+      return DateTools.dateToString((Date) value,
+          DateTools.Resolution.MILLISECOND);
+    }
+    return value.toString();
+  }
+
+  /** Escapes the given text for a json string.
+   * @param text the text, cannot be null.
+   * @param json the json to append the text to, cannot be null.
+   */
+  private static void appendJson(final String text, final StringBuilder json) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < ' ') {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+  }
+
+  /** The json of a translation, split by its parameters.*/
+  private static final class Translation {
+
+    /** The literal json around the parameters, one more than the
+     * parameters, it's never null.
+     */
+    private final String[] literals;
+
+    /** The parameter names, it's never null.*/
+    private final String[] parameters;
+
+    /** Checks if each parameter is inside the text of a query string.*/
+    private final boolean[] queryStrings;
+
+    /** Creates a new translation.
+     * @param json the elasticsearch query json, cannot be null.
+     */
+    private Translation(final String json) {
+      List<String> theLiterals = new ArrayList<String>();
+      List<String> theParameters = new ArrayList<String>();
+      List<Boolean> theQueryStrings = new ArrayList<Boolean>();
+      Matcher matcher = PARAMETER.matcher(json);
+      int last = 0;
+      while (matcher.find()) {
+        theLiterals.add(json.substring(last, matcher.start()));
+        theParameters.add(matcher.group(1));
+        theQueryStrings.add(isQueryString(json, matcher.start()));
+        last = matcher.end();
+      }
+      theLiterals.add(json.substring(last));
+      literals = theLiterals.toArray(new String[theLiterals.size()]);
+      parameters = theParameters.toArray(new String[theParameters.size()]);
+      queryStrings = new boolean[parameters.length];
+      for (int i = 0; i < queryStrings.length; i++) {
+        queryStrings[i] = theQueryStrings.get(i);
+      }
+    }
+
+    /** Checks if the given position of the json is inside the text of a
+     * query string.
+     * @param json the json, cannot be null.
+     * @param position the position.
+     * @return true if the text at the position is parsed by elasticsearch.
+     */
+    private static boolean isQueryString(final String json,
+        final int position) {
+      int start = json.lastIndexOf(QUERY_STRING, position);
+      if (start < 0) {
+        return false;
+      }
+      for (int i = start + QUERY_STRING.length(); i < position; i++) {
+        if (json.charAt(i) == '\\') {
+          i++;
+        } else if (json.charAt(i) == '"') {
+          // the query string ended before the position.
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Binds the given values.
+     * @param values the values by parameter name, cannot be null.
+     * @return the json, never null.
+     */
+    private String bind(final Map<String, Object> values) {
+      StringBuilder json = new StringBuilder(literals[0]);
+      for (int i = 0; i < parameters.length; i++) {
+        Object value = values.get(parameters[i]);
+        if (value == null) {
+          throw new HibernateException("The query template parameter "
+              + parameters[i] + " is not bound");
+        }
+        String text = toText(value);
+        if (queryStrings[i]) {
+          // the whitespace would split the term.
+          text = WHITESPACE.matcher(QueryParser.escape(text)).replaceAll(
+              "\\\\$0");
+        }
+        appendJson(text, json);
+        json.append(literals[i + 1]);
+      }
+      return json.toString();
+    }
+  }
+
+}
@@ -0,0 +1,206 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/** Remembers the elasticsearch query translated from the last lucene queries,
+ * so a repeated lucene query is not translated again.
+ *
+ * The entries are keyed by the lucene query and the entities it was
+ * translated for, as the translation depends on their mapping. The lucene
+ * queries are compared by value, so an equal query built again by the caller
+ * reuses the translation. Only the term, range, prefix, wildcard, fuzzy,
+ * phrase and match all queries, and the boolean queries over them, are kept,
+ * as the other lucene queries do not compare by value, ie: the ones that wrap
+ * a filter. The cache holds a fixed number of entries, and the least recently
+ * used ones are evicted first.
+ *
+ * The translated queries are shared by every search that reuses them, so
+ * they must not be modified once they are cached.
+ *
+ * This class is thread safe.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class QueryTranslationCache {
+
+  /** The entries from the least to the most recently used, it's never null.
+   * Guarded by this cache.
+   */
+  private final LinkedHashMap<Key, QueryBuilder> entries;
+
+  /** Creates a new cache.
+   * @param size the max number of entries, must be greater than zero.
+   */
+  QueryTranslationCache(final int size) {
+    Validate.isTrue(size > 0, "The size must be greater than zero");
+    entries = new LinkedHashMap<Key, QueryBuilder>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      /** {@inheritDoc}.*/
+      @Override
+      protected boolean removeEldestEntry(
+          final Map.Entry<Key, QueryBuilder> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /** Retrieves the translation of the given lucene query.
+   * @param query the lucene query, cannot be null.
+   * @param entities the entities the query was translated for, cannot be
+   * null.
+   * @return the elasticsearch query, null if it's not cached.
+   */
+  QueryBuilder get(final Query query, final Set<Class<?>> entities) {
+    if (!isCacheable(query)) {
+      return null;
+    }
+    Key key = new Key(query, entities);
+    synchronized (this) {
+      return entries.get(key);
+    }
+  }
+
+  /** Keeps the translation of the given lucene query, evicting the least
+   * recently used entry if the cache is full.
+   *
+   * The lucene query is copied with its clauses, so the caller can still
+   * modify it. The queries that do not compare by value are not kept.
+   *
+   * @param query the lucene query, cannot be null.
+   * @param entities the entities the query was translated for, cannot be
+   * null.
+   * @param translation the elasticsearch query, cannot be null.
+   */
+  void put(final Query query, final Set<Class<?>> entities,
+      final QueryBuilder translation) {
+    Validate.notNull(translation, "The translation cannot be null");
+    if (!isCacheable(query)) {
+      return;
+    }
+    Key key = new Key(copy(query), new HashSet<Class<?>>(entities));
+    synchronized (this) {
+      entries.put(key, translation);
+    }
+  }
+
+  /** Forgets every entry.*/
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  /** Checks if the given lucene query compares by value.
+   * @param query the lucene query, cannot be null.
+   * @return true if the query and its clauses are of a known type whose
+   * equals compares their terms.
+   */
+  private static boolean isCacheable(final Query query) {
+    Validate.notNull(query, "The query cannot be null");
+    if (query instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+        if (!isCacheable(clause.getQuery())) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return query instanceof TermQuery
+        || query instanceof TermRangeQuery
+        || query instanceof NumericRangeQuery<?>
+        || query instanceof PrefixQuery
+        || query instanceof WildcardQuery
+        || query instanceof FuzzyQuery
+        || query instanceof PhraseQuery
+        || query instanceof MatchAllDocsQuery;
+  }
+
+  /** Copies the given cacheable query, see {@link #isCacheable(Query)}.
+   *
+   * The lucene clone is shallow, so the clauses of a boolean query and the
+   * terms of a phrase query are copied one by one; the other queries only
+   * hold immutable terms besides the boost.
+   *
+   * @param query the lucene query, cannot be null.
+   * @return the copy, never null.
+   */
+  private static Query copy(final Query query) {
+    if (query instanceof BooleanQuery) {
+      BooleanQuery booleanQuery = (BooleanQuery) query;
+      BooleanQuery copy = new BooleanQuery(booleanQuery.isCoordDisabled());
+      for (BooleanClause clause : booleanQuery.getClauses()) {
+        copy.add(copy(clause.getQuery()), clause.getOccur());
+      }
+      copy.setMinimumNumberShouldMatch(
+          booleanQuery.getMinimumNumberShouldMatch());
+      copy.setBoost(booleanQuery.getBoost());
+      return copy;
+    } else if (query instanceof PhraseQuery) {
+      PhraseQuery phrase = (PhraseQuery) query;
+      PhraseQuery copy = new PhraseQuery();
+      Term[] terms = phrase.getTerms();
+      int[] positions = phrase.getPositions();
+      for (int i = 0; i < terms.length; i++) {
+        copy.add(terms[i], positions[i]);
+      }
+      copy.setSlop(phrase.getSlop());
+      copy.setBoost(phrase.getBoost());
+      return copy;
+    }
+    return (Query) query.clone();
+  }
+
+  /** The lucene query and the entities of a translation.*/
+  private static final class Key {
+
+    /** The lucene query, it's never null.*/
+    private final Query query;
+
+    /** The entities, it's never null.*/
+    private final Set<Class<?>> entities;
+
+    /** Creates a new key.
+     * @param theQuery the lucene query, cannot be null.
+     * @param theEntities the entities, cannot be null.
+     */
+    private Key(final Query theQuery, final Set<Class<?>> theEntities) {
+      Validate.notNull(theQuery, "The query cannot be null");
+      Validate.notNull(theEntities, "The entities cannot be null");
+      query = theQuery;
+      entities = theEntities;
+    }
+
+    /** {@inheritDoc}.*/
+    @Override
+    public int hashCode() {
+      return 31 * query.hashCode() + entities.hashCode();
+    }
+
+    /** {@inheritDoc}.*/
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return query.equals(key.query) && entities.equals(key.entities);
+    }
+  }
+
+}
@@ -0,0 +1,28 @@
+package org.hibernate.search.elasticsearch;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Query;
+
+/** The default naming strategy, it keeps every document of an entity within
+ * the index declared by its Indexed annotation.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class SingleIndexNaming implements IndexNamingStrategy {
+
+  /** {@inheritDoc}.*/
+  public String getIndexName(final Class<?> type, final Document document) {
+    return ElasticSearchUtils.getIndexName(type);
+  }
+
+  /** {@inheritDoc}.*/
+  public String[] getSearchIndices(final Class<?> type, final Query query) {
+    return new String[] {SearchUtils.getIndexName(type)};
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean isPartitioned(final Class<?> type) {
+    return false;
+  }
+
+}
@@ -0,0 +1,39 @@
+package org.hibernate.search.elasticsearch;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.search.query.engine.impl.EntityInfoImpl;
+
+/** The entity info of a hit that also keeps the source of its document, so
+ * the entity can be hydrated without the database.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+final class SourceEntityInfo extends EntityInfoImpl {
+
+  /** The source of the document, it's never null.*/
+  private final Map<String, Object> source;
+
+  /** Creates a new entity info.
+   * @param type the class of the entity, cannot be null.
+   * @param idName the name of the id property, cannot be null.
+   * @param id the id of the entity, cannot be null.
+   * @param theSource the source of the document, cannot be null.
+   */
+  SourceEntityInfo(final Class<?> type, final String idName,
+      final Serializable id, final Map<String, Object> theSource) {
+    super(type, idName, id, null);
+    Validate.notNull(theSource, "The source cannot be null");
+    source = theSource;
+  }
+
+  /** Retrieves the source of the document.
+   * @return the source, never null.
+   */
+  Map<String, Object> getSource() {
+    return source;
+  }
+
+}
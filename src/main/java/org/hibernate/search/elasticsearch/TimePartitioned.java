@@ -0,0 +1,47 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Spreads the documents of an append-mostly entity across daily or monthly
+ * indices, keyed by a date field.
+ *
+ * <pre>
+ * &#64;Indexed(index = "events")
+ * &#64;TimePartitioned(field = "date", period = Period.MONTHLY)
+ * public class Event { ... }
+ * </pre>
+ *
+ * The documents of the example go to indices like events-2013.01, and they
+ * are searched through the events alias, see
+ * {@link TimePartitionedIndexNaming}.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface TimePartitioned {
+
+  /** The length of each partition.*/
+  enum Period {
+
+    /** One index per day, ie: events-2013.01.15.*/
+    DAILY,
+
+    /** One index per month, ie: events-2013.01.*/
+    MONTHLY
+  }
+
+  /** The name of the indexed date field that decides the partition of each
+   * document.
+   */
+  String field();
+
+  /** The length of each partition, monthly by default.*/
+  Period period() default Period.MONTHLY;
+
+}
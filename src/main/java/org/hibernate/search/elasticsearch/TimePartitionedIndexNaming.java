@@ -0,0 +1,294 @@
+package org.hibernate.search.elasticsearch;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Spreads the documents of the entities annotated with
+ * {@link TimePartitioned} across daily or monthly indices.
+ *
+ * The partitions are named after the index of the entity plus the period,
+ * ie: events-2013.01 or events-2013.01.15, in UTC. Every partition belongs
+ * to an alias named after the index of the entity, so the queries that are
+ * not constrained by the date field search every partition through it.
+ *
+ * The queries that constrain the date field with a range or a term in a
+ * required clause only search the partitions of that range. The partition
+ * of a document is decided by its date when it's written. When an update
+ * may change the date, the backend queue deletes the document from every
+ * partition before writing it to its new one.
+ *
+ * The date field can be indexed by the hibernate search date bridge, at any
+ * resolution, or as the number of milliseconds since the epoch.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+public final class TimePartitionedIndexNaming implements IndexNamingStrategy {
+
+  /** The class logger.*/
+  private static Logger log = LoggerFactory.getLogger(
+      TimePartitionedIndexNaming.class);
+
+  /** The max number of partitions searched by a query, a wider range goes
+   * through the alias.
+   */
+  private static final int MAX_PARTITIONS = 400;
+
+  /** The time zone of the partitions.*/
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  /** {@inheritDoc}.*/
+  public String getIndexName(final Class<?> type, final Document document) {
+    Validate.notNull(type, "The type cannot be null");
+    Validate.notNull(document, "The document cannot be null");
+    TimePartitioned partitioned = getPartitioning(type);
+    Date date = toDate(document.get(partitioned.field()));
+    if (date == null) {
+      log.warn("The document of: {} has no date in the field: {}, using the"
+          + " current partition", type.getName(), partitioned.field());
+      date = new Date();
+    }
+    return getPartition(type, date);
+  }
+
+  /** {@inheritDoc}.*/
+  public String[] getSearchIndices(final Class<?> type, final Query query) {
+    Validate.notNull(type, "The type cannot be null");
+    String alias = getAlias(type);
+    if (query == null) {
+      return new String[] {alias};
+    }
+    TimePartitioned partitioned = getPartitioning(type);
+    Date[] bounds = new Date[2];
+    narrow(query, partitioned.field(), bounds);
+    if (bounds[0] == null || bounds[1] == null) {
+      return new String[] {alias};
+    }
+    if (bounds[1].before(bounds[0])) {
+      // nothing can match, a single partition is enough.
+      return new String[] {getPartition(type, bounds[0])};
+    }
+    Calendar calendar = start(partitioned.period(), bounds[0]);
+    List<String> partitions = new ArrayList<String>();
+    while (!calendar.getTime().after(bounds[1])) {
+      if (partitions.size() == MAX_PARTITIONS) {
+        return new String[] {alias};
+      }
+      partitions.add(getPartition(type, calendar.getTime()));
+      next(partitioned.period(), calendar);
+    }
+    log.debug("Pruned the search of: {} to: {}", type.getName(), partitions);
+    return partitions.toArray(new String[partitions.size()]);
+  }
+
+  /** {@inheritDoc}.*/
+  public boolean isPartitioned(final Class<?> type) {
+    return true;
+  }
+
+  /** Retrieves the alias that holds every partition of the given class.
+   * @param type the indexed class, cannot be null.
+   * @return the alias, never null.
+   */
+  public String getAlias(final Class<?> type) {
+    return ElasticSearchUtils.getIndexName(type);
+  }
+
+  /** Retrieves the partition of the given class that holds the given date.
+   * @param type the indexed class, cannot be null.
+   * @param date the date, cannot be null.
+   * @return the partition name, never null.
+   */
+  public String getPartition(final Class<?> type, final Date date) {
+    Validate.notNull(date, "The date cannot be null");
+    TimePartitioned partitioned = getPartitioning(type);
+    return getAlias(type) + "-" + format(partitioned.period()).format(date);
+  }
+
+  /** Retrieves the partitions of the given class that only hold documents
+   * older than the given date.
+   * @param type the indexed class, cannot be null.
+   * @param indices the existing indices, cannot be null.
+   * @param date the date, cannot be null.
+   * @return the expired partitions, never null.
+   */
+  public List<String> getExpiredPartitions(final Class<?> type,
+      final String[] indices, final Date date) {
+    Validate.notNull(indices, "The indices cannot be null");
+    Validate.notNull(date, "The date cannot be null");
+    TimePartitioned partitioned = getPartitioning(type);
+    String prefix = getAlias(type) + "-";
+    SimpleDateFormat format = format(partitioned.period());
+    List<String> expired = new ArrayList<String>();
+    for (String index : indices) {
+      if (!index.startsWith(prefix)) {
+        continue;
+      }
+      String period = index.substring(prefix.length());
+      try {
+        Date start = format.parse(period);
+        if (!format.format(start).equals(period)) {
+          continue;
+        }
+        Calendar end = start(partitioned.period(), start);
+        next(partitioned.period(), end);
+        if (!end.getTime().after(date)) {
+          expired.add(index);
+        }
+      } catch (ParseException e) {
+        log.trace("The index: {} is not a partition", index);
+      }
+    }
+    return expired;
+  }
+
+  /** Narrows the given bounds with the constraints of the given query on
+   * the given field, only the required clauses are taken into account.
+   * @param query the lucene query, cannot be null.
+   * @param field the date field, cannot be null.
+   * @param bounds the lower and upper bounds, null if they are unknown.
+   */
+  private void narrow(final Query query, final String field,
+      final Date[] bounds) {
+    Date lower = null;
+    Date upper = null;
+    if (query instanceof TermRangeQuery) {
+      TermRangeQuery range = (TermRangeQuery) query;
+      if (field.equals(range.getField())) {
+        lower = toDate(range.getLowerTerm());
+        upper = toDate(range.getUpperTerm());
+      }
+    } else if (query instanceof NumericRangeQuery<?>) {
+      NumericRangeQuery<?> range = (NumericRangeQuery<?>) query;
+      if (field.equals(range.getField())) {
+        lower = toDate(range.getMin());
+        upper = toDate(range.getMax());
+      }
+    } else if (query instanceof TermQuery) {
+      TermQuery term = (TermQuery) query;
+      if (field.equals(term.getTerm().field())) {
+        lower = toDate(term.getTerm().text());
+        upper = lower;
+      }
+    } else if (query instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+        if (clause.getOccur() == BooleanClause.Occur.MUST) {
+          narrow(clause.getQuery(), field, bounds);
+        }
+      }
+    }
+    if (lower != null && (bounds[0] == null || lower.after(bounds[0]))) {
+      bounds[0] = lower;
+    }
+    if (upper != null && (bounds[1] == null || upper.before(bounds[1]))) {
+      bounds[1] = upper;
+    }
+  }
+
+  /** Converts the given indexed value to a date.
+   * @param value the value written by the date bridge or the milliseconds
+   * since the epoch, can be null.
+   * @return the date, null if the value is not a date.
+   */
+  private static Date toDate(final String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return DateTools.stringToDate(value);
+    } catch (ParseException e) {
+      try {
+        return new Date(Long.parseLong(value));
+      } catch (NumberFormatException ne) {
+        return null;
+      }
+    }
+  }
+
+  /** Converts the given numeric bound to a date.
+   * @param value the milliseconds since the epoch, can be null.
+   * @return the date, null if the value is null.
+   */
+  private static Date toDate(final Number value) {
+    if (value == null) {
+      return null;
+    }
+    return new Date(value.longValue());
+  }
+
+  /** Retrieves the first instant of the period that holds the given date.
+   * @param period the partition period, cannot be null.
+   * @param date the date, cannot be null.
+   * @return the calendar set at the start of the period, never null.
+   */
+  private static Calendar start(final TimePartitioned.Period period,
+      final Date date) {
+    Calendar calendar = Calendar.getInstance(UTC);
+    calendar.setTime(date);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    if (period == TimePartitioned.Period.MONTHLY) {
+      calendar.set(Calendar.DAY_OF_MONTH, 1);
+    }
+    return calendar;
+  }
+
+  /** Moves the given calendar to the next period.
+   * @param period the partition period, cannot be null.
+   * @param calendar the calendar, cannot be null.
+   */
+  private static void next(final TimePartitioned.Period period,
+      final Calendar calendar) {
+    if (period == TimePartitioned.Period.MONTHLY) {
+      calendar.add(Calendar.MONTH, 1);
+    } else {
+      calendar.add(Calendar.DAY_OF_MONTH, 1);
+    }
+  }
+
+  /** Creates the format of the partition names.
+   * @param period the partition period, cannot be null.
+   * @return a new format, never null.
+   */
+  private static SimpleDateFormat format(final TimePartitioned.Period period) {
+    SimpleDateFormat format;
+    if (period == TimePartitioned.Period.MONTHLY) {
+      format = new SimpleDateFormat("yyyy.MM");
+    } else {
+      format = new SimpleDateFormat("yyyy.MM.dd");
+    }
+    format.setTimeZone(UTC);
+    format.setLenient(false);
+    return format;
+  }
+
+  /** Retrieves the partitioning of the given class.
+   * @param type the indexed class, cannot be null.
+   * @return the annotation, never null.
+   */
+  private static TimePartitioned getPartitioning(final Class<?> type) {
+    TimePartitioned partitioned = type.getAnnotation(TimePartitioned.class);
+    Validate.notNull(partitioned, "The type: " + type.getName()
+        + " is not annotated with TimePartitioned");
+    return partitioned;
+  }
+
+}
@@ -0,0 +1,36 @@
+package org.hibernate.search.elasticsearch;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Makes elasticsearch expire the documents of an indexed entity.
+ *
+ * It goes next to the {@link org.hibernate.search.annotations.Indexed}
+ * annotation of short lived entities, like sessions or notifications:
+ *
+ * <pre>
+ * &#64;Indexed(index = "notifications")
+ * &#64;TimeToLive("7d")
+ * public class Notification { ... }
+ * </pre>
+ *
+ * The index mapping enables the _ttl field, and every document sent to the
+ * index carries the given time to live, so elasticsearch purges the expired
+ * documents by itself, without any delete request from the application.
+ *
+ * @author waabox (waabox[at]gmail[dot]com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface TimeToLive {
+
+  /** The time to live of each document, in the elasticsearch time format,
+   * ie: 30m, 12h or 7d.
+   */
+  String value();
+
+}
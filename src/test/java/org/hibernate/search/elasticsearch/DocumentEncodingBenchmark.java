@@ -0,0 +1,93 @@
+package org.hibernate.search.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.Compressor;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** Compares the size and the encode time of the documents sent with each
+ * {@link DocumentEncoding}, with and without the transport compression.
+ *
+ * It's not part of the test suite, run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.hibernate.search.elasticsearch
+ *   .DocumentEncodingBenchmark
+ * </pre>
+ *
+ * The documents look like the ones of the MockEntity, and they are grouped
+ * in bulks of 100 documents, as the batch backend queue does.
+ */
+public final class DocumentEncodingBenchmark {
+
+  /** The number of documents of each run.*/
+  private static final int DOCUMENTS = 200000;
+
+  /** The number of documents of each bulk request.*/
+  private static final int BULK_SIZE = 100;
+
+  /** The number of runs to warm up the jvm.*/
+  private static final int WARM_UP = 3;
+
+  private DocumentEncodingBenchmark() {
+  }
+
+  public static void main(final String[] args) throws IOException {
+    for (int i = 0; i < WARM_UP; i++) {
+      for (DocumentEncoding encoding : DocumentEncoding.values()) {
+        run(encoding, false);
+      }
+    }
+    System.out.println("encoding  encode ms  bytes/doc  compressed bytes/doc");
+    for (DocumentEncoding encoding : DocumentEncoding.values()) {
+      run(encoding, true);
+    }
+  }
+
+  private static void run(final DocumentEncoding encoding,
+      final boolean print) throws IOException {
+    Compressor compressor = CompressorFactory.defaultCompressor();
+    ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+    long bytes = 0;
+    long compressed = 0;
+    long encodeTime = 0;
+    for (int i = 0; i < DOCUMENTS; i++) {
+      long start = System.nanoTime();
+      BytesReference document = document(encoding, i).bytes();
+      encodeTime += System.nanoTime() - start;
+      bytes += document.length();
+      document.writeTo(bulk);
+      if ((i + 1) % BULK_SIZE == 0) {
+        byte[] body = bulk.toByteArray();
+        compressed += compressor.compress(body, 0, body.length).length;
+        bulk.reset();
+      }
+    }
+    if (print) {
+      System.out.println(String.format("%-8s  %9d  %9d  %20d", encoding,
+          encodeTime / 1000000, bytes / DOCUMENTS, compressed / DOCUMENTS));
+    }
+  }
+
+  private static XContentBuilder document(final DocumentEncoding encoding,
+      final int id) throws IOException {
+    XContentBuilder builder = encoding.newBuilder();
+    builder.startObject();
+    builder.field("_hibernate_class", MockEntity.class.getName());
+    builder.field("id", String.valueOf(id));
+    builder.field("name", "name number " + id);
+    builder.field("description", "a short description of the entity number "
+        + id + " as the users usually write them");
+    builder.field("gender", id % 2 == 0 ? "male" : "female");
+    builder.field("age", String.valueOf(id % 90));
+    builder.field("year", String.valueOf(1950 + id % 60));
+    builder.field("date", "20130115" + id % 10);
+    builder.endObject();
+    return builder;
+  }
+
+}
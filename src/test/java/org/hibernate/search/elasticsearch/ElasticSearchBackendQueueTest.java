@@ -1,16 +1,33 @@
 package org.hibernate.search.elasticsearch;
 
 import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.easymock.Capture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryRequestBuilder;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
 import org.hibernate.search.backend.AddLuceneWork;
 import org.hibernate.search.backend.DeleteLuceneWork;
 import org.hibernate.search.backend.LuceneWork;
@@ -56,14 +73,273 @@ public class ElasticSearchBackendQueueTest {
     verify(client, addLuceneWork, builder, requestBuilder);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test public void run_skipUnchangedDocument() {
+    DocumentFingerprintCache cache = new DocumentFingerprintCache(16);
+    Document document = new Document();
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    ListenableActionFuture<BulkResponse> future;
+    future = createMock(ListenableActionFuture.class);
+    BulkRequestBuilder secondRequestBuilder;
+    secondRequestBuilder = createMock(BulkRequestBuilder.class);
+
+    reset(client, requestBuilder);
+    expect(client.prepareBulk()).andReturn(requestBuilder);
+    expect(client.prepareBulk()).andReturn(secondRequestBuilder);
+    expect(requestBuilder.execute()).andReturn(future);
+    future.addListener(isA(ActionListener.class));
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, builder, requestBuilder, secondRequestBuilder, future);
+
+    new ElasticSearchBackendQueue(addWork(document), client, false, cache)
+      .run();
+    new ElasticSearchBackendQueue(addWork(document), client, false, cache)
+      .run();
+
+    verify(client, builder, requestBuilder, secondRequestBuilder, future);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void run_partialUpdate() {
+    Document document = new Document();
+    document.add(new Field("name", "waabox", Store.YES, Index.ANALYZED));
+    document.add(new Field("description", "a geek", Store.YES,
+          Index.ANALYZED));
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    UpdateRequestBuilder update = createMock(UpdateRequestBuilder.class);
+    ListenableActionFuture<UpdateResponse> future;
+    future = createMock(ListenableActionFuture.class);
+
+    DirtyFieldRegistry.dirty(MockEntity.class.getName(), "1",
+        Collections.singleton("name"));
+
+    reset(requestBuilder);
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(client.prepareUpdate("mock_entity", MockEntity.class.getName(),
+          "1")).andReturn(update);
+    expect(update.setDoc(isA(XContentBuilder.class))).andReturn(update);
+    expect(update.execute()).andReturn(future);
+    future.addListener(isA(ActionListener.class));
+
+    replay(client, builder, update, future, requestBuilder);
+
+    new ElasticSearchBackendQueue(addWork(document), client, false).run();
+
+    verify(client, builder, update, future, requestBuilder);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void run_partialUpdateAfterBulk() {
+    Document document = new Document();
+    document.add(new Field("name", "waabox", Store.YES, Index.ANALYZED));
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    IndexRequestBuilder other = createMock(IndexRequestBuilder.class);
+    UpdateRequestBuilder update = createMock(UpdateRequestBuilder.class);
+    ListenableActionFuture<BulkResponse> bulk;
+    bulk = createMock(ListenableActionFuture.class);
+    ListenableActionFuture<UpdateResponse> future;
+    future = createMock(ListenableActionFuture.class);
+    Capture<ActionListener<BulkResponse>> sender;
+    sender = new Capture<ActionListener<BulkResponse>>();
+
+    DirtyFieldRegistry.dirty(MockEntity.class.getName(), "1",
+        Collections.singleton("name"));
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new AddLuceneWork("1", "1", MockEntity.class, document));
+    works.add(new AddLuceneWork("2", "2", MockEntity.class, new Document()));
+
+    reset(requestBuilder);
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(client.prepareUpdate("mock_entity", MockEntity.class.getName(),
+          "1")).andReturn(update);
+    expect(update.setDoc(isA(XContentBuilder.class))).andReturn(update);
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "2"))
+      .andReturn(other);
+    expect(other.setSource(isA(XContentBuilder.class))).andReturn(other);
+    expect(requestBuilder.add(other)).andReturn(requestBuilder);
+    expect(requestBuilder.execute()).andReturn(bulk);
+    bulk.addListener(capture(sender));
+
+    replay(client, builder, other, update, bulk, requestBuilder);
+
+    new ElasticSearchBackendQueue(works, client, false).run();
+    verify(client, builder, other, update, bulk, requestBuilder);
+
+    // the update is sent once the bulk request is done.
+    reset(update);
+    expect(update.execute()).andReturn(future);
+    future.addListener(isA(ActionListener.class));
+    replay(update, future);
+
+    sender.getValue().onResponse(null);
+    verify(update, future);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void run_partialUpdateFailure() {
+    DocumentFingerprintCache cache = new DocumentFingerprintCache(16);
+    String type = MockEntity.class.getName();
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    UpdateRequestBuilder update = createMock(UpdateRequestBuilder.class);
+    ListenableActionFuture<UpdateResponse> future;
+    future = createMock(ListenableActionFuture.class);
+    ListenableActionFuture<IndexResponse> whole;
+    whole = createMock(ListenableActionFuture.class);
+    Capture<XContentBuilder> source = new Capture<XContentBuilder>();
+    Capture<ActionListener<UpdateResponse>> fallback;
+    fallback = new Capture<ActionListener<UpdateResponse>>();
+    Capture<ActionListener<IndexResponse>> indexed;
+    indexed = new Capture<ActionListener<IndexResponse>>();
+    Document document = new Document();
+    document.add(new Field("name", "waabox", Store.YES, Index.ANALYZED));
+
+    DirtyFieldRegistry.dirty(type, "1", Collections.singleton("name"));
+
+    reset(requestBuilder);
+    expect(client.prepareIndex("mock_entity", type, "1")).andReturn(builder);
+    expect(builder.setSource(capture(source))).andReturn(builder);
+    expect(client.prepareUpdate("mock_entity", type, "1")).andReturn(update);
+    expect(update.setDoc(isA(XContentBuilder.class))).andReturn(update);
+    expect(update.execute()).andReturn(future);
+    future.addListener(capture(fallback));
+    expect(builder.execute()).andReturn(whole);
+    whole.addListener(capture(indexed));
+
+    replay(client, builder, update, future, whole, requestBuilder);
+
+    new ElasticSearchBackendQueue(addWork(document), client, false, cache)
+      .run();
+    long fingerprint = DocumentFingerprintCache.fingerprint(
+        source.getValue().bytes());
+
+    // any other failure of the partial update does not send the document.
+    fallback.getValue().onFailure(new RuntimeException("rejected"));
+    assertFalse(cache.checkAndPut("mock_entity", type, "1", fingerprint));
+
+    // a missing document is sent whole, and forgotten if that fails.
+    fallback.getValue().onFailure(new DocumentMissingException(
+        new ShardId("mock_entity", 0), type, "1"));
+    indexed.getValue().onFailure(new RuntimeException("rejected"));
+    assertFalse(cache.checkAndPut("mock_entity", type, "1", fingerprint));
+
+    verify(client, builder, update, future, whole, requestBuilder);
+  }
+
+  @Test public void run_deferCascade() {
+    ChangedEntityRegistry.enable();
+    ChangedEntityRegistry.cascaded(MockEntity.class.getName(), "1");
+    ContainedInReindexQueue cascades;
+    cascades = new ContainedInReindexQueue(client, 60000, 10, 10, false, null,
+        DocumentEncoding.JSON, null);
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new AddLuceneWork("1", "1", MockEntity.class, new Document()));
+
+    reset(requestBuilder);
+    replay(client, requestBuilder);
+
+    new ElasticSearchBackendQueue(works, client, false, null, cascades,
+        DocumentEncoding.JSON).run();
+
+    verify(client, requestBuilder);
+
+    reset(client, requestBuilder);
+    expect(client.prepareBulk()).andReturn(requestBuilder);
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+    expect(requestBuilder.execute()).andReturn(null);
+
+    replay(client, requestBuilder, builder);
+
+    cascades.close();
+    ChangedEntityRegistry.disable();
+
+    verify(client, requestBuilder, builder);
+  }
+
+  @Test public void run_sendCascadeOverMaxPending() {
+    ChangedEntityRegistry.enable();
+    ChangedEntityRegistry.cascaded(MockEntity.class.getName(), "1");
+    ChangedEntityRegistry.cascaded(MockEntity.class.getName(), "2");
+    ContainedInReindexQueue cascades;
+    cascades = new ContainedInReindexQueue(client, 60000, 10, 1, false, null,
+        DocumentEncoding.JSON, null);
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new AddLuceneWork("1", "1", MockEntity.class, new Document()));
+    works.add(new AddLuceneWork("2", "2", MockEntity.class, new Document()));
+
+    // the first cascade fills the queue, the second goes in this bulk.
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "2"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, requestBuilder, builder);
+
+    new ElasticSearchBackendQueue(works, client, false, null, cascades,
+        DocumentEncoding.JSON).run();
+
+    verify(client, requestBuilder, builder);
+
+    reset(client, requestBuilder, builder);
+    expect(client.prepareBulk()).andReturn(requestBuilder);
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+    expect(requestBuilder.execute()).andReturn(null);
+
+    replay(client, requestBuilder, builder);
+
+    cascades.close();
+    ChangedEntityRegistry.disable();
+
+    verify(client, requestBuilder, builder);
+  }
+
+  @Test public void run_sendUnmarkedDocument() {
+    ChangedEntityRegistry.enable();
+    ContainedInReindexQueue cascades;
+    cascades = new ContainedInReindexQueue(client, 60000, 10, 10, false, null,
+        DocumentEncoding.JSON, null);
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new AddLuceneWork("1", "1", MockEntity.class, new Document()));
+
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, requestBuilder, builder);
+
+    new ElasticSearchBackendQueue(works, client, false, null, cascades,
+        DocumentEncoding.JSON).run();
+    cascades.close();
+    ChangedEntityRegistry.disable();
+
+    verify(client, requestBuilder, builder);
+  }
+
   @Test public void run_handleDelete() {
     luceneWorks.clear();
     LuceneWork deleteLuceneWork = createMock(DeleteLuceneWork.class);
     DeleteRequestBuilder builder = createMock(DeleteRequestBuilder.class);
 
     expect(deleteLuceneWork.getEntityClass()).andReturn(MockEntity.class)
-      .times(2);
-    expect(deleteLuceneWork.getIdInString()).andReturn("1");
+      .times(3);
+    expect(deleteLuceneWork.getIdInString()).andReturn("1").times(2);
 
     luceneWorks.add(deleteLuceneWork);
 
@@ -79,4 +355,236 @@ public class ElasticSearchBackendQueueTest {
     verify(client, deleteLuceneWork);
   }
 
+  @Test public void run_skipReplacedDelete() {
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new DeleteLuceneWork("1", "1", MockEntity.class));
+    works.add(new AddLuceneWork("1", "1", MockEntity.class, new Document()));
+
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, requestBuilder, builder);
+
+    new ElasticSearchBackendQueue(works, client, false).run();
+
+    verify(client, requestBuilder, builder);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void run_skipUnchangedUpdate() {
+    DocumentFingerprintCache cache = new DocumentFingerprintCache(16);
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    ListenableActionFuture<BulkResponse> future;
+    future = createMock(ListenableActionFuture.class);
+    BulkRequestBuilder secondRequestBuilder;
+    secondRequestBuilder = createMock(BulkRequestBuilder.class);
+
+    reset(client, requestBuilder);
+    expect(client.prepareBulk()).andReturn(requestBuilder);
+    expect(client.prepareBulk()).andReturn(secondRequestBuilder);
+    expect(requestBuilder.execute()).andReturn(future);
+    future.addListener(isA(ActionListener.class));
+    expect(client.prepareIndex("mock_entity", MockEntity.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, builder, requestBuilder, secondRequestBuilder, future);
+
+    // hibernate search sends each update as the delete and the add.
+    new ElasticSearchBackendQueue(updateWorks(), client, false, cache).run();
+    new ElasticSearchBackendQueue(updateWorks(), client, false, cache).run();
+
+    verify(client, builder, requestBuilder, secondRequestBuilder, future);
+  }
+
+  /** Creates the works that hibernate search sends for an update.
+   * @return the delete and the add of the same document.
+   */
+  private static List<LuceneWork> updateWorks() {
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new DeleteLuceneWork("1", "1", MockEntity.class));
+    works.add(new AddLuceneWork("1", "1", MockEntity.class, new Document()));
+    return works;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void run_nestedElements() throws Exception {
+    Document document = new Document();
+    document.add(field("title", "a post"));
+    document.add(field("comments._element", ""));
+    document.add(field("comments.text", "great"));
+    document.add(field("comments.author", "waabox"));
+    document.add(field("comments.tags.name", "first"));
+    document.add(field("comments.tags.name", "second"));
+    document.add(field("comments._element", ""));
+    document.add(field("comments.text", "great"));
+    document.add(field("replies.text", "thanks"));
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    Capture<XContentBuilder> source = new Capture<XContentBuilder>();
+
+    expect(client.prepareIndex("mock_post", MockPost.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(capture(source))).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, requestBuilder, builder);
+
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new AddLuceneWork("1", "1", MockPost.class, document));
+    new ElasticSearchBackendQueue(works, client, false).run();
+
+    verify(client, requestBuilder, builder);
+    // the second comment has no author, and repeats the text of the first.
+    assertEquals("{\"title\":\"a post\",\"comments\":["
+        + "{\"text\":\"great\",\"author\":\"waabox\","
+        + "\"tags.name\":[\"first\",\"second\"]},"
+        + "{\"text\":\"great\"}]}", source.getValue().string());
+  }
+
+  @Test public void run_timeToLive() {
+    Document document = new Document();
+    document.add(field("name", "a note"));
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+
+    expect(client.prepareIndex("mock_note", MockNote.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(builder.setTTL(7 * 24 * 60 * 60 * 1000L)).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, requestBuilder, builder);
+
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new AddLuceneWork("1", "1", MockNote.class, document));
+    new ElasticSearchBackendQueue(works, client, false).run();
+
+    verify(client, requestBuilder, builder);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void getTimeToLive_invalid() {
+    ElasticSearchUtils.getTimeToLive(InvalidTimeToLive.class);
+  }
+
+  @Test public void run_deleteChild() {
+    DeleteByQueryRequestBuilder builder;
+    builder = createMock(DeleteByQueryRequestBuilder.class);
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new DeleteLuceneWork("1", "1", MockReply.class));
+
+    // the parent of the child, that routes it, is unknown.
+    expect(client.prepareDeleteByQuery("mock_post")).andReturn(builder);
+    expect(builder.setTypes(MockReply.class.getName())).andReturn(builder);
+    expect(builder.setQuery(isA(QueryBuilder.class))).andReturn(builder);
+    expect(builder.execute()).andReturn(null);
+
+    replay(client, builder);
+
+    new ElasticSearchBackendQueue(works, client, false).run();
+
+    verify(client, builder);
+  }
+
+  @Test public void run_moveChild() {
+    DeleteByQueryRequestBuilder delete;
+    delete = createMock(DeleteByQueryRequestBuilder.class);
+    ListenableActionFuture<?> future = createMock(ListenableActionFuture.class);
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    Document document = new Document();
+    document.add(field("postId", "2"));
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new DeleteLuceneWork("1", "1", MockReply.class));
+    works.add(new AddLuceneWork("1", "1", MockReply.class, document));
+
+    DirtyFieldRegistry.dirty(MockReply.class.getName(), "1",
+        Collections.singleton("postId"));
+
+    // the former parent, that routed the child, is unknown.
+    expect(client.prepareDeleteByQuery("mock_post")).andReturn(delete);
+    expect(delete.setTypes(MockReply.class.getName())).andReturn(delete);
+    expect(delete.setQuery(isA(QueryBuilder.class))).andReturn(delete);
+    expect((Object) delete.execute()).andReturn(future);
+    expect(future.actionGet()).andReturn(null);
+    expect(client.prepareIndex("mock_post", MockReply.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(builder.setParent("2")).andReturn(builder);
+    expect(requestBuilder.add(builder)).andReturn(requestBuilder);
+
+    replay(client, delete, future, builder, requestBuilder);
+
+    new ElasticSearchBackendQueue(works, client, false).run();
+
+    verify(client, delete, future, builder, requestBuilder);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void run_updateChildInPlace() {
+    IndexRequestBuilder builder = createMock(IndexRequestBuilder.class);
+    UpdateRequestBuilder update = createMock(UpdateRequestBuilder.class);
+    ListenableActionFuture<UpdateResponse> future;
+    future = createMock(ListenableActionFuture.class);
+    Document document = new Document();
+    document.add(field("text", "thanks"));
+    document.add(field("postId", "2"));
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(new DeleteLuceneWork("1", "1", MockReply.class));
+    works.add(new AddLuceneWork("1", "1", MockReply.class, document));
+
+    DirtyFieldRegistry.dirty(MockReply.class.getName(), "1",
+        Collections.singleton("text"));
+
+    // the parent did not change, so the child stays in its shard.
+    reset(requestBuilder);
+    expect(client.prepareIndex("mock_post", MockReply.class.getName(), "1"))
+      .andReturn(builder);
+    expect(builder.setSource(isA(XContentBuilder.class))).andReturn(builder);
+    expect(builder.setParent("2")).andReturn(builder);
+    expect(client.prepareUpdate("mock_post", MockReply.class.getName(), "1"))
+      .andReturn(update);
+    expect(update.setDoc(isA(XContentBuilder.class))).andReturn(update);
+    expect(update.setParent("2")).andReturn(update);
+    expect(update.execute()).andReturn(future);
+    future.addListener(isA(ActionListener.class));
+
+    replay(client, builder, update, future, requestBuilder);
+
+    new ElasticSearchBackendQueue(works, client, false).run();
+
+    verify(client, builder, update, future, requestBuilder);
+  }
+
+  /** An entity whose time to live is not an elasticsearch time value.*/
+  @TimeToLive("a week")
+  private static class InvalidTimeToLive {
+  }
+
+  /** Creates a stored field.
+   * @param name the field name.
+   * @param value the value.
+   * @return the field.
+   */
+  private static Field field(final String name, final String value) {
+    return new Field(name, value, Store.YES, Index.NOT_ANALYZED);
+  }
+
+  /** Creates a list with a single add work for the given document.
+   * @param document the document.
+   * @return the list of works.
+   */
+  private List<LuceneWork> addWork(final Document document) {
+    LuceneWork addLuceneWork = createMock(AddLuceneWork.class);
+    expect(addLuceneWork.getEntityClass()).andReturn(MockEntity.class).times(2);
+    expect(addLuceneWork.getIdInString()).andReturn("1");
+    expect(addLuceneWork.getDocument()).andReturn(document);
+    replay(addLuceneWork);
+    List<LuceneWork> works = new LinkedList<LuceneWork>();
+    works.add(addLuceneWork);
+    return works;
+  }
+
 }
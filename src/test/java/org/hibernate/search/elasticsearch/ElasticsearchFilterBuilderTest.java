@@ -0,0 +1,134 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanFilter;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.search.PrefixFilter;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeFilter;
+import org.apache.lucene.search.TermsFilter;
+import org.apache.lucene.search.WildcardQuery;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.hibernate.HibernateException;
+import org.junit.Test;
+
+public class ElasticsearchFilterBuilderTest {
+
+  private static final Set<Class<?>> ENTITIES =
+      Collections.<Class<?>>singleton(MockEntity.class);
+
+  @Test public void build_termRange() throws Exception {
+    assertJson("{\"range\":{\"gender_raw\":{\"from\":\"f\",\"to\":\"m\","
+        + "\"include_lower\":true,\"include_upper\":false}}}",
+        new TermRangeFilter("gender", "f", "m", true, false));
+  }
+
+  @Test public void build_numericRange() throws Exception {
+    assertJson("{\"range\":{\"year\":{\"from\":2000,\"to\":null,"
+        + "\"include_lower\":false,\"include_upper\":true}}}",
+        NumericRangeFilter.newIntRange("year", 2000, null, false, true));
+  }
+
+  @Test public void build_prefix() throws Exception {
+    assertJson("{\"prefix\":{\"name\":\"waa\"}}",
+        new PrefixFilter(new Term("name", "waa")));
+  }
+
+  @Test public void build_elasticSearchFilter() throws Exception {
+    assertJson("{\"term\":{\"tenant\":\"55\"}}", new TenantFilter());
+  }
+
+  @Test public void build_queryWrapperTerm() throws Exception {
+    assertJson("{\"term\":{\"gender_raw\":\"male\"}}",
+        new QueryWrapperFilter(new TermQuery(
+        new Term("gender", "male"))));
+  }
+
+  @Test public void build_queryWrapper() throws Exception {
+    assertJson("{\"query\":{\"wildcard\":{\"name\":\"waa*\"}}}",
+        new QueryWrapperFilter(new WildcardQuery(
+        new Term("name", "waa*"))));
+  }
+
+  @Test public void build_cachingWrapper() throws Exception {
+    assertJson("{\"prefix\":{\"name\":\"waa\"}}", new CachingWrapperFilter(
+        new PrefixFilter(new Term("name", "waa"))));
+  }
+
+  @Test public void build_boolean() throws Exception {
+    BooleanFilter filter = new BooleanFilter();
+    filter.add(new PrefixFilter(new Term("name", "waa")), Occur.MUST);
+    filter.add(new TermRangeFilter("gender", "f", "m", true, true),
+        Occur.MUST_NOT);
+    filter.add(new TenantFilter(), Occur.SHOULD);
+    assertJson("{\"bool\":{\"must\":{\"prefix\":{\"name\":\"waa\"}},"
+        + "\"must_not\":{\"range\":{\"gender_raw\":{\"from\":\"f\","
+        + "\"to\":\"m\",\"include_lower\":true,\"include_upper\":true}}},"
+        + "\"should\":{\"term\":{\"tenant\":\"55\"}}}}", filter);
+  }
+
+  @Test public void build_terms() throws Exception {
+    TermsFilter filter = new TermsFilter();
+    filter.addTerm(new Term("gender", "male"));
+    filter.addTerm(new Term("gender", "female"));
+    assertJson("{\"terms\":{\"gender_raw\":[\"female\",\"male\"]}}",
+        filter);
+  }
+
+  @Test public void build_termsOfFields() throws Exception {
+    TermsFilter filter = new TermsFilter();
+    filter.addTerm(new Term("gender", "male"));
+    filter.addTerm(new Term("name", "waabox"));
+    assertJson("{\"bool\":{\"should\":{\"terms\":{\"gender_raw\":"
+        + "[\"male\"]}},\"should\":{\"terms\":{\"name\":[\"waabox\"]}}}}",
+        filter);
+  }
+
+  @Test(expected = HibernateException.class)
+  public void build_unknown() {
+    new ElasticsearchFilterBuilder(new Filter() {
+      private static final long serialVersionUID = 1L;
+      @Override
+      public DocIdSet getDocIdSet(final IndexReader reader) {
+        return null;
+      }
+    }, ENTITIES).build();
+  }
+
+  private static void assertJson(final String expected, final Filter filter)
+      throws IOException {
+    FilterBuilder builder;
+    builder = new ElasticsearchFilterBuilder(filter, ENTITIES).build();
+    XContentBuilder json = XContentFactory.jsonBuilder();
+    builder.toXContent(json, ToXContent.EMPTY_PARAMS);
+    assertEquals(expected, json.string());
+  }
+
+  private static class TenantFilter extends Filter
+    implements ElasticSearchFilter {
+    private static final long serialVersionUID = 1L;
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) {
+      return null;
+    }
+    public FilterBuilder getFilterBuilder() {
+      return FilterBuilders.termFilter("tenant", "55");
+    }
+  }
+}
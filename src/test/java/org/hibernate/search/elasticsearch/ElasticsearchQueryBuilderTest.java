@@ -0,0 +1,170 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeFilter;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ElasticsearchQueryBuilderTest {
+
+  private QueryBuilder dsl;
+
+  @Before public void setUp() {
+    dsl = TestUtil.fullTextSession().getSearchFactory().buildQueryBuilder()
+        .forEntity(MockEntity.class).get();
+  }
+
+  @Test public void build_keyword() {
+    Query query = dsl.keyword().onField("name").matching("Waabox")
+        .createQuery();
+    assertJson("{\"term\":{\"name\":\"waabox\"}}", query);
+  }
+
+  @Test public void build_keywordUntokenized() {
+    Query query = dsl.keyword().onField("gender").matching("male")
+        .createQuery();
+    assertJson("{\"term\":{\"gender_raw\":\"male\"}}", query);
+  }
+
+  @Test public void build_boosted() {
+    Query query = dsl.keyword().onField("name").boostedTo(2)
+        .matching("waabox").createQuery();
+    assertJson("{\"term\":{\"name\":{\"value\":\"waabox\",\"boost\":2.0}}}",
+        query);
+  }
+
+  @Test public void build_wildcard() {
+    Query query = dsl.keyword().wildcard().onField("name").matching("waa*")
+        .createQuery();
+    assertJson("{\"wildcard\":{\"name\":\"waa*\"}}", query);
+  }
+
+  @Test public void build_fuzzy() {
+    Query query = dsl.keyword().fuzzy().withThreshold(.8f)
+        .withPrefixLength(1).onField("name").matching("waabox")
+        .createQuery();
+    assertJson("{\"fuzzy\":{\"name\":{\"value\":\"waabox\","
+        + "\"min_similarity\":\"0.8\",\"prefix_length\":1}}}", query);
+  }
+
+  @Test public void build_phrase() {
+    Query query = dsl.phrase().withSlop(2).onField("description")
+        .sentence("a chinese copy").createQuery();
+    assertJson("{\"match\":{\"description\":{\"query\":\"chinese copy\","
+        + "\"type\":\"phrase\",\"slop\":2}}}", query);
+  }
+
+  @Test public void build_range() {
+    Query query = dsl.range().onField("name").from("b").to("m")
+        .excludeLimit().createQuery();
+    assertJson("{\"range\":{\"name\":{\"from\":\"b\",\"to\":\"m\","
+        + "\"include_lower\":true,\"include_upper\":false}}}", query);
+  }
+
+  @Test public void build_rangeAbove() {
+    Query query = dsl.range().onField("name").above("m").createQuery();
+    assertJson("{\"range\":{\"name\":{\"from\":\"m\",\"to\":null,"
+        + "\"include_lower\":true,\"include_upper\":true}}}", query);
+  }
+
+  @Test public void build_numericRange() {
+    Query query = NumericRangeQuery.newIntRange("year", 2000, 2010, true,
+        false);
+    assertJson("{\"range\":{\"year\":{\"from\":2000,\"to\":2010,"
+        + "\"include_lower\":true,\"include_upper\":false}}}", query);
+  }
+
+  @Test public void build_all() {
+    assertJson("{\"match_all\":{}}", dsl.all().createQuery());
+  }
+
+  @Test public void build_constantScore() {
+    Query query = dsl.keyword().withConstantScore().onField("name")
+        .matching("waabox").createQuery();
+    assertJson("{\"constant_score\":{\"filter\":{\"term\":"
+        + "{\"name\":\"waabox\"}}}}", query);
+  }
+
+  @Test public void build_constantScoreQuery() {
+    Query query = new ConstantScoreQuery(new TermQuery(new Term("name",
+        "waabox")));
+    assertJson("{\"constant_score\":{\"query\":{\"term\":"
+        + "{\"name\":\"waabox\"}}}}", query);
+  }
+
+  @Test public void build_filtered() {
+    Query query = dsl.keyword()
+        .filteredBy(new TermRangeFilter("gender", "f", "m", true, true))
+        .onField("name").matching("waabox").createQuery();
+    assertJson("{\"filtered\":{\"query\":{\"term\":{\"name\":\"waabox\"}},"
+        + "\"filter\":{\"range\":{\"gender_raw\":{\"from\":\"f\",\"to\":\"m\","
+        + "\"include_lower\":true,\"include_upper\":true}}}}}", query);
+  }
+
+  @Test public void build_nestedBoolean() {
+    Query query = dsl.bool()
+        .must(dsl.keyword().onField("gender").matching("male").createQuery())
+        .must(dsl.bool()
+            .should(dsl.keyword().onField("name").matching("waabox")
+                .createQuery())
+            .should(dsl.keyword().onField("name").matching("mirabelli")
+                .createQuery())
+            .createQuery())
+        .createQuery();
+    assertJson("{\"bool\":{\"must\":[{\"term\":{\"gender_raw\":\"male\"}},"
+        + "{\"bool\":{\"should\":[{\"term\":{\"name\":\"waabox\"}},"
+        + "{\"term\":{\"name\":\"mirabelli\"}}]}}]}}", query);
+  }
+
+  @Test public void build_minimumShouldMatch() {
+    BooleanQuery query = new BooleanQuery(true);
+    query.add(new TermQuery(new Term("name", "a")), Occur.SHOULD);
+    query.add(new TermQuery(new Term("name", "b")), Occur.SHOULD);
+    query.add(new TermQuery(new Term("name", "c")), Occur.SHOULD);
+    query.setMinimumNumberShouldMatch(2);
+    query.setBoost(3);
+    assertJson("{\"bool\":{\"should\":[{\"term\":{\"name\":\"a\"}},"
+        + "{\"term\":{\"name\":\"b\"}},{\"term\":{\"name\":\"c\"}}],"
+        + "\"boost\":3.0,\"disable_coord\":true,"
+        + "\"minimum_should_match\":\"2\"}}", query);
+  }
+
+  @Test public void build_empty() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(new BooleanQuery(), Occur.SHOULD);
+    assertJson("{\"match_all\":{}}", query);
+  }
+
+  @Test public void build_nested() {
+    Query query = new TermQuery(new Term("comments.text", "great"));
+    assertJson("{\"nested\":{\"query\":{\"term\":{\"comments.text\":"
+        + "\"great\"}},\"path\":\"comments\"}}", query, MockPost.class);
+  }
+
+  @Test public void build_hasChild() {
+    Query query = new TermQuery(new Term("replies.text", "thanks"));
+    assertJson("{\"has_child\":{\"query\":{\"term\":{\"text\":\"thanks\"}},"
+        + "\"child_type\":\"" + MockReply.class.getName() + "\"}}", query,
+        MockPost.class);
+  }
+
+  private static void assertJson(final String expected, final Query query) {
+    assertJson(expected, query, MockEntity.class);
+  }
+
+  private static void assertJson(final String expected, final Query query,
+      final Class<?> entity) {
+    ElasticsearchQueryBuilder builder;
+    builder = new ElasticsearchQueryBuilder(query, entity);
+    assertEquals(expected, builder.build().buildAsBytes().toUtf8());
+  }
+}
@@ -3,7 +3,40 @@ package org.hibernate.search.elasticsearch;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldCacheTermsFilter;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.WildcardQuery;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.search.SearchHit;
+import org.hibernate.Hibernate;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.UnknownProfileException;
+import org.hibernate.search.FullTextQuery;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.engine.SearchFactoryImplementor;
+import org.hibernate.search.ProjectionConstants;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.hibernate.search.query.engine.spi.FacetManager;
+import org.hibernate.search.query.facet.Facet;
+import org.hibernate.search.query.facet.FacetSortOrder;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -31,6 +64,584 @@ public class ElasticsearchTest {
     assertThat(entities.get(0).getName(), is("waab"));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test public void search_firstResult() {
+    repository.save(new MockEntity("pagea", "first"));
+    repository.save(new MockEntity("pageb", "second"));
+    repository.save(new MockEntity("pagec", "third"));
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("page");
+    query.setFirstResult(1).setMaxResults(1);
+    List<MockEntity> entities = (List<MockEntity>) query.list();
+    assertThat(entities.size(), is(1));
+    assertThat(entities.get(0).getName(), is("pageb"));
+  }
+
+  @Test public void getResultSize() {
+    repository.save(new MockEntity("sizea", "first"));
+    repository.save(new MockEntity("sizeb", "second"));
+    repository.save(new MockEntity("sizec", "third"));
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("size");
+    query.setMaxResults(1);
+    assertThat(query.getResultSize(), is(3));
+    assertThat(query.list().size(), is(1));
+    assertThat(query.getResultSize(), is(3));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void search_keyset() {
+    repository.save(new MockEntity("keya", "first"));
+    repository.save(new MockEntity("keyb", "second"));
+    repository.save(new MockEntity("keyb", "third"));
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("key");
+    query.setSearchAfter().setMaxResults(2);
+    List<MockEntity> entities = (List<MockEntity>) query.list();
+    assertThat(entities.size(), is(2));
+    assertThat(entities.get(0).getName(), is("keya"));
+
+    query.setSearchAfter(query.getLastSortValues());
+    entities = (List<MockEntity>) query.list();
+    assertThat(entities.size(), is(1));
+    assertThat(entities.get(0).getName(), is("keyb"));
+    assertThat(entities.get(0).getDescription(), is("third"));
+
+    query.setSearchAfter(query.getLastSortValues());
+    assertThat(query.list().size(), is(0));
+  }
+
+  @Test public void search_projection() {
+    repository.save(new MockEntity("projecta", "first"));
+    repository.save(new MockEntity("projectb", "second"));
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("project");
+    query.setProjection("name", "description", ProjectionConstants.ID,
+        ProjectionConstants.OBJECT_CLASS, ProjectionConstants.SCORE);
+    List<?> rows = query.list();
+    assertThat(rows.size(), is(2));
+
+    Object[] row = (Object[]) rows.get(1);
+    assertThat((String) row[0], is("projectb"));
+    assertThat((String) row[1], is("second"));
+    assertThat(row[2] instanceof Long, is(true));
+    assertThat(row[3].equals(MockEntity.class), is(true));
+    assertThat(row[4] instanceof Float, is(true));
+  }
+
+  @Test public void search_projectionThis() {
+    repository.save(new MockEntity("thisproject", "loaded"));
+
+    ElasticSearchFullTextQuery query;
+    query = repository.queryLikeName("thisproject");
+    query.setProjection(ProjectionConstants.THIS, "name");
+    Object[] row = (Object[]) query.list().get(0);
+    assertThat(((MockEntity) row[0]).getDescription(), is("loaded"));
+    assertThat((String) row[1], is("thisproject"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void search_fromSource() {
+    MockEntity saved = new MockEntity("hydrated", "from the source");
+    repository.save(saved);
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("hydrated");
+    query.initializeObjectsFromSource();
+    List<MockEntity> entities = (List<MockEntity>) query.list();
+    assertThat(entities.size(), is(1));
+    assertThat(entities.get(0).getId(), is(saved.getId()));
+    assertThat(entities.get(0).getDescription(), is("from the source"));
+    assertThat(TestUtil.fullTextSession().contains(entities.get(0)),
+        is(false));
+  }
+
+  @Test public void search_hitFields() {
+    repository.save(new MockEntity("hitfields", "only what is needed"));
+
+    // the entities loaded from the database need neither source nor fields.
+    ElasticSearchFullTextQuery query = repository.queryLikeName("hitfields");
+    SearchHit hit = firstHit(query);
+    assertThat(hit.isSourceEmpty(), is(true));
+    assertThat(hit.getFields().isEmpty(), is(true));
+    assertThat(((MockEntity) query.list().get(0)).getDescription(),
+        is("only what is needed"));
+
+    query = repository.queryLikeName("hitfields");
+    query.setProjection("description", ProjectionConstants.ID);
+    hit = firstHit(query);
+    assertThat(hit.isSourceEmpty(), is(true));
+    assertThat(hit.getFields().keySet(),
+        is((Set<String>) new HashSet<String>(Arrays.asList("description"))));
+    assertThat((String) hit.getFields().get("description").getValue(),
+        is("only what is needed"));
+
+    query = repository.queryLikeName("hitfields");
+    hit = firstHit(query.initializeObjectsFromSource());
+    assertThat(hit.isSourceEmpty(), is(false));
+    assertThat(hit.getSource().get("description"),
+        is((Object) "only what is needed"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void search_acrossIndices() {
+    repository.save(new MockEntity("acrossa", "an entity"));
+    repository.save(new MockNote("acrossb"));
+
+    FullTextQuery query = TestUtil.fullTextSession().createFullTextQuery(
+        new WildcardQuery(new Term("name", "across*")), MockEntity.class,
+        MockNote.class);
+    query.setSort(new Sort(new SortField("name", SortField.STRING)));
+    List<Object> results = (List<Object>) query.list();
+    assertThat(results.size(), is(2));
+    assertThat(((MockEntity) results.get(0)).getName(), is("acrossa"));
+    assertThat(((MockNote) results.get(1)).getName(), is("acrossb"));
+  }
+
+  @Test public void search_cached() {
+    ElasticSearchBackendQueueProcessorFactory backend =
+        (ElasticSearchBackendQueueProcessorFactory)
+        ((SearchFactoryImplementor) TestUtil.fullTextSession()
+            .getSearchFactory()).getBackendQueueProcessorFactory();
+    backend.setQueryCache(new QueryResultCache(1024 * 1024, 60000));
+    try {
+      repository.save(new MockEntity("cacheda", "first"));
+      ElasticSearchFullTextQuery query = repository.queryLikeName("cached");
+      assertThat(query.list().size(), is(1));
+      assertThat(query.getResultSize(), is(1));
+
+      // the write invalidates the cached searches of the index.
+      repository.save(new MockEntity("cachedb", "second"));
+      query = repository.queryLikeName("cached");
+      assertThat(query.list().size(), is(2));
+      assertThat(query.getResultSize(), is(2));
+    } finally {
+      backend.setQueryCache(null);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void search_nestedBoolean() {
+    repository.save(new MockEntity("boola", "a green apple"));
+    repository.save(new MockEntity("boolb", "an apple that is green"));
+    repository.save(new MockEntity("boolc", "a red apple"));
+
+    QueryBuilder dsl = TestUtil.fullTextSession().getSearchFactory()
+        .buildQueryBuilder().forEntity(MockEntity.class).get();
+    Query query = dsl.bool()
+        .must(dsl.keyword().wildcard().onField("name").matching("bool*")
+            .createQuery())
+        .must(dsl.bool()
+            .should(dsl.phrase().onField("description")
+                .sentence("green apple").createQuery())
+            .should(dsl.keyword().onField("description").matching("red")
+                .createQuery())
+            .createQuery())
+        .createQuery();
+    FullTextQuery fullTextQuery = TestUtil.fullTextSession()
+        .createFullTextQuery(query, MockEntity.class);
+    fullTextQuery.setSort(new Sort(new SortField("name", SortField.STRING)));
+    List<MockEntity> results = (List<MockEntity>) fullTextQuery.list();
+    assertThat(results.size(), is(2));
+    assertThat(results.get(0).getName(), is("boola"));
+    assertThat(results.get(1).getName(), is("boolc"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void search_filtered() {
+    MockEntity old = new MockEntity("filtera", "an old male");
+    old.setYear(1990);
+    repository.save(old);
+    MockEntity recent = new MockEntity("filterb", "a recent male");
+    recent.setYear(2010);
+    repository.save(recent);
+    MockEntity female = new MockEntity("filterc", "a recent female");
+    female.setYear(2011);
+    female.setGender("female");
+    repository.save(female);
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("filter");
+    query.setFilter(NumericRangeFilter.newIntRange("year", 2000, null, true,
+        true));
+    List<MockEntity> results = (List<MockEntity>) query.list();
+    assertThat(results.size(), is(2));
+    assertThat(query.getResultSize(), is(2));
+
+    query.enableFullTextFilter("gender").setParameter("gender", "male");
+    results = (List<MockEntity>) query.list();
+    assertThat(results.size(), is(1));
+    assertThat(results.get(0).getName(), is("filterb"));
+  }
+
+  @Test public void search_faceted() {
+    MockEntity old = new MockEntity("faceta", "an old male");
+    old.setYear(1990);
+    repository.save(old);
+    MockEntity recent = new MockEntity("facetb", "a recent male");
+    recent.setYear(2010);
+    repository.save(recent);
+    MockEntity female = new MockEntity("facetc", "a recent female");
+    female.setYear(2011);
+    female.setGender("female");
+    repository.save(female);
+
+    QueryBuilder dsl = TestUtil.fullTextSession().getSearchFactory()
+        .buildQueryBuilder().forEntity(MockEntity.class).get();
+    ElasticSearchFullTextQuery query = repository.queryLikeName("facet");
+    FacetManager facetManager = query.getFacetManager();
+    facetManager.enableFaceting(dsl.facet().name("gender").onField("gender")
+        .discrete().orderedBy(FacetSortOrder.COUNT_DESC)
+        .createFacetingRequest());
+    facetManager.enableFaceting(dsl.facet().name("year").onField("year")
+        .range().below(2000).excludeLimit().from(2000).to(2020)
+        .orderedBy(FacetSortOrder.RANGE_DEFINITION_ODER)
+        .createFacetingRequest());
+
+    assertThat(query.list().size(), is(3));
+    List<Facet> genders = facetManager.getFacets("gender");
+    assertThat(genders.size(), is(2));
+    assertThat(genders.get(0).getValue(), is("male"));
+    assertThat(genders.get(0).getCount(), is(2));
+    assertThat(genders.get(1).getValue(), is("female"));
+    assertThat(genders.get(1).getCount(), is(1));
+    List<Facet> years = facetManager.getFacets("year");
+    assertThat(years.size(), is(2));
+    assertThat(years.get(0).getCount(), is(1));
+    assertThat(years.get(1).getCount(), is(2));
+
+    facetManager.getFacetGroup("gender").selectFacets(genders.get(0));
+    assertThat(query.getResultSize(), is(2));
+    years = facetManager.getFacets("year");
+    assertThat(years.get(0).getCount(), is(1));
+    assertThat(years.get(1).getCount(), is(1));
+    assertThat(query.list().size(), is(2));
+  }
+
+  @Test public void search_loadedInOrder() {
+    MockEntity first = new MockEntity("loada", "first");
+    repository.save(first);
+    MockEntity second = new MockEntity("loadb", "second");
+    repository.save(second);
+    MockEntity third = new MockEntity("loadc", "third");
+    repository.save(third);
+
+    FullTextSession session = TestUtil.fullTextSession();
+    Object cached = session.get(MockEntity.class, second.getId());
+    FullTextQuery query = session.createFullTextQuery(
+        new WildcardQuery(new Term("name", "load*")), MockEntity.class);
+    query.setSort(new Sort(new SortField("name", SortField.STRING, true)));
+    List<MockEntity> results = (List<MockEntity>) query.list();
+    assertThat(results.size(), is(3));
+    assertThat(results.get(0).getName(), is("loadc"));
+    assertThat(results.get(1) == cached, is(true));
+    assertThat(results.get(2).getName(), is("loada"));
+  }
+
+  @Test public void search_readOnly() {
+    repository.save(new MockEntity("readonlya", "first"));
+    repository.save(new MockEntity("readonlyb", "second"));
+
+    FullTextSession session = TestUtil.fullTextSession();
+    FullTextQuery query = session.createFullTextQuery(
+        new WildcardQuery(new Term("name", "readonly*")), MockEntity.class);
+    query.setReadOnly(true);
+    List<?> results = query.list();
+    assertThat(results.size(), is(2));
+    assertThat(session.isReadOnly(results.get(0)), is(true));
+    assertThat(session.isReadOnly(results.get(1)), is(true));
+  }
+
+  @Test public void search_stateless() {
+    repository.save(new MockEntity("statelessa", "first"));
+    repository.save(new MockEntity("statelessb", "second"));
+
+    FullTextSession session = TestUtil.fullTextSession();
+    ElasticSearchFullTextQuery query = (ElasticSearchFullTextQuery) session
+        .createFullTextQuery(new WildcardQuery(new Term("name",
+            "stateless*")), MockEntity.class);
+    query.setSort(new Sort(new SortField("name", SortField.STRING)));
+    List<?> results = query.initializeObjectsStateless().list();
+    assertThat(results.size(), is(2));
+    assertThat(((MockEntity) results.get(0)).getName(), is("statelessa"));
+    assertThat(session.contains(results.get(0)), is(false));
+    assertThat(session.contains(results.get(1)), is(false));
+  }
+
+  @Test public void iterate_evictLoadedBatches() {
+    repository.save(new MockEntity("evicta", "first"));
+    repository.save(new MockEntity("evictb", "second"));
+
+    FullTextSession session = TestUtil.fullTextSession();
+    ElasticSearchFullTextQuery query = (ElasticSearchFullTextQuery) session
+        .createFullTextQuery(new WildcardQuery(new Term("name", "evict*")),
+            MockEntity.class);
+    query.setSort(new Sort(new SortField("name", SortField.STRING)));
+    query.setFetchSize(1);
+    Iterator<?> iterator = query.setEvictLoadedBatches(true).iterate();
+    Object first = iterator.next();
+    assertThat(session.contains(first), is(true));
+    Object second = iterator.next();
+    assertThat(session.contains(first), is(false));
+    assertThat(session.contains(second), is(true));
+    assertThat(iterator.hasNext(), is(false));
+  }
+
+  @Test public void search_fetchPathOfEachClass() {
+    MockPost post = new MockPost("fetchpath");
+    post.getComments().add(new MockComment("joined", "waabox"));
+    repository.save(post);
+    repository.save(new MockNote("fetchpath"));
+
+    BooleanQuery luceneQuery = new BooleanQuery();
+    luceneQuery.add(new TermQuery(new Term("title", "fetchpath")),
+        Occur.SHOULD);
+    luceneQuery.add(new TermQuery(new Term("name", "fetchpath")),
+        Occur.SHOULD);
+    ElasticSearchFullTextQuery query = (ElasticSearchFullTextQuery)
+        TestUtil.fullTextSession().createFullTextQuery(luceneQuery,
+            MockPost.class, MockNote.class);
+    // only the posts have comments, the notes are loaded without them.
+    List<?> results = query.addFetchPath("comments").list();
+    assertThat(results.size(), is(2));
+    for (Object result : results) {
+      if (result instanceof MockPost) {
+        List<MockComment> comments = ((MockPost) result).getComments();
+        assertThat(Hibernate.isInitialized(comments), is(true));
+        assertThat(comments.size(), is(1));
+      }
+    }
+  }
+
+  @Test(expected = UnknownProfileException.class)
+  public void search_unknownFetchProfile() {
+    repository.save(new MockEntity("profilea", "first"));
+    repository.queryLikeName("profile").setFetchProfile("unknown").list();
+  }
+
+  @Test public void search_multiList() {
+    repository.save(new MockEntity("multia", "first"));
+    repository.save(new MockEntity("multib", "second"));
+    repository.save(new MockEntity("othera", "third"));
+
+    ElasticSearchFullTextSession session;
+    session = (ElasticSearchFullTextSession) TestUtil.fullTextSession();
+    FullTextQuery multi = session.createFullTextQuery(
+        new WildcardQuery(new Term("name", "multi*")), MockEntity.class);
+    multi.setSort(new Sort(new SortField("name", SortField.STRING)));
+    FullTextQuery other = session.createFullTextQuery(
+        new WildcardQuery(new Term("name", "other*")), MockEntity.class);
+    FullTextQuery failed = session.createFullTextQuery(
+        new WildcardQuery(new Term("name", "multi*")), MockEntity.class);
+    failed.setFilter(new FieldCacheTermsFilter("name", "multia"));
+
+    List<MultiSearchResult> results;
+    results = session.multiList(multi, failed, other);
+    assertThat(results.size(), is(3));
+    assertThat(results.get(0).isFailure(), is(false));
+    assertThat(results.get(0).getResults().size(), is(2));
+    assertThat(((MockEntity) results.get(0).getResults().get(0)).getName(),
+        is("multia"));
+    assertThat(multi.getResultSize(), is(2));
+    assertThat(results.get(1).isFailure(), is(true));
+    assertThat(results.get(2).getResults().size(), is(1));
+  }
+
+  @Test public void search_template() {
+    repository.save(new MockEntity("templatea", "first"));
+    repository.save(new MockEntity("templateb", "second"));
+    QueryTemplate.register("search_template",
+        new WildcardQuery(new Term("name", "${name}")));
+
+    ElasticSearchFullTextQuery query;
+    query = ((ElasticSearchFullTextSession) TestUtil.fullTextSession())
+        .createTemplateQuery("search_template", MockEntity.class);
+    query.setParameter("name", "templatea");
+    List<?> results = query.list();
+    assertThat(results.size(), is(1));
+    assertThat(((MockEntity) results.get(0)).getName(), is("templatea"));
+
+    query.setParameter("name", "templateb");
+    results = query.list();
+    assertThat(results.size(), is(1));
+    assertThat(((MockEntity) results.get(0)).getName(), is("templateb"));
+  }
+
+  @Test public void scroll() {
+    for (int i = 0; i < 5; i++) {
+      repository.save(new MockEntity("scroll" + i, "scrolled"));
+    }
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("scroll");
+    query.setFetchSize(2);
+    ScrollableResults results = query.scroll();
+    List<String> names = new LinkedList<String>();
+    while (results.next()) {
+      names.add(((MockEntity) results.get(0)).getName());
+    }
+    assertThat(names, is(Arrays.asList("scroll0", "scroll1", "scroll2",
+        "scroll3", "scroll4")));
+
+    assertThat(results.previous(), is(true));
+    assertThat(((MockEntity) results.get(0)).getName(), is("scroll4"));
+    assertThat(results.first(), is(true));
+    assertThat(((MockEntity) results.get(0)).getName(), is("scroll0"));
+    results.close();
+  }
+
+  @Test public void scroll_backwards() {
+    for (int i = 0; i < 4; i++) {
+      repository.save(new MockEntity("backwards" + i, "scrolled back"));
+    }
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("backwards");
+    query.setFetchSize(2);
+    ScrollableResults results = query.scroll();
+    results.next();
+    results.next();
+    results.next();
+    assertThat(((MockEntity) results.get(0)).getName(), is("backwards2"));
+
+    // a new scroll would see the entity saved after the first one.
+    repository.save(new MockEntity("backwards0a", "scrolled back"));
+    assertThat(results.previous(), is(true));
+    assertThat(((MockEntity) results.get(0)).getName(), is("backwards1"));
+    results.close();
+  }
+
+  @Test public void scroll_prefetch() {
+    for (int i = 0; i < 4; i++) {
+      repository.save(new MockEntity("prefetch" + i, "prefetched"));
+    }
+
+    ElasticSearchFullTextQuery query = repository.queryLikeName("prefetch");
+    query.setFetchSize(1);
+    query.setPrefetchDepth(2);
+    ScrollableResults results = query.scroll();
+    List<String> names = new LinkedList<String>();
+    while (results.next()) {
+      names.add(((MockEntity) results.get(0)).getName());
+    }
+    results.close();
+    assertThat(names, is(Arrays.asList("prefetch0", "prefetch1",
+        "prefetch2", "prefetch3")));
+  }
+
+  @Test public void iterate() {
+    for (int i = 0; i < 5; i++) {
+      repository.save(new MockEntity("iterate" + i, "iterated"));
+    }
+
+    FullTextQuery query = TestUtil.fullTextSession().createFullTextQuery(
+        new WildcardQuery(new Term("name", "iterate*")), MockEntity.class);
+    query.setFetchSize(2);
+    Set<String> names = new HashSet<String>();
+    Iterator<?> iterator = query.iterate();
+    while (iterator.hasNext()) {
+      names.add(((MockEntity) iterator.next()).getName());
+    }
+    assertThat(names.size(), is(5));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void timeToLive() throws Exception {
+    Client client = ElasticSearchClientFactory.getClient();
+    Map<String, Object> mapping = client.admin().cluster().prepareState()
+        .execute().actionGet().getState().getMetaData().index("mock_note")
+        .mapping(MockNote.class.getName()).sourceAsMap();
+    Map<String, Object> ttl = (Map<String, Object>) mapping.get("_ttl");
+    assertThat(ttl.get("enabled"), is((Object) true));
+    assertThat(((Number) ttl.get("default")).longValue(),
+        is(7 * 24 * 60 * 60 * 1000L));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void timeToLive_existingIndex() throws Exception {
+    Client client = ElasticSearchClientFactory.getClient();
+    client.admin().indices().prepareDelete("mock_note").execute().actionGet();
+    client.admin().indices().prepareCreate("mock_note").execute().actionGet();
+
+    ElasticsearchIndexManager.createIndex(MockNote.class, client);
+
+    Map<String, Object> mapping = client.admin().cluster().prepareState()
+        .execute().actionGet().getState().getMetaData().index("mock_note")
+        .mapping(MockNote.class.getName()).sourceAsMap();
+    Map<String, Object> ttl = (Map<String, Object>) mapping.get("_ttl");
+    assertThat(ttl.get("enabled"), is((Object) true));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void embeddedDocuments() throws Exception {
+    MockPost post = new MockPost("embedded");
+    post.getComments().add(new MockComment("great", "waabox", "a", "b"));
+    post.getComments().add(new MockComment("fine", null));
+    repository.save(post);
+    repository.save(new MockReply(post, "thanks"));
+
+    Client client = ElasticSearchClientFactory.getClient();
+    MetaData metaData = client.admin().cluster().prepareState().execute()
+        .actionGet().getState().getMetaData();
+    Map<String, Object> mapping = metaData.index("mock_post")
+        .mapping(MockPost.class.getName()).sourceAsMap();
+    Map<String, Object> properties;
+    properties = (Map<String, Object>) mapping.get("properties");
+    assertThat(((Map<String, Object>) properties.get("comments")).get("type"),
+        is((Object) "nested"));
+    mapping = metaData.index("mock_post").mapping(MockReply.class.getName())
+        .sourceAsMap();
+    assertThat(((Map<String, Object>) mapping.get("_parent")).get("type"),
+        is((Object) MockPost.class.getName()));
+
+    // each comment is an object of its own, the replies are left out.
+    Map<String, Object> source = client.prepareGet("mock_post",
+        MockPost.class.getName(), String.valueOf(post.getId())).execute()
+        .actionGet().sourceAsMap();
+    List<Map<String, Object>> comments;
+    comments = (List<Map<String, Object>>) source.get("comments");
+    assertThat(comments.size(), is(2));
+    assertThat(comments.get(0).get("text"), is((Object) "great"));
+    assertThat(comments.get(0).get("author"), is((Object) "waabox"));
+    assertThat(comments.get(0).get("tags.name"),
+        is((Object) Arrays.asList("a", "b")));
+    assertThat(comments.get(1).get("text"), is((Object) "fine"));
+    assertThat(comments.get(1).containsKey("author"), is(false));
+    assertThat(source.containsKey("replies"), is(false));
+
+    // the queries on the comments and replies are nested and has_child.
+    assertThat(TestUtil.fullTextSession().createFullTextQuery(
+        new TermQuery(new Term("comments.text", "fine")), MockPost.class)
+        .list().size(), is(1));
+    assertThat(TestUtil.fullTextSession().createFullTextQuery(
+        new TermQuery(new Term("replies.text", "thanks")), MockPost.class)
+        .list().size(), is(1));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test public void partialFlush_thenEmbeddedChange() throws Exception {
+    MockPost post = new MockPost("first flush");
+    repository.save(post);
+
+    // the title alone is flushed first, then a comment in the same
+    // transaction, so the partial update is no longer enough.
+    Session session = TestUtil.getSessionFactory().openSession();
+    Transaction tx = session.beginTransaction();
+    MockPost loaded = (MockPost) session.get(MockPost.class, post.getId());
+    loaded.setTitle("second flush");
+    session.flush();
+    loaded.getComments().add(new MockComment("late", "waabox"));
+    session.flush();
+    tx.commit();
+    session.close();
+
+    Map<String, Object> source = ElasticSearchClientFactory.getClient()
+        .prepareGet("mock_post", MockPost.class.getName(),
+            String.valueOf(post.getId())).execute().actionGet()
+        .sourceAsMap();
+    assertThat(source.get("title"), is((Object) "second flush"));
+    List<Map<String, Object>> comments;
+    comments = (List<Map<String, Object>>) source.get("comments");
+    assertThat(comments.size(), is(1));
+    assertThat(comments.get(0).get("text"), is((Object) "late"));
+  }
+
   @Test public void search_tokenizedSorted() {
 
     repository.save(new MockEntity("waabo", "a chinesee copy of waabox"));
@@ -39,4 +650,13 @@ public class ElasticsearchTest {
     assertThat(entities.size(), is(1));
   }
 
+  /** Sends the search of the given query as list sends it.
+   * @param query the query.
+   * @return the first hit of the search.
+   */
+  private static SearchHit firstHit(final ElasticSearchFullTextQuery query) {
+    return query.getQuery().prepareEntityInfosSearch().execute().actionGet()
+        .getHits().getAt(0);
+  }
+
 }
@@ -0,0 +1,109 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.Id;
+
+import org.apache.lucene.document.DateTools;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Fields;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.junit.Test;
+
+public class EntityHydratorTest {
+
+  @Test public void hydrate() throws Exception {
+    EntityHydrator.generate(Person.class);
+    EntityHydrator hydrator = EntityHydrator.forClass(Person.class);
+    assertNotNull(hydrator);
+
+    Date born = new Date(1000000000000L);
+    Map<String, Object> source = new HashMap<String, Object>();
+    source.put("name", "waabox");
+    source.put("name_sort", "waabox");
+    source.put("age", "33");
+    source.put("born", DateTools.dateToString(born,
+        DateTools.Resolution.MILLISECOND));
+
+    Person person = (Person) hydrator.hydrate(1L, source);
+    assertEquals(1L, person.id);
+    assertEquals("waabox", person.getName());
+    assertEquals(33, person.age);
+    assertEquals(born, person.born);
+  }
+
+  @Test public void hydrate_skipNull() throws Exception {
+    EntityHydrator.generate(Person.class);
+    Map<String, Object> source = new HashMap<String, Object>();
+
+    Person person = (Person) EntityHydrator.forClass(Person.class)
+      .hydrate("2", source);
+    assertEquals(2L, person.id);
+    assertNull(person.getName());
+    assertEquals(0, person.age);
+  }
+
+  @Test public void forClass_generatedOnce() {
+    EntityHydrator hydrator = EntityHydrator.forClass(Person.class);
+    assertNotNull(hydrator);
+    assertSame(hydrator, EntityHydrator.forClass(Person.class));
+    assertNull(EntityHydrator.forClass(Locked.class));
+    assertNull(EntityHydrator.forClass(Locked.class));
+  }
+
+  @Test public void generate_notSettable() {
+    EntityHydrator.generate(Locked.class);
+    assertNull(EntityHydrator.forClass(Locked.class));
+  }
+
+  @Test public void generate_embedded() {
+    EntityHydrator.generate(Owner.class);
+    assertNull(EntityHydrator.forClass(Owner.class));
+  }
+
+  public static class Person {
+
+    @Id
+    long id;
+
+    @Fields({@Field, @Field(name = "name_sort") })
+    private String name;
+
+    @Field
+    int age;
+
+    @Field
+    Date born;
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(final String theName) {
+      name = theName;
+    }
+  }
+
+  public static class Locked {
+
+    @Id
+    long id;
+
+    @Field
+    private String name;
+  }
+
+  public static class Owner {
+
+    @Id
+    long id;
+
+    @IndexedEmbedded
+    Person person;
+  }
+
+}
@@ -0,0 +1,59 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.hibernate.search.annotations.FullTextFilterDef;
+import org.hibernate.search.engine.FilterDef;
+import org.junit.Test;
+
+public class FullTextFilterCacheTest {
+
+  @Test public void get_keyedByEntities() throws Exception {
+    FullTextFilterCache cache = new FullTextFilterCache(10);
+    FilterDef definition = new FilterDef(
+        MockEntity.class.getAnnotation(FullTextFilterDef.class));
+    definition.addSetter("gender",
+        MockGenderFilter.class.getMethod("setGender", String.class));
+    definition.setFactoryMethod(
+        MockGenderFilter.class.getMethod("getFilter"));
+    Map<String, Object> parameters;
+    parameters = Collections.<String, Object>singletonMap("gender", "F");
+    Set<Class<?>> entities = new HashSet<Class<?>>();
+    entities.add(MockEntity.class);
+    Set<Class<?>> both = new HashSet<Class<?>>(entities);
+    both.add(MockNote.class);
+
+    FilterBuilder filter = cache.get(definition, parameters, entities);
+    assertSame(filter, cache.get(definition, parameters, entities));
+
+    // the same filter on other entities is translated and cached apart.
+    FilterBuilder other = cache.get(definition, parameters, both);
+    assertNotSame(filter, other);
+    assertTrue(json(filter).contains("\"_cache_key\":\"gender{gender=F}["
+        + MockEntity.class.getName() + "]\""));
+    assertTrue(json(other).contains("\"_cache_key\":\"gender{gender=F}["
+        + MockEntity.class.getName() + ", " + MockNote.class.getName()
+        + "]\""));
+  }
+
+  /** Renders the given filter.
+   * @param filter the filter.
+   * @return the json of the filter.
+   */
+  private static String json(final FilterBuilder filter) throws IOException {
+    XContentBuilder json = XContentFactory.jsonBuilder();
+    filter.toXContent(json, ToXContent.EMPTY_PARAMS);
+    return json.string();
+  }
+
+}
@@ -0,0 +1,66 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToMany;
+import javax.persistence.Table;
+
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Index;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.annotations.Store;
+
+/** Mock comment of a {@link MockPost}, stored as a nested document.*/
+@Entity
+@Table(name = "mock_comment")
+public class MockComment {
+
+  /** The id.*/
+  @Id
+  @GeneratedValue(strategy = GenerationType.AUTO)
+  @Column(name = "id", nullable = false)
+  private long id = 0;
+
+  /** The text.*/
+  @Column(name = "text")
+  @Field(store = Store.YES, index = Index.TOKENIZED)
+  private String text;
+
+  /** The author, can be null.*/
+  @Column(name = "author")
+  @Field(store = Store.YES, index = Index.UN_TOKENIZED)
+  private String author;
+
+  /** The tags, a multi-valued field of the comment.*/
+  @OneToMany(cascade = CascadeType.ALL)
+  @JoinColumn(name = "comment_id")
+  @IndexedEmbedded
+  private List<MockTag> tags = new ArrayList<MockTag>();
+
+  /** ORM constructor.*/
+  MockComment() {
+  }
+
+  /** Creates a new instance of the mock-comment.
+   * @param theText the text.
+   * @param theAuthor the author, can be null.
+   * @param theTags the names of the tags.
+   */
+  public MockComment(final String theText, final String theAuthor,
+      final String... theTags) {
+    text = theText;
+    author = theAuthor;
+    for (String tag : theTags) {
+      tags.add(new MockTag(tag));
+    }
+  }
+
+}
@@ -10,6 +10,7 @@ import javax.persistence.Id;
 import javax.persistence.Table;
 
 import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.FullTextFilterDef;
 import org.hibernate.search.annotations.Index;
 import org.hibernate.search.annotations.Indexed;
 import org.hibernate.search.annotations.Store;
@@ -18,6 +19,7 @@ import org.hibernate.search.annotations.Store;
 @Entity
 @Table(name = "mock_entity")
 @Indexed(index = "mock_entity")
+@FullTextFilterDef(name = "gender", impl = MockGenderFilter.class)
 public class MockEntity {
 
   /** The id.*/
@@ -94,4 +96,53 @@ public class MockEntity {
     return description;
   }
 
+  /** Sets the id, used by the source hydration.
+   * @param theId the id.
+   */
+  void setId(final long theId) {
+    id = theId;
+  }
+
+  /** Sets the name, used by the source hydration.
+   * @param theName the name.
+   */
+  void setName(final String theName) {
+    name = theName;
+  }
+
+  /** Sets the description, used by the source hydration.
+   * @param theDescription the description.
+   */
+  void setDescription(final String theDescription) {
+    description = theDescription;
+  }
+
+  /** Sets the gender, used by the source hydration.
+   * @param theGender the gender.
+   */
+  void setGender(final String theGender) {
+    gender = theGender;
+  }
+
+  /** Sets the age, used by the source hydration.
+   * @param theAge the age.
+   */
+  void setAge(final Integer theAge) {
+    age = theAge;
+  }
+
+  /** Sets the year, used by the source hydration.
+   * @param theYear the year.
+   */
+  void setYear(final int theYear) {
+    year = theYear;
+  }
+
+  /** Sets the date, used by the source hydration.
+   * @param theDate the date.
+   */
+  void setDate(final Date theDate) {
+    date = theDate;
+  }
+
 }
@@ -26,7 +26,7 @@ public class MockEntityRepository {
   /** Stores the given mock entity.
    * @param entity the entity to store.
    */
-  public void save(final MockEntity entity) {
+  public void save(final Object entity) {
     Session session = sessionFactory.openSession();
     Transaction tx = session.beginTransaction();
     session.saveOrUpdate(entity);
@@ -49,6 +49,20 @@ public class MockEntityRepository {
     return query.list();
   }
 
+  /** Creates a query of the mock entities given by its name, sorted by name.
+   * @param name the name to search.
+   * @return the query.
+   */
+  public ElasticSearchFullTextQuery queryLikeName(final String name) {
+    FullTextSession fullTextSession = TestUtil.fullTextSession();
+    WildcardQuery wilCardQuery = new WildcardQuery(new Term("name",
+        name.trim() + "*"));
+    FullTextQuery query = fullTextSession
+        .createFullTextQuery(wilCardQuery, MockEntity.class);
+    query.setSort(new Sort(new SortField("name", SortField.STRING)));
+    return (ElasticSearchFullTextQuery) query;
+  }
+
   /** Search mock entities given by its name.
    * @param name the name to search.
    * @return a list of mock entities.
@@ -0,0 +1,27 @@
+package org.hibernate.search.elasticsearch;
+
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.hibernate.search.annotations.Factory;
+
+/** Full text filter of the mock entities by gender.*/
+public class MockGenderFilter {
+
+  /** The gender, it's never null once set.*/
+  private String gender;
+
+  /** Sets the gender.
+   * @param theGender the gender.
+   */
+  public void setGender(final String theGender) {
+    gender = theGender;
+  }
+
+  /** Creates the filter.
+   * @return the filter, never null.
+   */
+  @Factory
+  public FilterBuilder getFilter() {
+    return FilterBuilders.termFilter("gender_raw", gender);
+  }
+}
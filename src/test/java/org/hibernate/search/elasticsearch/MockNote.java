@@ -0,0 +1,53 @@
+package org.hibernate.search.elasticsearch;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Index;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.Store;
+
+/** Mock entity that lives in its own index, to test the searches across
+ * indices, and whose documents expire.
+ */
+@Entity
+@Table(name = "mock_note")
+@Indexed(index = "mock_note")
+@TimeToLive("7d")
+public class MockNote {
+
+  /** The id.*/
+  @Id
+  @GeneratedValue(strategy = GenerationType.AUTO)
+  @Column(name = "id", nullable = false)
+  private long id = 0;
+
+  /** The name.*/
+  @Column(name = "name")
+  @Field(store = Store.YES, index = Index.TOKENIZED)
+  private String name;
+
+  /** ORM constructor.*/
+  MockNote() {
+  }
+
+  /** Creates a new instance of the mock-note.
+   * @param theName the name.
+   */
+  public MockNote(final String theName) {
+    name = theName;
+  }
+
+  /** Retrieves the name.
+   * @return the name.
+   */
+  public String getName() {
+    return name;
+  }
+
+}
@@ -0,0 +1,93 @@
+package org.hibernate.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToMany;
+import javax.persistence.Table;
+
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Index;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.annotations.Store;
+
+/** Mock entity with a nested and a child collection, to test the embedded
+ * documents.
+ */
+@Entity
+@Table(name = "mock_post")
+@Indexed(index = "mock_post")
+public class MockPost {
+
+  /** The id.*/
+  @Id
+  @GeneratedValue(strategy = GenerationType.AUTO)
+  @Column(name = "id", nullable = false)
+  private long id = 0;
+
+  /** The title.*/
+  @Column(name = "title")
+  @Field(store = Store.YES, index = Index.TOKENIZED)
+  private String title;
+
+  /** The comments, stored as nested documents.*/
+  @OneToMany(cascade = CascadeType.ALL)
+  @JoinColumn(name = "post_id")
+  @IndexedEmbedded
+  @EmbeddedDocuments(EmbeddedDocuments.Mode.NESTED)
+  private List<MockComment> comments = new ArrayList<MockComment>();
+
+  /** The replies, stored as child documents.*/
+  @OneToMany(mappedBy = "post")
+  @IndexedEmbedded(depth = 1)
+  @EmbeddedDocuments(EmbeddedDocuments.Mode.CHILD)
+  private List<MockReply> replies = new ArrayList<MockReply>();
+
+  /** ORM constructor.*/
+  MockPost() {
+  }
+
+  /** Creates a new instance of the mock-post.
+   * @param theTitle the title.
+   */
+  public MockPost(final String theTitle) {
+    title = theTitle;
+  }
+
+  /** Retrieves the id.
+   * @return the id.
+   */
+  public long getId() {
+    return id;
+  }
+
+  /** Retrieves the title.
+   * @return the title.
+   */
+  public String getTitle() {
+    return title;
+  }
+
+  /** Changes the title.
+   * @param theTitle the new title.
+   */
+  public void setTitle(final String theTitle) {
+    title = theTitle;
+  }
+
+  /** Retrieves the comments.
+   * @return the comments.
+   */
+  public List<MockComment> getComments() {
+    return comments;
+  }
+
+}
@@ -0,0 +1,61 @@
+package org.hibernate.search.elasticsearch;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Index;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.Store;
+
+/** Mock reply of a {@link MockPost}, stored as a child document.*/
+@Entity
+@Table(name = "mock_reply")
+@Indexed(index = "mock_post")
+@ParentDocument(type = MockPost.class, field = "postId")
+public class MockReply {
+
+  /** The id.*/
+  @Id
+  @GeneratedValue(strategy = GenerationType.AUTO)
+  @Column(name = "id", nullable = false)
+  private long id = 0;
+
+  /** The text.*/
+  @Column(name = "text")
+  @Field(store = Store.YES, index = Index.TOKENIZED)
+  private String text;
+
+  /** The post.*/
+  @ManyToOne
+  @JoinColumn(name = "post_id")
+  private MockPost post;
+
+  /** ORM constructor.*/
+  MockReply() {
+  }
+
+  /** Creates a new instance of the mock-reply.
+   * @param thePost the post.
+   * @param theText the text.
+   */
+  public MockReply(final MockPost thePost, final String theText) {
+    post = thePost;
+    text = theText;
+  }
+
+  /** Retrieves the id of the post, that is the parent document.
+   * @return the post id.
+   */
+  @Field(store = Store.YES, index = Index.UN_TOKENIZED)
+  public long getPostId() {
+    return post.getId();
+  }
+
+}
@@ -0,0 +1,41 @@
+package org.hibernate.search.elasticsearch;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Index;
+import org.hibernate.search.annotations.Store;
+
+/** Mock tag of a {@link MockComment}, embedded two levels deep.*/
+@Entity
+@Table(name = "mock_tag")
+public class MockTag {
+
+  /** The id.*/
+  @Id
+  @GeneratedValue(strategy = GenerationType.AUTO)
+  @Column(name = "id", nullable = false)
+  private long id = 0;
+
+  /** The name.*/
+  @Column(name = "name")
+  @Field(store = Store.YES, index = Index.UN_TOKENIZED)
+  private String name;
+
+  /** ORM constructor.*/
+  MockTag() {
+  }
+
+  /** Creates a new instance of the mock-tag.
+   * @param theName the name.
+   */
+  public MockTag(final String theName) {
+    name = theName;
+  }
+
+}
@@ -0,0 +1,89 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+
+  private static final SearchHit[] NO_HITS = new SearchHit[0];
+
+  @Test public void get() {
+    QueryResultCache cache = new QueryResultCache(10000, 60000);
+    String[] indices = {"cache_get"};
+    QueryResultCache.Result result = new QueryResultCache.Result(NO_HITS, 3);
+
+    assertNull(cache.get("query"));
+    cache.put("query", indices, cache.getGenerations(indices), result);
+    assertSame(result, cache.get("query"));
+  }
+
+  @Test public void get_invalidated() {
+    QueryResultCache cache = new QueryResultCache(10000, 60000);
+    String[] indices = {"cache_a", "cache_b"};
+    cache.put("query", indices, cache.getGenerations(indices),
+        new QueryResultCache.Result(NO_HITS, 3));
+
+    cache.invalidate("cache_other");
+    assertNotNull(cache.get("query"));
+    cache.invalidate("cache_b");
+    assertNull(cache.get("query"));
+  }
+
+  @Test public void put_writtenWhileSearching() {
+    QueryResultCache cache = new QueryResultCache(10000, 60000);
+    String[] indices = {"cache_inflight"};
+    long[] generations = cache.getGenerations(indices);
+    cache.invalidate("cache_inflight");
+
+    cache.put("query", indices, generations,
+        new QueryResultCache.Result(NO_HITS, 3));
+    assertNull(cache.get("query"));
+  }
+
+  @Test public void put_writtenBeforeRefresh() {
+    String[] indices = {"cache_refresh"};
+
+    // the search may not see the write until the index is refreshed.
+    QueryResultCache cache = new QueryResultCache(10000, 60000, 60000);
+    cache.invalidate("cache_refresh");
+    cache.put("query", indices, cache.getGenerations(indices),
+        new QueryResultCache.Result(NO_HITS, 3));
+    assertNull(cache.get("query"));
+
+    cache = new QueryResultCache(10000, 60000, 0);
+    cache.invalidate("cache_refresh");
+    cache.put("query", indices, cache.getGenerations(indices),
+        new QueryResultCache.Result(NO_HITS, 3));
+    assertNotNull(cache.get("query"));
+  }
+
+  @Test public void put_evictsLeastRecentlyUsed() {
+    // each entry weights 128 bytes plus two bytes per char of its key.
+    QueryResultCache cache = new QueryResultCache(300, 60000);
+    String[] indices = {"cache_lru"};
+    long[] generations = cache.getGenerations(indices);
+    cache.put("a", indices, generations,
+        new QueryResultCache.Result(NO_HITS, 1));
+    cache.put("b", indices, generations,
+        new QueryResultCache.Result(NO_HITS, 2));
+    assertNotNull(cache.get("a"));
+
+    cache.put("c", indices, generations,
+        new QueryResultCache.Result(NO_HITS, 3));
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  @Test public void get_expired() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10000, 1);
+    String[] indices = {"cache_ttl"};
+    cache.put("query", indices, cache.getGenerations(indices),
+        new QueryResultCache.Result(NO_HITS, 3));
+    Thread.sleep(10);
+    assertNull(cache.get("query"));
+  }
+
+}
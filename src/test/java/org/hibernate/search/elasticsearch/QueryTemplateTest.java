@@ -0,0 +1,76 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.hibernate.HibernateException;
+import org.junit.Test;
+
+public class QueryTemplateTest {
+
+  private static final Set<Class<?>> ENTITIES =
+      Collections.<Class<?>>singleton(MockEntity.class);
+
+  @Test public void bind_term() {
+    QueryTemplate template = QueryTemplate.register("template_name",
+        new TermQuery(new Term("name", "${name}")));
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("name", "a b\"c");
+
+    String json = template.bind(ENTITIES, values);
+    assertEquals("{\"term\":{\"name\":\"a b\\\"c\"}}", json);
+  }
+
+  @Test public void bind_queryString() {
+    MultiPhraseQuery query = new MultiPhraseQuery();
+    query.add(new Term("name", "${name}"));
+    QueryTemplate template = QueryTemplate.register("template_phrase",
+        query);
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("name", "a b\"c");
+
+    String json = template.bind(ENTITIES, values);
+    assertTrue(json, json.contains("name:\\\"a\\\\ b\\\\\\\"c\\\""));
+    assertFalse(json, json.contains("${"));
+  }
+
+  @Test public void bind_wildcard() {
+    QueryTemplate template = QueryTemplate.register("template_gender",
+        new WildcardQuery(new Term("gender", "${gender}*")));
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("gender", "m f");
+
+    String json = template.bind(ENTITIES, values);
+    assertTrue(json, json.contains("\"gender_raw\":\"m f*\""));
+
+    values.put("gender", "x");
+    json = template.bind(ENTITIES, values);
+    assertTrue(json, json.contains("\"gender_raw\":\"x*\""));
+  }
+
+  @Test(expected = HibernateException.class)
+  public void bind_unbound() {
+    QueryTemplate template = QueryTemplate.register("template_unbound",
+        new TermQuery(new Term("name", "${name}")));
+    template.bind(ENTITIES, new HashMap<String, Object>());
+  }
+
+  @Test(expected = HibernateException.class)
+  public void forName_unknown() {
+    QueryTemplate.forName("template_unknown");
+  }
+
+  @Test public void forName() {
+    QueryTemplate template = QueryTemplate.register("template_forname",
+        new TermQuery(new Term("name", "${name}")));
+    assertSame(template, QueryTemplate.forName("template_forname"));
+  }
+}
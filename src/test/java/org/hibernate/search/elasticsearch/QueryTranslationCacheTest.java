@@ -0,0 +1,69 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixFilter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+public class QueryTranslationCacheTest {
+
+  private static final Set<Class<?>> ENTITIES =
+      Collections.<Class<?>>singleton(MockEntity.class);
+
+  @Test public void get_equalQuery() {
+    QueryTranslationCache cache = new QueryTranslationCache(16);
+    QueryBuilder translation = QueryBuilders.matchAllQuery();
+
+    cache.put(bool("waabox"), ENTITIES, translation);
+    assertSame(translation, cache.get(bool("waabox"), ENTITIES));
+    assertNull(cache.get(bool("other"), ENTITIES));
+  }
+
+  @Test public void get_modifiedClause() {
+    QueryTranslationCache cache = new QueryTranslationCache(16);
+    QueryBuilder translation = QueryBuilders.matchAllQuery();
+    BooleanQuery query = phrase("waabox", "a");
+
+    cache.put(query, ENTITIES, translation);
+    // the cached key does not share the clauses of the caller.
+    query.getClauses()[0].getQuery().setBoost(2);
+    ((PhraseQuery) query.getClauses()[1].getQuery()).add(
+        new Term("description", "geek"));
+    assertSame(translation, cache.get(phrase("waabox", "a"), ENTITIES));
+  }
+
+  @Test public void put_filterQuery() {
+    QueryTranslationCache cache = new QueryTranslationCache(16);
+    Query query = new ConstantScoreQuery(new PrefixFilter(
+        new Term("name", "waa")));
+
+    cache.put(query, ENTITIES, QueryBuilders.matchAllQuery());
+    assertNull(cache.get(query, ENTITIES));
+  }
+
+  private static BooleanQuery phrase(final String name, final String word) {
+    BooleanQuery query = bool(name);
+    PhraseQuery phrase = new PhraseQuery();
+    phrase.add(new Term("description", word));
+    query.add(phrase, Occur.MUST);
+    return query;
+  }
+
+  private static BooleanQuery bool(final String name) {
+    BooleanQuery query = new BooleanQuery();
+    query.add(new TermQuery(new Term("name", name)), Occur.MUST);
+    return query;
+  }
+}
@@ -3,7 +3,7 @@
  */
 package org.hibernate.search.elasticsearch;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 import org.hibernate.Session;
@@ -22,13 +22,18 @@ public class TestUtil {
   private TestUtil() {
     Configuration cfg = new Configuration();
     cfg.configure(getClass().getClassLoader().getResource("hibernate.cfg.xml"));
+    // Sends the partial updates of the changed fields.
+    ElasticSearchIndexEventListener.register(cfg);
     // We need to create the client after you call the buildSessionFactory.
     List classes;
     try {
       // If you are using spring, it's easier, because you could have the
       // persistence class list within another list.
-      classes = Collections.singletonList(
-          Class.forName("org.hibernate.search.elasticsearch.MockEntity"));
+      classes = Arrays.asList(
+          Class.forName("org.hibernate.search.elasticsearch.MockEntity"),
+          Class.forName("org.hibernate.search.elasticsearch.MockNote"),
+          Class.forName("org.hibernate.search.elasticsearch.MockPost"),
+          Class.forName("org.hibernate.search.elasticsearch.MockReply"));
     } catch (ClassNotFoundException e) {
       throw new RuntimeException(e);
     }
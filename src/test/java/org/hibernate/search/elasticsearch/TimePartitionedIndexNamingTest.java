@@ -0,0 +1,76 @@
+package org.hibernate.search.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.hibernate.search.annotations.Indexed;
+import org.junit.Test;
+
+public class TimePartitionedIndexNamingTest {
+
+  private TimePartitionedIndexNaming naming = new TimePartitionedIndexNaming();
+
+  @Test public void getIndexName() {
+    Document document = new Document();
+    document.add(new Field("date", "20130115", Field.Store.YES,
+        Field.Index.NOT_ANALYZED));
+
+    assertEquals("events-2013.01", naming.getIndexName(Event.class,
+        document));
+    assertEquals("visits-2013.01.15", naming.getIndexName(Visit.class,
+        document));
+  }
+
+  @Test public void getSearchIndices_pruned() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(new TermQuery(new Term("name", "waabox")), Occur.MUST);
+    query.add(new TermRangeQuery("date", "20121220", "20130210", true, true),
+        Occur.MUST);
+
+    assertEquals(Arrays.asList("events-2012.12", "events-2013.01",
+        "events-2013.02"), Arrays.asList(naming.getSearchIndices(Event.class,
+        query)));
+  }
+
+  @Test public void getSearchIndices_alias() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(new TermQuery(new Term("name", "waabox")), Occur.MUST);
+    query.add(new TermRangeQuery("date", "20121220", "20130210", true, true),
+        Occur.SHOULD);
+
+    assertEquals(Arrays.asList("events"), Arrays.asList(
+        naming.getSearchIndices(Event.class, query)));
+    assertEquals(Arrays.asList("events"), Arrays.asList(
+        naming.getSearchIndices(Event.class, null)));
+  }
+
+  @Test public void getExpiredPartitions() throws Exception {
+    Date date = DateTools.stringToDate("20130115");
+    String[] indices = {"events", "events-2012.12", "events-2013.01",
+        "events-2013.02", "events-backup", "mock_entity"};
+
+    assertEquals(Arrays.asList("events-2012.12"),
+        naming.getExpiredPartitions(Event.class, indices, date));
+  }
+
+  @Indexed(index = "events")
+  @TimePartitioned(field = "date")
+  public static class Event {
+  }
+
+  @Indexed(index = "visits")
+  @TimePartitioned(field = "date", period = TimePartitioned.Period.DAILY)
+  public static class Visit {
+  }
+
+}